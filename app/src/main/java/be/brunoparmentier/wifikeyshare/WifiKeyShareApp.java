@@ -24,6 +24,10 @@ import org.wordpress.passcodelock.AppLockManager;
 
 import be.brunoparmentier.wifikeyshare.db.WifiKeysDataSource;
 import be.brunoparmentier.wifikeyshare.ui.activities.ConfirmConnectToWifiNetworkActivity;
+import be.brunoparmentier.wifikeyshare.utils.CredentialCache;
+import be.brunoparmentier.wifikeyshare.utils.QrCodeCache;
+import be.brunoparmentier.wifikeyshare.utils.TagCapacityCache;
+import be.brunoparmentier.wifikeyshare.utils.WifiNetworkPrefetcher;
 
 public class WifiKeyShareApp extends Application {
     @Override
@@ -39,5 +43,22 @@ public class WifiKeyShareApp extends Application {
         }
 
         WifiKeysDataSource.init(this);
+        QrCodeCache.init(this);
+        TagCapacityCache.init(this);
+        CredentialCache.init(this);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        QrCodeCache.getInstance().trimMemory(level);
+        WifiNetworkPrefetcher.trimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        QrCodeCache.getInstance().clear();
+        WifiNetworkPrefetcher.clear();
     }
 }
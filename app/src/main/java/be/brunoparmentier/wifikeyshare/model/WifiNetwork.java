@@ -72,6 +72,49 @@ public class WifiNetwork implements Serializable {
         return new WifiNetwork(ssid, authType, key, isHidden);
     }
 
+    /**
+     * Convert this Wi-Fi network to a configuration that can be added to the WifiManager
+     *
+     * @return the corresponding Wi-Fi configuration
+     */
+    public WifiConfiguration toWifiConfiguration() {
+        WifiConfiguration wifiConfiguration = new WifiConfiguration();
+        wifiConfiguration.SSID = "\"" + ssid + "\"";
+        wifiConfiguration.hiddenSSID = isHidden;
+
+        switch (authType) {
+            case OPEN:
+                wifiConfiguration.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+                break;
+            case WEP:
+                wifiConfiguration.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+                wifiConfiguration.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.OPEN);
+                wifiConfiguration.allowedAuthAlgorithms.set(WifiConfiguration.AuthAlgorithm.SHARED);
+                if ((key.length() == 10 || key.length() == 26 || key.length() == 32)
+                        && key.matches("[0-9A-Fa-f]+")) {
+                    wifiConfiguration.wepKeys[0] = key; // hexadecimal key
+                } else {
+                    wifiConfiguration.wepKeys[0] = "\"" + key + "\"";
+                }
+                wifiConfiguration.wepTxKeyIndex = 0;
+                break;
+            case WPA_PSK:
+            case WPA2_PSK:
+                wifiConfiguration.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+                if (key.length() == 64 && key.matches("[0-9A-Fa-f]+")) {
+                    wifiConfiguration.preSharedKey = key; // raw pre-shared key
+                } else {
+                    wifiConfiguration.preSharedKey = "\"" + key + "\"";
+                }
+                break;
+            default:
+                wifiConfiguration.allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_EAP);
+                break;
+        }
+
+        return wifiConfiguration;
+    }
+
     private static String getSsidFromWifiConfiguration(WifiConfiguration wifiConfiguration) {
         String ssid = wifiConfiguration.SSID;
         if (ssid != null) {
@@ -133,6 +176,10 @@ public class WifiNetwork implements Serializable {
         this.key = key;
     }
 
+    public void setHidden(boolean isHidden) {
+        this.isHidden = isHidden;
+    }
+
     public static boolean isValidKeyLength(WifiAuthType authType, String key)
             throws WifiException {
         int keyLength = key.length();
@@ -0,0 +1,75 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.services;
+
+import android.annotation.TargetApi;
+import android.nfc.NdefMessage;
+import android.nfc.cardemulation.HostApduService;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import be.brunoparmentier.wifikeyshare.utils.Type4TagEmulator;
+
+/**
+ * Emulate an NFC tag holding the Wi-Fi network currently shown, so that another phone can read
+ * it as if it were a physical tag
+ *
+ * The tag is only served while a message is set with {@link #setNdefMessage(NdefMessage)}. Its
+ * methods, like the ones of the service, run on the main thread.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class NdefHostApduService extends HostApduService {
+    private static final String TAG = NdefHostApduService.class.getSimpleName();
+
+    private static final byte[] SW_FILE_NOT_FOUND = {0x6A, (byte) 0x82};
+
+    private static Type4TagEmulator tagEmulator;
+
+    /**
+     * Set the message of the emulated tag
+     *
+     * @param ndefMessage the message, or null to stop emulating the tag
+     */
+    public static void setNdefMessage(NdefMessage ndefMessage) {
+        byte[] messageBytes = ndefMessage != null ? ndefMessage.toByteArray() : null;
+        if (messageBytes == null || messageBytes.length > Type4TagEmulator.MAX_MESSAGE_SIZE) {
+            tagEmulator = null;
+        } else {
+            tagEmulator = new Type4TagEmulator(messageBytes);
+        }
+    }
+
+    @Override
+    public byte[] processCommandApdu(byte[] commandApdu, Bundle extras) {
+        if (tagEmulator == null) {
+            /* Nothing shared: the NDEF application is not found */
+            return SW_FILE_NOT_FOUND;
+        }
+        return tagEmulator.processCommandApdu(commandApdu);
+    }
+
+    @Override
+    public void onDeactivated(int reason) {
+        Log.d(TAG, "Deactivated: " + reason);
+        if (tagEmulator != null) {
+            tagEmulator.reset();
+        }
+    }
+}
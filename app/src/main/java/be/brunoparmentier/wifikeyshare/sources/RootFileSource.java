@@ -0,0 +1,139 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+import be.brunoparmentier.wifikeyshare.utils.CredentialCache;
+import be.brunoparmentier.wifikeyshare.utils.RootFileStream;
+import be.brunoparmentier.wifikeyshare.utils.RootShell;
+
+/**
+ * Networks of system configuration files, read as root with a single command
+ *
+ * The parsed networks are cached until the files change, which a stat of the files tells.
+ */
+public abstract class RootFileSource implements WifiNetworkSource {
+    private static final String TAG = RootFileSource.class.getSimpleName();
+
+    private final List<String> paths;
+    private volatile boolean hasStartedShell;
+
+    /**
+     * @param paths the files to read, the missing ones being skipped
+     */
+    RootFileSource(List<String> paths) {
+        this.paths = paths;
+    }
+
+    /**
+     * Parse a file while it is read
+     */
+    abstract List<WifiNetwork> parse(Reader reader) throws IOException, XmlPullParserException;
+
+    @Override
+    public boolean isAvailable() {
+        RootShell rootShell = RootShell.getInstance();
+        int openCount = rootShell.getOpenCount();
+        boolean isRootAvailable = rootShell.isRootAvailable();
+        hasStartedShell = rootShell.getOpenCount() != openCount;
+        return isRootAvailable;
+    }
+
+    @Override
+    public List<WifiNetwork> load() throws IOException {
+        RootShell rootShell = RootShell.getInstance();
+        int openCount = rootShell.getOpenCount();
+        try {
+            /* The files are only read again once they changed */
+            CredentialCache credentialCache = CredentialCache.getInstance();
+            String fingerprint = null;
+            if (credentialCache != null) {
+                fingerprint = TextUtils.join("\n", rootShell.statFiles(paths));
+                List<WifiNetwork> cachedNetworks = credentialCache.get(getName(), fingerprint);
+                if (cachedNetworks != null) {
+                    return cachedNetworks;
+                }
+            }
+
+            List<WifiNetwork> wifiNetworks = readFiles(rootShell);
+            if (credentialCache != null) {
+                credentialCache.put(getName(), fingerprint, wifiNetworks);
+            }
+            return wifiNetworks;
+        } finally {
+            hasStartedShell |= rootShell.getOpenCount() != openCount;
+        }
+    }
+
+    private List<WifiNetwork> readFiles(RootShell rootShell) throws IOException {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>();
+        RootFileStream files = rootShell.readFiles(paths);
+        try {
+            InputStream file;
+            while ((file = files.nextFile()) != null) {
+                Reader reader = new InputStreamReader(file, Charset.forName("UTF-8"));
+                try {
+                    wifiNetworks.addAll(parse(reader));
+                } catch (XmlPullParserException e) {
+                    /* Missing file */
+                    Log.d(TAG, "Cannot parse Wi-Fi configuration: " + e.getMessage());
+                } finally {
+                    reader.close();
+                }
+            }
+        } finally {
+            files.close();
+        }
+        return wifiNetworks;
+    }
+
+    private String getName() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * @return whether the last load had to start a root shell, which makes it much slower
+     */
+    public boolean hasStartedShell() {
+        return hasStartedShell;
+    }
+
+    @Override
+    public boolean isListing() {
+        return false;
+    }
+
+    @Override
+    public int getKeyPriority() {
+        return KEY_PRIORITY_SYSTEM;
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.db.WifiKeysDataSource;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Keys entered by the user, or imported from QR codes
+ */
+public class SavedKeysSource implements WifiNetworkSource {
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public List<WifiNetwork> load() {
+        return WifiKeysDataSource.getInstance().getSavedWifiWithKeys();
+    }
+
+    @Override
+    public boolean isListing() {
+        return false;
+    }
+
+    @Override
+    public int getKeyPriority() {
+        return KEY_PRIORITY_SAVED;
+    }
+}
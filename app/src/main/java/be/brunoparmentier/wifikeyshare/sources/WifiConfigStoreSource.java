@@ -0,0 +1,73 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+import be.brunoparmentier.wifikeyshare.utils.WifiConfigStoreParser;
+
+/**
+ * Networks of WifiConfigStore.xml, used since Android 8.0
+ */
+public class WifiConfigStoreSource extends RootFileSource {
+    private static final String TAG = WifiConfigStoreSource.class.getSimpleName();
+
+    private static final String FILE_WIFI_CONFIG_STORE = "/data/misc/wifi/WifiConfigStore.xml";
+    /* Location of the Wi-Fi configuration since Android 11 */
+    private static final String FILE_WIFI_CONFIG_STORE_APEX =
+            "/data/misc/apexdata/com.android.wifi/WifiConfigStore.xml";
+
+    public WifiConfigStoreSource() {
+        super(Arrays.asList(FILE_WIFI_CONFIG_STORE, FILE_WIFI_CONFIG_STORE_APEX));
+    }
+
+    /**
+     * Keep only the networks with a key, as enterprise-managed devices may have thousands of
+     * networks without
+     */
+    @Override
+    List<WifiNetwork> parse(Reader reader) throws IOException, XmlPullParserException {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>();
+        WifiConfigStoreParser.NetworkIterator iterator = WifiConfigStoreParser.iterate(reader);
+        try {
+            while (iterator.hasNext()) {
+                WifiNetwork wifiNetwork = iterator.next();
+                if (!wifiNetwork.getKey().isEmpty()) {
+                    wifiNetworks.add(wifiNetwork);
+                }
+            }
+            iterator.checkError();
+        } finally {
+            iterator.close();
+        }
+        if (iterator.getSkippedCount() > 0) {
+            Log.w(TAG, "Skipped " + iterator.getSkippedCount() + " malformed networks");
+        }
+        return wifiNetworks;
+    }
+}
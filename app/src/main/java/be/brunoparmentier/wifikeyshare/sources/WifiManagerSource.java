@@ -0,0 +1,73 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import android.net.wifi.WifiConfiguration;
+import android.net.wifi.WifiManager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Networks configured in the WifiManager, without their keys nor the unsupported EAP ones
+ */
+public class WifiManagerSource implements WifiNetworkSource {
+
+    private final WifiManager wifiManager;
+
+    public WifiManagerSource(WifiManager wifiManager) {
+        this.wifiManager = wifiManager;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    @Override
+    public List<WifiNetwork> load() {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>();
+        List<WifiConfiguration> savedWifiConfigs = wifiManager.getConfiguredNetworks();
+        if (savedWifiConfigs != null) {
+            for (WifiConfiguration wifiConfig : savedWifiConfigs) {
+                WifiNetwork wifiNetwork = WifiNetwork.fromWifiConfiguration(wifiConfig);
+                /* TODO: EAP networks are not yet supported */
+                if (!wifiNetwork.getSsid().isEmpty()
+                        && wifiNetwork.getAuthType() != WifiAuthType.WPA_EAP
+                        && wifiNetwork.getAuthType() != WifiAuthType.WPA2_EAP) {
+                    wifiNetworks.add(wifiNetwork);
+                }
+            }
+        }
+        return wifiNetworks;
+    }
+
+    @Override
+    public boolean isListing() {
+        return true;
+    }
+
+    @Override
+    public int getKeyPriority() {
+        return KEY_PRIORITY_NONE;
+    }
+}
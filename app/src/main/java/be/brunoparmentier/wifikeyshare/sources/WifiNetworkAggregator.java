@@ -0,0 +1,214 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Load several {@link WifiNetworkSource}s concurrently and merge their networks
+ *
+ * The networks of the listing source are delivered as soon as it completes, with the keys of
+ * the sources already completed. The keys of the slower sources are merged in as they complete,
+ * a key only replacing one of a source of lower priority. Sources are loaded on background
+ * threads and the listener is called on the main thread, unless the load has been cancelled.
+ */
+public class WifiNetworkAggregator {
+    private static final String TAG = WifiNetworkAggregator.class.getSimpleName();
+
+    private static final int MAX_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "WifiNetworkAggregator");
+                }
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    public interface Listener {
+        /**
+         * Called once, when the listing source has completed
+         *
+         * @param wifiNetworks the networks, sorted by SSID
+         */
+        void onNetworksListed(List<WifiNetwork> wifiNetworks);
+
+        /**
+         * Called when a source completed after the listing one changed some networks
+         *
+         * @param changeSet the positions of the listed networks whose key or visibility changed
+         */
+        void onNetworksUpdated(WifiNetworkChangeSet changeSet);
+
+        /**
+         * Called when a source cannot be loaded on this device, e.g. without root
+         */
+        void onSourceUnavailable(WifiNetworkSource source);
+
+        /**
+         * Called once, when all the sources have completed
+         */
+        void onLoadFinished();
+    }
+
+    private final List<WifiNetworkSource> sources;
+    private final Listener listener;
+    /* Key results received before the listing, merged in order of completion */
+    private final List<SourceResult> pendingResults = new ArrayList<>();
+    private List<WifiNetwork> listedNetworks;
+    private WifiNetworkMerger merger;
+    private int remainingSourceCount;
+    private volatile boolean isCancelled;
+
+    public WifiNetworkAggregator(List<WifiNetworkSource> sources, Listener listener) {
+        this.sources = sources;
+        this.listener = listener;
+    }
+
+    /**
+     * Start loading all the sources, from the main thread
+     */
+    public void load() {
+        remainingSourceCount = sources.size();
+        for (final WifiNetworkSource source : sources) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loadSource(source);
+                }
+            });
+        }
+    }
+
+    /**
+     * Stop delivering results, e.g. when the activity is destroyed
+     */
+    public void cancel() {
+        isCancelled = true;
+    }
+
+    private void loadSource(final WifiNetworkSource source) {
+        if (isCancelled) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        boolean isAvailable = false;
+        List<WifiNetwork> wifiNetworks = null;
+        /* A failing source counts as empty, the others and onLoadFinished must still be reported */
+        try {
+            isAvailable = source.isAvailable();
+            if (isAvailable) {
+                wifiNetworks = source.load();
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Cannot load " + source.getClass().getSimpleName(), e);
+        }
+        if (wifiNetworks == null) {
+            wifiNetworks = Collections.emptyList();
+        }
+        Log.d(TAG, source.getClass().getSimpleName() + " loaded in "
+                + (System.nanoTime() - startTime) / 1000000 + " ms: "
+                + wifiNetworks.size() + " networks");
+
+        final SourceResult result = new SourceResult(source, isAvailable, wifiNetworks);
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!isCancelled) {
+                    onSourceLoaded(result);
+                }
+            }
+        });
+    }
+
+    private void onSourceLoaded(SourceResult result) {
+        if (!result.isAvailable) {
+            listener.onSourceUnavailable(result.source);
+        }
+
+        if (result.source.isListing()) {
+            listedNetworks = new ArrayList<>(result.wifiNetworks);
+            Collections.sort(listedNetworks, new Comparator<WifiNetwork>() {
+                @Override
+                public int compare(WifiNetwork w1, WifiNetwork w2) {
+                    return w1.getSsid().toLowerCase().compareTo(w2.getSsid().toLowerCase());
+                }
+            });
+            merger = new WifiNetworkMerger(listedNetworks);
+            for (SourceResult pendingResult : pendingResults) {
+                merger.merge(pendingResult.wifiNetworks, pendingResult.source.getKeyPriority());
+            }
+            pendingResults.clear();
+            listener.onNetworksListed(listedNetworks);
+        } else if (listedNetworks == null) {
+            pendingResults.add(result);
+        } else {
+            WifiNetworkChangeSet changeSet =
+                    merger.merge(result.wifiNetworks, result.source.getKeyPriority());
+            if (!changeSet.isEmpty()) {
+                listener.onNetworksUpdated(changeSet);
+            }
+        }
+
+        remainingSourceCount--;
+        if (remainingSourceCount == 0) {
+            if (listedNetworks == null) {
+                /* No listing source */
+                listener.onNetworksListed(new ArrayList<WifiNetwork>());
+            }
+            listener.onLoadFinished();
+        }
+    }
+
+    private static class SourceResult {
+        final WifiNetworkSource source;
+        final boolean isAvailable;
+        final List<WifiNetwork> wifiNetworks;
+
+        SourceResult(WifiNetworkSource source, boolean isAvailable,
+                     List<WifiNetwork> wifiNetworks) {
+            this.source = source;
+            this.isAvailable = isAvailable;
+            this.wifiNetworks = wifiNetworks;
+        }
+    }
+}
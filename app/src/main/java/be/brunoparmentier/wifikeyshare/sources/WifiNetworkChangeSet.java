@@ -0,0 +1,70 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import java.util.BitSet;
+
+/**
+ * Positions of the networks changed by a merge, to notify an adapter in a single batch
+ */
+public class WifiNetworkChangeSet {
+
+    public interface Callback {
+        /**
+         * Called for every run of consecutive changed positions, in ascending order
+         */
+        void onChanged(int position, int count);
+    }
+
+    private final BitSet positions = new BitSet();
+
+    void add(int position) {
+        positions.set(position);
+    }
+
+    public boolean isEmpty() {
+        return positions.isEmpty();
+    }
+
+    /**
+     * @return the number of changed positions
+     */
+    public int size() {
+        return positions.cardinality();
+    }
+
+    /**
+     * @return the first changed position from the given one, or -1 if none
+     */
+    public int nextPosition(int fromPosition) {
+        return positions.nextSetBit(fromPosition);
+    }
+
+    /**
+     * Report the changed positions as ranges, e.g. to RecyclerView.Adapter#notifyItemRangeChanged
+     */
+    public void dispatchTo(Callback callback) {
+        for (int start = positions.nextSetBit(0); start >= 0;
+             start = positions.nextSetBit(start)) {
+            int end = positions.nextClearBit(start);
+            callback.onChanged(start, end - start);
+            start = end;
+        }
+    }
+}
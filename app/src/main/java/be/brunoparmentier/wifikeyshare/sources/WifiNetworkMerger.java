@@ -0,0 +1,186 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Merge the keys and visibility of other sources into a list of networks
+ *
+ * The listed networks are indexed once by SSID bytes and authentication family, so that every
+ * merge only costs a lookup per network of the source. All the listed networks sharing a key are
+ * updated together. Within a source, the first network with a key wins; across sources, a key
+ * only replaces one of a source of lower priority. Keys already set when the index is built are
+ * never replaced.
+ */
+public class WifiNetworkMerger {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int KEY_PRIORITY_INITIAL = Integer.MAX_VALUE;
+    private static final int KEY_PRIORITY_MISSING = Integer.MIN_VALUE;
+
+    private final List<WifiNetwork> listedNetworks;
+    /* Positions of the listed networks, by network key */
+    private final Map<NetworkKey, int[]> index;
+    /* Priority of the source of the current key of every listed network */
+    private final int[] keyPriorities;
+
+    public WifiNetworkMerger(List<WifiNetwork> listedNetworks) {
+        this.listedNetworks = listedNetworks;
+        index = new HashMap<>(listedNetworks.size() * 4 / 3 + 1);
+        keyPriorities = new int[listedNetworks.size()];
+        for (int i = 0; i < listedNetworks.size(); i++) {
+            WifiNetwork wifiNetwork = listedNetworks.get(i);
+            NetworkKey networkKey = new NetworkKey(wifiNetwork);
+            int[] positions = index.get(networkKey);
+            if (positions == null) {
+                index.put(networkKey, new int[] {i});
+            } else {
+                /* Duplicates are rare: grow the array by one */
+                int[] newPositions = Arrays.copyOf(positions, positions.length + 1);
+                newPositions[positions.length] = i;
+                index.put(networkKey, newPositions);
+            }
+            keyPriorities[i] = wifiNetwork.getKey().isEmpty()
+                    ? KEY_PRIORITY_MISSING : KEY_PRIORITY_INITIAL;
+        }
+    }
+
+    /**
+     * Merge the networks of a source into the listed networks
+     *
+     * @param sourceNetworks the networks of the source, in the order of the source
+     * @param keyPriority the priority of the keys of the source
+     * @return the positions of the listed networks that changed
+     */
+    public WifiNetworkChangeSet merge(List<WifiNetwork> sourceNetworks, int keyPriority) {
+        WifiNetworkChangeSet changeSet = new WifiNetworkChangeSet();
+        for (WifiNetwork sourceNetwork : sourceNetworks) {
+            int[] positions = index.get(new NetworkKey(sourceNetwork));
+            if (positions == null) {
+                continue;
+            }
+            String key = sourceNetwork.getKey();
+            for (int position : positions) {
+                WifiNetwork listedNetwork = listedNetworks.get(position);
+                if (!key.isEmpty() && keyPriority > keyPriorities[position]) {
+                    keyPriorities[position] = keyPriority;
+                    if (!key.equals(listedNetwork.getKey())) {
+                        listedNetwork.setKey(key);
+                        changeSet.add(position);
+                    }
+                }
+                /* The configuration files also know whether the network is hidden */
+                if (sourceNetwork.isHidden() && !listedNetwork.isHidden()) {
+                    listedNetwork.setHidden(true);
+                    changeSet.add(position);
+                }
+            }
+        }
+        return changeSet;
+    }
+
+    /**
+     * Count the networks of a source whose key is not the one of the listed network, e.g. after
+     * a merge where the listed network kept a key of higher priority
+     *
+     * @param sourceNetworks the networks of the source
+     * @return the number of listed networks of the source with another key
+     */
+    public int countOtherKeys(List<WifiNetwork> sourceNetworks) {
+        int count = 0;
+        for (WifiNetwork sourceNetwork : sourceNetworks) {
+            int[] positions = index.get(new NetworkKey(sourceNetwork));
+            if (positions == null || sourceNetwork.getKey().isEmpty()) {
+                continue;
+            }
+            for (int position : positions) {
+                if (!sourceNetwork.getKey().equals(listedNetworks.get(position).getKey())) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the listed networks at the given positions
+     */
+    public List<WifiNetwork> getNetworks(WifiNetworkChangeSet changeSet) {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>(changeSet.size());
+        for (int position = changeSet.nextPosition(0); position >= 0;
+             position = changeSet.nextPosition(position + 1)) {
+            wifiNetworks.add(listedNetworks.get(position));
+        }
+        return wifiNetworks;
+    }
+
+    /**
+     * Sources do not always agree on WPA versus WPA2, e.g. WifiConfigStore.xml only knows WPA_PSK
+     */
+    static WifiAuthType getAuthFamily(WifiAuthType authType) {
+        switch (authType) {
+            case WPA_PSK:
+                return WifiAuthType.WPA2_PSK;
+            case WPA_EAP:
+                return WifiAuthType.WPA2_EAP;
+            default:
+                return authType;
+        }
+    }
+
+    /**
+     * Canonical key of a network: its SSID bytes and authentication family
+     */
+    private static final class NetworkKey {
+        private final byte[] ssidBytes;
+        private final WifiAuthType authFamily;
+        private final int hashCode;
+
+        NetworkKey(WifiNetwork wifiNetwork) {
+            ssidBytes = wifiNetwork.getSsid().getBytes(UTF_8);
+            authFamily = getAuthFamily(wifiNetwork.getAuthType());
+            hashCode = 31 * Arrays.hashCode(ssidBytes) + authFamily.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof NetworkKey)) return false;
+            NetworkKey that = (NetworkKey) o;
+            return hashCode == that.hashCode
+                    && authFamily == that.authFamily
+                    && Arrays.equals(ssidBytes, that.ssidBytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
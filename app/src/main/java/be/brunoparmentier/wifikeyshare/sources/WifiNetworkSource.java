@@ -0,0 +1,62 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import java.io.IOException;
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Source of saved Wi-Fi networks, loaded by a {@link WifiNetworkAggregator}
+ *
+ * A listing source gives the networks shown to the user. The other sources only complete them
+ * with keys, or with whether they are hidden.
+ */
+public interface WifiNetworkSource {
+
+    /* Priorities of the keys of the sources, the highest one wins */
+    int KEY_PRIORITY_NONE = 0;
+    int KEY_PRIORITY_SAVED = 1;
+    int KEY_PRIORITY_SYSTEM = 2;
+
+    /**
+     * Called on a background thread before {@link #load()}
+     *
+     * @return whether the source can be loaded on this device
+     */
+    boolean isAvailable();
+
+    /**
+     * Load the networks, on a background thread
+     *
+     * @return the networks, with their key when known
+     */
+    List<WifiNetwork> load() throws IOException;
+
+    /**
+     * @return whether the networks of this source are shown
+     */
+    boolean isListing();
+
+    /**
+     * @return the priority of the keys of this source over the ones of other sources
+     */
+    int getKeyPriority();
+}
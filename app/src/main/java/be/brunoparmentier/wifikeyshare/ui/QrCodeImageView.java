@@ -0,0 +1,98 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.AttributeSet;
+import android.widget.ImageView;
+
+/**
+ * ImageView displaying a module-resolution QR code bitmap (one pixel per module)
+ *
+ * The bitmap is scaled by the largest integer factor that fits in the view, without filtering,
+ * so that every module is drawn as a sharp square of the same size.
+ */
+public class QrCodeImageView extends ImageView {
+
+    private final Matrix scaleMatrix = new Matrix();
+
+    public QrCodeImageView(Context context) {
+        super(context);
+        setScaleType(ScaleType.MATRIX);
+    }
+
+    public QrCodeImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        setScaleType(ScaleType.MATRIX);
+    }
+
+    public QrCodeImageView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        setScaleType(ScaleType.MATRIX);
+    }
+
+    @Override
+    public void setImageBitmap(Bitmap bitmap) {
+        if (bitmap == null) {
+            setImageDrawable(null);
+            return;
+        }
+        BitmapDrawable drawable = new BitmapDrawable(getResources(), bitmap);
+        drawable.setFilterBitmap(false);
+        drawable.setAntiAlias(false);
+        setImageDrawable(drawable);
+    }
+
+    @Override
+    public void setImageDrawable(Drawable drawable) {
+        super.setImageDrawable(drawable);
+        updateScaleMatrix();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        updateScaleMatrix();
+    }
+
+    private void updateScaleMatrix() {
+        Drawable drawable = getDrawable();
+        int availableWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        int availableHeight = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (drawable == null || availableWidth <= 0 || availableHeight <= 0) {
+            return;
+        }
+
+        int drawableWidth = drawable.getIntrinsicWidth();
+        int drawableHeight = drawable.getIntrinsicHeight();
+        if (drawableWidth <= 0 || drawableHeight <= 0) {
+            return;
+        }
+
+        int scale = Math.max(1, Math.min(availableWidth / drawableWidth, availableHeight / drawableHeight));
+        scaleMatrix.setScale(scale, scale);
+        scaleMatrix.postTranslate((availableWidth - drawableWidth * scale) / 2,
+                (availableHeight - drawableHeight * scale) / 2);
+        setImageMatrix(scaleMatrix);
+    }
+}
@@ -37,10 +37,16 @@ import android.nfc.Tag;
 import android.os.Bundle;
 import android.os.Handler;
 import android.support.v7.app.AlertDialog;
+import android.text.TextUtils;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import be.brunoparmentier.wifikeyshare.R;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 import be.brunoparmentier.wifikeyshare.utils.NfcUtils;
 
 public class ConfirmConnectToWifiNetworkActivity extends Activity {
@@ -48,8 +54,9 @@ public class ConfirmConnectToWifiNetworkActivity extends Activity {
     private static final String TAG = ConfirmConnectToWifiNetworkActivity.class.getSimpleName();
 
     public static final int ENABLE_WIFI_TIMEOUT_MILLIS = 5000;
+    public static final String EXTRA_WIFI_NETWORK = "wifi_network";
 
-    private WifiConfiguration wifiConfiguration;
+    private List<WifiConfiguration> wifiConfigurations;
     private AlertDialog alertDialog;
     private boolean isEnableWifiInProgress;
     private Handler handler;
@@ -57,16 +64,23 @@ public class ConfirmConnectToWifiNetworkActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
-        Tag tag = getIntent().getParcelableExtra(NfcAdapter.EXTRA_TAG);
-
-        wifiConfiguration = NfcUtils.readTag(tag);
+        WifiNetwork wifiNetwork = (WifiNetwork) getIntent().getSerializableExtra(EXTRA_WIFI_NETWORK);
+        if (wifiNetwork != null) {
+            /* Wi-Fi configuration read from a QR code */
+            wifiConfigurations = Collections.singletonList(wifiNetwork.toWifiConfiguration());
+        } else {
+            Tag tag = getIntent().getParcelableExtra(NfcAdapter.EXTRA_TAG);
+            wifiConfigurations = NfcUtils.readTag(tag);
+        }
 
-        if (wifiConfiguration != null) {
-            String printableSsid = getPrintableSsid(wifiConfiguration.SSID);
+        if (!wifiConfigurations.isEmpty()) {
+            int promptResId = wifiConfigurations.size() == 1
+                    ? R.string.confirm_connection_prompt_connect_to_network
+                    : R.string.confirm_connection_prompt_connect_to_networks;
             alertDialog = new AlertDialog.Builder(this)
                     .setTitle(R.string.confirm_connection_title_connect_to_network)
-                    .setMessage(String.format(getResources().getString(R.string.confirm_connection_prompt_connect_to_network),
-                            printableSsid))
+                    .setMessage(String.format(getResources().getString(promptResId),
+                            getPrintableSsids(wifiConfigurations)))
                     .setOnDismissListener(new DialogInterface.OnDismissListener() {
                         @Override
                         public void onDismiss(DialogInterface dialogInterface) {
@@ -121,8 +135,19 @@ public class ConfirmConnectToWifiNetworkActivity extends Activity {
         super.onCreate(savedInstanceState);
     }
 
+    /**
+     * Add all the Wi-Fi configurations and connect to the first one that could be added
+     */
     private void doConnect(WifiManager wifiManager) {
-        int networkId = wifiManager.addNetwork(wifiConfiguration);
+        int networkId = -1;
+        for (WifiConfiguration wifiConfiguration : wifiConfigurations) {
+            int addedNetworkId = wifiManager.addNetwork(wifiConfiguration);
+            if (addedNetworkId < 0) {
+                Log.w(TAG, "Unable to add network " + wifiConfiguration.SSID);
+            } else if (networkId < 0) {
+                networkId = addedNetworkId;
+            }
+        }
 
         if (networkId < 0) {
             showFailToast();
@@ -157,7 +182,7 @@ public class ConfirmConnectToWifiNetworkActivity extends Activity {
             String action = intent.getAction();
             if (action.equals(WifiManager.WIFI_STATE_CHANGED_ACTION)) {
                 int wifiState = intent.getIntExtra(WifiManager.EXTRA_WIFI_STATE, 0);
-                if (wifiConfiguration != null
+                if (wifiConfigurations != null && !wifiConfigurations.isEmpty()
                         && wifiState == WifiManager.WIFI_STATE_ENABLED) {
                     if (getAndClearEnableWifiInProgress()) {
                         doConnect(
@@ -180,6 +205,14 @@ public class ConfirmConnectToWifiNetworkActivity extends Activity {
         return enableWifiInProgress;
     }
 
+    private static String getPrintableSsids(List<WifiConfiguration> wifiConfigurations) {
+        List<String> printableSsids = new ArrayList<>(wifiConfigurations.size());
+        for (WifiConfiguration wifiConfiguration : wifiConfigurations) {
+            printableSsids.add(getPrintableSsid(wifiConfiguration.SSID));
+        }
+        return TextUtils.join(", ", printableSsids);
+    }
+
     private static String getPrintableSsid(String ssid) {
         if (ssid == null) return "";
 
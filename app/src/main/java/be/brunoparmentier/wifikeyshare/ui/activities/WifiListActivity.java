@@ -18,17 +18,24 @@
 
 package be.brunoparmentier.wifikeyshare.ui.activities;
 
+import android.app.PendingIntent;
+import android.app.ProgressDialog;
 import android.content.BroadcastReceiver;
+import android.content.ClipData;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.net.wifi.WifiConfiguration;
+import android.net.Uri;
 import android.net.wifi.WifiManager;
+import android.nfc.NfcAdapter;
+import android.nfc.Tag;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
+import android.support.v4.content.FileProvider;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.support.v7.widget.DefaultItemAnimator;
@@ -42,47 +49,72 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.TextView;
+import android.widget.Toast;
 
-import org.xmlpull.v1.XmlPullParserException;
-
-import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 
+import be.brunoparmentier.wifikeyshare.BuildConfig;
 import be.brunoparmentier.wifikeyshare.R;
 import be.brunoparmentier.wifikeyshare.adapters.WifiNetworkAdapter;
 import be.brunoparmentier.wifikeyshare.db.WifiKeysDataSource;
 import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+import be.brunoparmentier.wifikeyshare.sources.RootFileSource;
+import be.brunoparmentier.wifikeyshare.sources.SavedKeysSource;
+import be.brunoparmentier.wifikeyshare.sources.WifiConfigStoreSource;
+import be.brunoparmentier.wifikeyshare.sources.WifiManagerSource;
+import be.brunoparmentier.wifikeyshare.sources.WifiNetworkAggregator;
+import be.brunoparmentier.wifikeyshare.sources.WifiNetworkChangeSet;
+import be.brunoparmentier.wifikeyshare.sources.WifiNetworkMerger;
+import be.brunoparmentier.wifikeyshare.sources.WifiNetworkSource;
+import be.brunoparmentier.wifikeyshare.sources.WpaSupplicantSource;
 import be.brunoparmentier.wifikeyshare.ui.AboutDialog;
 import be.brunoparmentier.wifikeyshare.ui.ContextMenuRecyclerView;
 import be.brunoparmentier.wifikeyshare.ui.DividerItemDecoration;
-import be.brunoparmentier.wifikeyshare.utils.WifiConfigStoreParser;
-import be.brunoparmentier.wifikeyshare.utils.WpaSupplicantParser;
-import eu.chainfire.libsuperuser.Shell;
+import be.brunoparmentier.wifikeyshare.utils.NfcTagWriter;
+import be.brunoparmentier.wifikeyshare.utils.QrCodeImporter;
+import be.brunoparmentier.wifikeyshare.utils.QrCodeSheetExporter;
+import be.brunoparmentier.wifikeyshare.utils.TagCapacityCache;
+import be.brunoparmentier.wifikeyshare.utils.TagMessagePlan;
+import be.brunoparmentier.wifikeyshare.utils.TagWriteSession;
+import be.brunoparmentier.wifikeyshare.utils.WifiNetworkPrefetcher;
 
 public class WifiListActivity extends AppCompatActivity {
     private static final String TAG = WifiListActivity.class.getSimpleName();
 
-    private static final String FILE_WIFI_SUPPLICANT = "/data/misc/wifi/wpa_supplicant.conf";
-    private static final String FILE_WIFI_CONFIG_STORE = "/data/misc/wifi/WifiConfigStore.xml";
+    private static final String FILE_PROVIDER_AUTHORITY =
+            BuildConfig.APPLICATION_ID + ".fileprovider";
 
     private static final int PASSWORD_REQUEST = 1;
+    private static final int IMPORT_QR_CODES_REQUEST = 2;
     private static final String KEY_NETWORK_ID = "network_id";
     private static final String PREF_KEY_HAS_READ_NO_ROOT_DIALOG = "has_read_no_root_dialog";
 
+    /* Latency of the list loads, with (cold) and without (warm) the start of a root shell */
+    private static int coldLoadCount;
+    private static long coldLoadTotalMillis;
+    private static int warmLoadCount;
+    private static long warmLoadTotalMillis;
+
     private List<WifiNetwork> wifiNetworks;
     private WifiNetworkAdapter wifiNetworkAdapter;
     private ContextMenuRecyclerView rvWifiNetworks;
     private WifiManager wifiManager;
+    private WifiNetworkAggregator wifiNetworkAggregator;
     private boolean isDeviceRooted = false;
     private int networkIdToUpdate = -1; // index of item to update in networks list
     private BroadcastReceiver wifiStateChangeBroadcastReceiver;
     private boolean waitingForWifiToTurnOn;
+    private NfcAdapter nfcAdapter;
+    /* Session writing the selected networks to a tag, null outside of the tag write mode */
+    private TagWriteSession tagWriteSession;
+    private int tagWriteNetworkCount;
+    private NfcTagWriter.Request tagWriteRequest;
+    private AlertDialog writeTagDialog;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -93,6 +125,7 @@ public class WifiListActivity extends AppCompatActivity {
         setSupportActionBar(toolbar);
 
         wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        nfcAdapter = NfcAdapter.getDefaultAdapter(this);
 
         /* Enable Wi-Fi if disabled */
         if (!wifiManager.isWifiEnabled()) {
@@ -122,6 +155,23 @@ public class WifiListActivity extends AppCompatActivity {
         rvWifiNetworks.setItemAnimator(new DefaultItemAnimator());
         registerForContextMenu(rvWifiNetworks);
 
+        /* Prefetch the QR codes and NDEF messages of the visible networks when scrolling stops */
+        rvWifiNetworks.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    WifiNetworkPrefetcher.prefetch(getVisibleWifiNetworks());
+                }
+            }
+
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (recyclerView.getScrollState() != RecyclerView.SCROLL_STATE_IDLE) {
+                    WifiNetworkPrefetcher.retain(getVisibleWifiNetworks());
+                }
+            }
+        });
+
         //rvWifiNetworks.setItemAnimator(new SlideInUpAnimator());
         //rvWifiNetworks.getItemAnimator().setAddDuration(1000);
 
@@ -136,7 +186,7 @@ public class WifiListActivity extends AppCompatActivity {
         */
 
         if (!waitingForWifiToTurnOn) {
-            (new WifiListTask()).execute();
+            loadWifiNetworks();
         }
     }
 
@@ -151,7 +201,7 @@ public class WifiListActivity extends AppCompatActivity {
 
                     if (isConnected) {
                         if (waitingForWifiToTurnOn) {
-                            (new WifiListTask()).execute();
+                            loadWifiNetworks();
                         }
                     }
                 }
@@ -187,6 +237,10 @@ public class WifiListActivity extends AppCompatActivity {
             }
             networkIdToUpdate = -1;
         }
+        prefetchVisibleWifiNetworks();
+        if (tagWriteSession != null) {
+            startForegroundDispatch();
+        }
         super.onResume();
     }
 
@@ -195,19 +249,71 @@ public class WifiListActivity extends AppCompatActivity {
         if (waitingForWifiToTurnOn) {
             unregisterReceiver(wifiStateChangeBroadcastReceiver);
         }
+        if (tagWriteSession != null) {
+            nfcAdapter.disableForegroundDispatch(this);
+        }
         super.onPause();
     }
 
+    @Override
+    protected void onDestroy() {
+        if (wifiNetworkAggregator != null) {
+            wifiNetworkAggregator.cancel();
+        }
+        if (tagWriteRequest != null) {
+            tagWriteRequest.cancel();
+        }
+        WifiNetworkPrefetcher.cancelAll();
+        super.onDestroy();
+    }
+
+    /**
+     * Prefetch the QR codes and NDEF messages of the visible networks once the list is laid out
+     */
+    private void prefetchVisibleWifiNetworks() {
+        rvWifiNetworks.post(new Runnable() {
+            @Override
+            public void run() {
+                WifiNetworkPrefetcher.prefetch(getVisibleWifiNetworks());
+            }
+        });
+    }
+
+    private List<WifiNetwork> getVisibleWifiNetworks() {
+        LinearLayoutManager layoutManager = (LinearLayoutManager) rvWifiNetworks.getLayoutManager();
+        int firstPosition = layoutManager.findFirstVisibleItemPosition();
+        int lastPosition = layoutManager.findLastVisibleItemPosition();
+        if (firstPosition == RecyclerView.NO_POSITION || lastPosition == RecyclerView.NO_POSITION) {
+            return new ArrayList<>();
+        }
+        return new ArrayList<>(wifiNetworks.subList(firstPosition,
+                Math.min(lastPosition + 1, wifiNetworks.size())));
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_wifi_list, menu);
+        menu.findItem(R.id.action_write_networks_to_tag).setVisible(nfcAdapter != null);
         return true;
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
+            case R.id.action_export_qr_codes:
+                exportQrCodes();
+                return true;
+            case R.id.action_write_networks_to_tag:
+                selectNetworksToWrite();
+                return true;
+            case R.id.action_import_qr_codes:
+                Intent importIntent = new Intent(Intent.ACTION_GET_CONTENT)
+                        .setType("image/*")
+                        .addCategory(Intent.CATEGORY_OPENABLE)
+                        .putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+                startActivityForResult(importIntent, IMPORT_QR_CODES_REQUEST);
+                return true;
             case R.id.action_settings:
                 Intent settingsIntent = new Intent(this, SettingsActivity.class);
                 startActivity(settingsIntent);
@@ -300,132 +406,453 @@ public class WifiListActivity extends AppCompatActivity {
                 networkIdToUpdate = data.getIntExtra(KEY_NETWORK_ID, -1);
             }
         }
+        if (requestCode == IMPORT_QR_CODES_REQUEST) {
+            if (resultCode == RESULT_OK && data != null) {
+                List<Uri> imageUris = new ArrayList<>();
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                        && data.getClipData() != null) {
+                    ClipData clipData = data.getClipData();
+                    for (int i = 0; i < clipData.getItemCount(); i++) {
+                        imageUris.add(clipData.getItemAt(i).getUri());
+                    }
+                } else if (data.getData() != null) {
+                    imageUris.add(data.getData());
+                }
+                new ImportQrCodesTask(imageUris).execute();
+            }
+        }
     }
 
-    private class WifiListTask extends AsyncTask<Void, Void, List<WifiNetwork>> {
+    /**
+     * Load the networks of the WifiManager and complete them with the keys of the other sources,
+     * all loaded concurrently
+     */
+    private void loadWifiNetworks() {
+        final long startTime = SystemClock.elapsedRealtime();
+        final RootFileSource rootFileSource = Build.VERSION.SDK_INT < Build.VERSION_CODES.O
+                ? new WpaSupplicantSource() : new WifiConfigStoreSource();
+        List<WifiNetworkSource> sources = Arrays.asList(new WifiManagerSource(wifiManager),
+                rootFileSource, new SavedKeysSource());
+
+        if (wifiNetworkAggregator != null) {
+            wifiNetworkAggregator.cancel();
+        }
+        wifiNetworkAggregator = new WifiNetworkAggregator(sources, new WifiNetworkAggregator.Listener() {
+            private boolean isRootAvailable = true;
 
-        @Override
-        protected List<WifiNetwork> doInBackground(Void... params) {
+            @Override
+            public void onNetworksListed(List<WifiNetwork> listedNetworks) {
+                Log.d(TAG, "Wi-Fi list shown in " + (SystemClock.elapsedRealtime() - startTime)
+                        + " ms");
+                if (waitingForWifiToTurnOn) {
+                    wifiManager.setWifiEnabled(false);
+                    waitingForWifiToTurnOn = false;
+                    unregisterReceiver(wifiStateChangeBroadcastReceiver);
+                }
 
-            List<WifiNetwork> wifiManagerNetworks = new ArrayList<>();
-            List<WifiConfiguration> savedWifiConfigs = wifiManager.getConfiguredNetworks();
-            if (waitingForWifiToTurnOn) {
-                wifiManager.setWifiEnabled(false);
-                waitingForWifiToTurnOn = false;
-                unregisterReceiver(wifiStateChangeBroadcastReceiver);
+                /* Changes are reported by position in the listed networks */
+                int positionStart = wifiNetworks.size();
+                wifiNetworks.addAll(listedNetworks);
+                wifiNetworkAdapter.notifyItemRangeInserted(positionStart, listedNetworks.size());
+                prefetchVisibleWifiNetworks();
             }
 
-            /* Populate WifiNetwork list from WifiManager */
-            if (savedWifiConfigs != null) {
-                for (WifiConfiguration wifiConfig : savedWifiConfigs) {
-                    WifiNetwork newNetwork = WifiNetwork.fromWifiConfiguration(wifiConfig);
-                    if (!newNetwork.getSsid().isEmpty()) {
-                        wifiManagerNetworks.add(newNetwork);
-                    }
-                }
+            @Override
+            public void onNetworksUpdated(WifiNetworkChangeSet changeSet) {
+                notifyWifiNetworksChanged(changeSet);
+                prefetchVisibleWifiNetworks();
             }
 
-            /* Get passwords from wpa_supplicant if root is available */
-            if (Shell.SU.available()) {
-                isDeviceRooted = true;
+            @Override
+            public void onSourceUnavailable(WifiNetworkSource source) {
+                if (source == rootFileSource) {
+                    isRootAvailable = false;
+                    showNoRootDialog();
+                }
+            }
 
-                String wifiFile;
-                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                    wifiFile = FILE_WIFI_SUPPLICANT;
+            @Override
+            public void onLoadFinished() {
+                isDeviceRooted = isRootAvailable;
+                long loadMillis = SystemClock.elapsedRealtime() - startTime;
+                boolean isColdLoad = rootFileSource.hasStartedShell();
+                if (isColdLoad) {
+                    coldLoadCount++;
+                    coldLoadTotalMillis += loadMillis;
                 } else {
-                    wifiFile = FILE_WIFI_CONFIG_STORE;
+                    warmLoadCount++;
+                    warmLoadTotalMillis += loadMillis;
                 }
-                List<String> result = Shell.SU.run("cat " + wifiFile);
-                String strRes = "";
-                for (String line : result) {
-                    strRes += line + "\n";
-                    //Log.d(TAG, line);
+                Log.d(TAG, String.format("Wi-Fi list loaded in %d ms (%s), average: cold %d ms (%d), "
+                                + "warm %d ms (%d)", loadMillis, isColdLoad ? "cold" : "warm",
+                        coldLoadCount > 0 ? coldLoadTotalMillis / coldLoadCount : 0, coldLoadCount,
+                        warmLoadCount > 0 ? warmLoadTotalMillis / warmLoadCount : 0, warmLoadCount));
+            }
+        });
+        wifiNetworkAggregator.load();
+    }
+
+    private void showNoRootDialog() {
+        boolean hasReadNoRootDialog = PreferenceManager
+                .getDefaultSharedPreferences(WifiListActivity.this)
+                .getBoolean(PREF_KEY_HAS_READ_NO_ROOT_DIALOG, false);
+        if (!hasReadNoRootDialog) {
+            new AlertDialog.Builder(WifiListActivity.this)
+                    .setTitle(getString(R.string.wifilist_dialog_noroot_title))
+                    .setMessage(getString(R.string.wifilist_dialog_noroot_msg))
+                    .setPositiveButton(getString(R.string.action_got_it), new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialogInterface, int i) {
+                            PreferenceManager.getDefaultSharedPreferences(WifiListActivity.this)
+                                    .edit()
+                                    .putBoolean(PREF_KEY_HAS_READ_NO_ROOT_DIALOG, true)
+                                    .apply();
+                            dialogInterface.dismiss();
+                        }
+                    })
+                    .setCancelable(false)
+                    .create()
+                    .show();
+        }
+    }
+
+    private void exportQrCodes() {
+        List<WifiNetwork> exportableNetworks = new ArrayList<>();
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            if (!wifiNetwork.needsPassword()) {
+                exportableNetworks.add(wifiNetwork);
+            }
+        }
+
+        if (exportableNetworks.isEmpty()) {
+            Toast.makeText(this, R.string.wifilist_export_nothing, Toast.LENGTH_LONG).show();
+        } else {
+            new ExportQrCodesTask(exportableNetworks).execute();
+        }
+    }
+
+    /**
+     * Export the QR codes of the given networks to a PDF document (or PNG pages before KitKat)
+     * in the app-private cache, then share it through the FileProvider
+     *
+     * The export holds every password in clear, so it is never written to external storage.
+     */
+    private class ExportQrCodesTask extends AsyncTask<Void, Integer, QrCodeSheetExporter.Result> {
+
+        private static final String EXPORT_DIRECTORY = "exports";
+        private static final String EXPORT_BASE_NAME = "wifi-qr-codes";
+
+        private final List<WifiNetwork> exportedNetworks;
+        private ProgressDialog progressDialog;
+        private File exportDirectory;
+
+        ExportQrCodesTask(List<WifiNetwork> exportedNetworks) {
+            this.exportedNetworks = exportedNetworks;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            exportDirectory = new File(getCacheDir(), EXPORT_DIRECTORY);
+
+            progressDialog = new ProgressDialog(WifiListActivity.this);
+            progressDialog.setMessage(getString(R.string.wifilist_export_progress));
+            progressDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            progressDialog.setMax(exportedNetworks.size());
+            progressDialog.setCancelable(false);
+            progressDialog.show();
+        }
+
+        @Override
+        protected QrCodeSheetExporter.Result doInBackground(Void... params) {
+            QrCodeSheetExporter exporter = new QrCodeSheetExporter();
+            QrCodeSheetExporter.ProgressListener listener = new QrCodeSheetExporter.ProgressListener() {
+                @Override
+                public void onProgress(int exportedCount, int totalCount) {
+                    publishProgress(exportedCount);
                 }
-                List<WifiNetwork> wifiNetworksFromRoot = new ArrayList<>();
-                try {
-                    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
-                        wifiNetworksFromRoot = WpaSupplicantParser.parse(strRes);
-                    } else {
-                        wifiNetworksFromRoot = WifiConfigStoreParser.parse(
-                                new ByteArrayInputStream(strRes.getBytes(StandardCharsets.UTF_8)));
+            };
+
+            try {
+                /* Drop the previous export, which may have more pages */
+                File[] previousFiles = exportDirectory.listFiles();
+                if (previousFiles != null) {
+                    for (File previousFile : previousFiles) {
+                        if (!previousFile.delete()) {
+                            Log.e(TAG, "Cannot delete " + previousFile);
+                        }
                     }
-                } catch (XmlPullParserException | IOException e) {
-                    e.printStackTrace();
+                } else if (!exportDirectory.mkdirs()) {
+                    throw new IOException("Cannot create " + exportDirectory);
                 }
 
-                for (WifiNetwork wifiManagerNetwork : wifiManagerNetworks) {
-                    if (wifiManagerNetwork.getAuthType() != WifiAuthType.OPEN) {
-                        for (WifiNetwork wpaSupplicantNetwork : wifiNetworksFromRoot) {
-                            if (wifiManagerNetwork.getSsid().equals(wpaSupplicantNetwork.getSsid())) {
-                                wifiManagerNetwork.setKey(wpaSupplicantNetwork.getKey());
-                                break;
-                            }
-                        }
-                    }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    return exporter.exportPdf(exportedNetworks, exportDirectory, EXPORT_BASE_NAME, listener);
+                } else {
+                    return exporter.exportPng(exportedNetworks, exportDirectory, EXPORT_BASE_NAME, listener);
                 }
+            } catch (IOException e) {
+                Log.e(TAG, "Exporting QR codes failed", e);
+                return null;
+            } finally {
+                exporter.shutdown();
             }
+        }
 
-            Collections.sort(wifiManagerNetworks, new Comparator<WifiNetwork>() {
-                @Override
-                public int compare(WifiNetwork w1, WifiNetwork w2) {
-                    return w1.getSsid().toLowerCase().compareTo(w2.getSsid().toLowerCase());
-                }
-            });
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            progressDialog.setProgress(values[0]);
+        }
+
+        @Override
+        protected void onPostExecute(QrCodeSheetExporter.Result result) {
+            progressDialog.dismiss();
+            if (result == null) {
+                Toast.makeText(WifiListActivity.this, R.string.error_export_qr_codes,
+                        Toast.LENGTH_LONG).show();
+            } else {
+                Log.d(TAG, String.format("Exported %d QR codes at %.1f codes/s",
+                        result.getCodeCount(), result.getCodesPerSecond()));
+                shareExport(result);
+            }
+        }
+
+        private void shareExport(QrCodeSheetExporter.Result result) {
+            boolean isPdf = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+            String extension = isPdf ? ".pdf" : ".png";
+            String mimeType = isPdf ? "application/pdf" : "image/png";
+
+            /* Large PDF exports are split into several documents */
+            ArrayList<Uri> fileUris = new ArrayList<>();
+            for (int i = 1; i <= result.getFileCount(); i++) {
+                fileUris.add(getExportUri(EXPORT_BASE_NAME + "-" + i + extension));
+            }
+            Intent shareIntent;
+            if (fileUris.size() == 1) {
+                shareIntent = new Intent(Intent.ACTION_SEND)
+                        .setType(mimeType)
+                        .putExtra(Intent.EXTRA_STREAM, fileUris.get(0));
+            } else {
+                shareIntent = new Intent(Intent.ACTION_SEND_MULTIPLE)
+                        .setType(mimeType)
+                        .putParcelableArrayListExtra(Intent.EXTRA_STREAM, fileUris);
+            }
+            shareIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            startActivity(Intent.createChooser(shareIntent,
+                    getString(R.string.wifilist_export_share, result.getCodeCount())));
+        }
 
-            return wifiManagerNetworks;
+        private Uri getExportUri(String fileName) {
+            return FileProvider.getUriForFile(WifiListActivity.this, FILE_PROVIDER_AUTHORITY,
+                    new File(exportDirectory, fileName));
+        }
+    }
+
+    /**
+     * Decode the Wi-Fi QR codes of the given images and save their keys. When a single network
+     * is found, the user is also offered to connect to it.
+     */
+    private class ImportQrCodesTask extends AsyncTask<Void, Void, List<WifiNetwork>> {
+
+        private final List<Uri> imageUris;
+        private ProgressDialog progressDialog;
+
+        ImportQrCodesTask(List<Uri> imageUris) {
+            this.imageUris = imageUris;
         }
 
         @Override
-        protected void onPostExecute(List<WifiNetwork> wifiManagerNetworks) {
-            for (WifiNetwork wifiNetwork : wifiManagerNetworks) {
-                /* TODO: EAP networks are not yet supported */
-                if (wifiNetwork.getAuthType() != WifiAuthType.WPA_EAP
-                        && wifiNetwork.getAuthType() != WifiAuthType.WPA2_EAP) {
-                    wifiNetworks.add(wifiNetwork);
-                    wifiNetworkAdapter.notifyItemInserted(wifiNetworkAdapter.getItemCount() - 1);
+        protected void onPreExecute() {
+            progressDialog = new ProgressDialog(WifiListActivity.this);
+            progressDialog.setMessage(getString(R.string.wifilist_import_progress));
+            progressDialog.setIndeterminate(true);
+            progressDialog.setCancelable(false);
+            progressDialog.show();
+        }
+
+        @Override
+        protected List<WifiNetwork> doInBackground(Void... params) {
+            QrCodeImporter importer = new QrCodeImporter(WifiListActivity.this);
+            try {
+                List<WifiNetwork> importedNetworks = importer.importWifiNetworks(imageUris);
+                for (WifiNetwork importedNetwork : importedNetworks) {
+                    if (importedNetwork.isPasswordProtected()) {
+                        WifiKeysDataSource.getInstance().removeWifiKey(
+                                importedNetwork.getSsid(), importedNetwork.getAuthType());
+                        WifiKeysDataSource.getInstance().insertWifiKey(importedNetwork);
+                    }
                 }
+                return importedNetworks;
+            } finally {
+                importer.shutdown();
             }
-            if (!isDeviceRooted) {
-                setSavedKeysToWifiNetworks();
-
-                boolean hasReadNoRootDialog = PreferenceManager
-                        .getDefaultSharedPreferences(WifiListActivity.this)
-                        .getBoolean(PREF_KEY_HAS_READ_NO_ROOT_DIALOG, false);
-                if (!hasReadNoRootDialog) {
-                    new AlertDialog.Builder(WifiListActivity.this)
-                            .setTitle(getString(R.string.wifilist_dialog_noroot_title))
-                            .setMessage(getString(R.string.wifilist_dialog_noroot_msg))
-                            .setPositiveButton(getString(R.string.action_got_it), new DialogInterface.OnClickListener() {
-                                @Override
-                                public void onClick(DialogInterface dialogInterface, int i) {
-                                    PreferenceManager.getDefaultSharedPreferences(WifiListActivity.this)
-                                            .edit()
-                                            .putBoolean(PREF_KEY_HAS_READ_NO_ROOT_DIALOG, true)
-                                            .apply();
-                                    dialogInterface.dismiss();
-                                }
-                            })
-                            .setCancelable(false)
-                            .create()
-                            .show();
-                }
+        }
+
+        @Override
+        protected void onPostExecute(List<WifiNetwork> importedNetworks) {
+            progressDialog.dismiss();
+            if (importedNetworks.isEmpty()) {
+                Toast.makeText(WifiListActivity.this, R.string.wifilist_import_nothing,
+                        Toast.LENGTH_LONG).show();
+                return;
+            }
+
+            setSavedKeysToWifiNetworks();
+            prefetchVisibleWifiNetworks();
+
+            /* The keys read from the system are not replaced by the imported ones */
+            int keptCount = new WifiNetworkMerger(wifiNetworks).countOtherKeys(importedNetworks);
+            String message = keptCount == 0
+                    ? getString(R.string.wifilist_import_done, importedNetworks.size())
+                    : getString(R.string.wifilist_import_done_kept, importedNetworks.size(),
+                            keptCount);
+            Toast.makeText(WifiListActivity.this, message, Toast.LENGTH_LONG).show();
+
+            if (importedNetworks.size() == 1) {
+                Intent connectIntent = new Intent(WifiListActivity.this,
+                        ConfirmConnectToWifiNetworkActivity.class)
+                        .putExtra(ConfirmConnectToWifiNetworkActivity.EXTRA_WIFI_NETWORK,
+                                importedNetworks.get(0));
+                startActivity(connectIntent);
             }
         }
     }
 
-    private void setSavedKeysToWifiNetworks() {
-        List<WifiNetwork> wifiNetworksWithKey = WifiKeysDataSource.getInstance().getSavedWifiWithKeys();
+    /**
+     * Let the user pick the networks to write together to a single NFC tag
+     */
+    private void selectNetworksToWrite() {
+        final List<WifiNetwork> writableNetworks = new ArrayList<>();
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            /* Writing WEP configurations is not supported */
+            if (!wifiNetwork.needsPassword() && wifiNetwork.getAuthType() != WifiAuthType.WEP) {
+                writableNetworks.add(wifiNetwork);
+            }
+        }
+        if (writableNetworks.isEmpty()) {
+            Toast.makeText(this, R.string.wifilist_write_tag_nothing, Toast.LENGTH_LONG).show();
+            return;
+        }
+        if (!nfcAdapter.isEnabled()) {
+            Toast.makeText(this, R.string.error_turn_nfc_on, Toast.LENGTH_LONG).show();
+            return;
+        }
+
+        String[] ssids = new String[writableNetworks.size()];
+        final boolean[] checkedItems = new boolean[writableNetworks.size()];
+        for (int i = 0; i < ssids.length; i++) {
+            ssids[i] = writableNetworks.get(i).getSsid();
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.wifilist_write_tag_select)
+                .setMultiChoiceItems(ssids, checkedItems, new DialogInterface.OnMultiChoiceClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i, boolean isChecked) {
+                        checkedItems[i] = isChecked;
+                    }
+                })
+                .setPositiveButton(R.string.write_to_tag, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        /* The list items are mutable, write a snapshot in the order of the list */
+                        List<WifiNetwork> selectedNetworks = new ArrayList<>();
+                        for (int j = 0; j < checkedItems.length; j++) {
+                            if (checkedItems[j]) {
+                                WifiNetwork wifiNetwork = writableNetworks.get(j);
+                                selectedNetworks.add(new WifiNetwork(wifiNetwork.getSsid(),
+                                        wifiNetwork.getAuthType(), wifiNetwork.getKey(),
+                                        wifiNetwork.isHidden()));
+                            }
+                        }
+                        if (!selectedNetworks.isEmpty()) {
+                            enableTagWriteMode(selectedNetworks);
+                        }
+                    }
+                })
+                .setNegativeButton(R.string.action_cancel, null)
+                .show();
+    }
 
-        for (int i = 0; i < wifiNetworks.size(); i++) {
-            for (int j = 0; j < wifiNetworksWithKey.size(); j++) {
-                if (wifiNetworks.get(i).getSsid().equals(wifiNetworksWithKey.get(j).getSsid())
-                        && wifiNetworks.get(i).getAuthType() == wifiNetworksWithKey.get(j).getAuthType()) {
-                    if (wifiNetworks.get(i).needsPassword()) {
-                        wifiNetworks.get(i).setKey(wifiNetworksWithKey.get(j).getKey());
-                        wifiNetworkAdapter.notifyItemChanged(i);
+    /**
+     * Write the most of the given networks that fit to the next tag presented
+     *
+     * @param selectedNetworks the networks to write, by decreasing priority
+     */
+    private void enableTagWriteMode(final List<WifiNetwork> selectedNetworks) {
+        tagWriteNetworkCount = selectedNetworks.size();
+        tagWriteSession = new TagWriteSession(TagMessagePlan.forWifiNetworks(selectedNetworks),
+                false, TagWriteSession.RetryPolicy.DEFAULT, TagCapacityCache.getInstance());
+        writeTagDialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.write_to_tag)
+                .setMessage(getString(R.string.wifilist_write_tag_msg, selectedNetworks.size()))
+                .setNegativeButton(R.string.action_cancel, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        disableTagWriteMode();
                     }
+                })
+                .setCancelable(false)
+                .show();
+        startForegroundDispatch();
+    }
+
+    private void disableTagWriteMode() {
+        nfcAdapter.disableForegroundDispatch(this);
+        tagWriteSession = null;
+        if (tagWriteRequest != null) {
+            tagWriteRequest.cancel();
+            tagWriteRequest = null;
+        }
+        writeTagDialog.dismiss();
+    }
+
+    private void startForegroundDispatch() {
+        PendingIntent nfcPendingIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, getClass()).addFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP), 0);
+        /* No filter: every discovered tag is dispatched to this activity */
+        nfcAdapter.enableForegroundDispatch(this, nfcPendingIntent, null, null);
+    }
+
+    @Override
+    protected void onNewIntent(Intent intent) {
+        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+        if (tag == null || tagWriteSession == null || tagWriteRequest != null) {
+            return;
+        }
+
+        final int selectedCount = tagWriteNetworkCount;
+        final TagWriteSession session = tagWriteSession;
+        tagWriteRequest = NfcTagWriter.write(session, tag, new NfcTagWriter.Callback() {
+            @Override
+            public void onTagWritten(TagWriteSession.Result result) {
+                tagWriteRequest = null;
+                if (result == TagWriteSession.Result.WRITTEN) {
+                    Toast.makeText(WifiListActivity.this, getString(R.string.wifilist_write_tag_done,
+                            session.getLastNetworkCount(), selectedCount), Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(WifiListActivity.this,
+                            WifiNetworkActivity.getTagWriteResultMessage(result),
+                            Toast.LENGTH_LONG).show();
                 }
+                disableTagWriteMode();
             }
-        }
+        });
+    }
+
+    private void setSavedKeysToWifiNetworks() {
+        List<WifiNetwork> wifiNetworksWithKey = WifiKeysDataSource.getInstance().getSavedWifiWithKeys();
+
+        /* Only the networks without key get one */
+        WifiNetworkChangeSet changeSet = new WifiNetworkMerger(wifiNetworks)
+                .merge(wifiNetworksWithKey, WifiNetworkSource.KEY_PRIORITY_SAVED);
+        notifyWifiNetworksChanged(changeSet);
+    }
+
+    private void notifyWifiNetworksChanged(WifiNetworkChangeSet changeSet) {
+        changeSet.dispatchTo(new WifiNetworkChangeSet.Callback() {
+            @Override
+            public void onChanged(int position, int count) {
+                wifiNetworkAdapter.notifyItemRangeChanged(position, count);
+            }
+        });
     }
 }
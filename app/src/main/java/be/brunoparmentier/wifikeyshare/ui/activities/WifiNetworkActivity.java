@@ -20,13 +20,16 @@ package be.brunoparmentier.wifikeyshare.ui.activities;
 
 import android.app.PendingIntent;
 import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.nfc.NfcAdapter;
 import android.nfc.Tag;
+import android.nfc.cardemulation.CardEmulation;
 import android.os.Build;
 import android.os.Bundle;
 import android.provider.Settings;
@@ -44,7 +47,6 @@ import android.text.InputFilter;
 import android.text.InputType;
 import android.text.Spanned;
 import android.text.TextWatcher;
-import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -56,19 +58,29 @@ import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.EditText;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import com.google.zxing.WriterException;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import be.brunoparmentier.wifikeyshare.R;
 import be.brunoparmentier.wifikeyshare.db.WifiKeysDataSource;
 import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiException;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+import be.brunoparmentier.wifikeyshare.services.NdefHostApduService;
 import be.brunoparmentier.wifikeyshare.ui.AboutDialog;
+import be.brunoparmentier.wifikeyshare.utils.NfcTagWriter;
 import be.brunoparmentier.wifikeyshare.utils.NfcUtils;
-import be.brunoparmentier.wifikeyshare.utils.QrCodeUtils;
+import be.brunoparmentier.wifikeyshare.utils.QrCodeGenerator;
+import be.brunoparmentier.wifikeyshare.utils.TagCapacityCache;
+import be.brunoparmentier.wifikeyshare.utils.TagMessagePlan;
+import be.brunoparmentier.wifikeyshare.utils.TagWriteSession;
+import be.brunoparmentier.wifikeyshare.utils.WifiNetworkPrefetcher;
 
 public class WifiNetworkActivity extends AppCompatActivity {
 
@@ -83,6 +95,11 @@ public class WifiNetworkActivity extends AppCompatActivity {
     private NfcAdapter nfcAdapter;
     private BroadcastReceiver nfcStateChangeBroadcastReceiver;
     private AlertDialog writeTagDialog;
+    private final List<NfcTagWriter.Request> tagWriteRequests = new ArrayList<>();
+    private TagWriteSession batchWriteSession;
+    private AlertDialog batchWriteDialog;
+    private TextView batchWriteLastResultTextView;
+    private TextView batchWriteStatusTextView;
     private int screenWidth;
     private PendingIntent nfcPendingIntent;
     private IntentFilter[] nfcIntentFilters;
@@ -134,7 +151,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
         if (isNfcAvailable()) {
             initializeNfcStateChangeListener();
             setupForegroundDispatch();
-            nfcAdapter.setNdefPushMessage(NfcUtils.generateNdefMessage(wifiNetwork), this);
+            nfcAdapter.setNdefPushMessage(WifiNetworkPrefetcher.getNdefMessage(wifiNetwork), this);
         }
     }
 
@@ -234,6 +251,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
 
                         wifiPasswordWrapper.setError(null);
                         wifiNetwork.setKey(passwordEditText.getText().toString());
+                        updateEmulatedTag();
 
                         // Update QR code image
                         FragmentManager fm = getSupportFragmentManager();
@@ -315,6 +333,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
         if (isNfcAvailable()) {
             stopForegroundDispatch();
             unregisterReceiver(nfcStateChangeBroadcastReceiver);
+            stopTagEmulation();
         }
     }
 
@@ -325,9 +344,50 @@ public class WifiNetworkActivity extends AppCompatActivity {
             IntentFilter filter = new IntentFilter(NfcAdapter.ACTION_ADAPTER_STATE_CHANGED);
             registerReceiver(nfcStateChangeBroadcastReceiver, filter);
             startForegroundDispatch();
+            updateEmulatedTag();
+        }
+    }
+
+    private boolean isTagEmulationAvailable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                && getPackageManager().hasSystemFeature(PackageManager.FEATURE_NFC_HOST_CARD_EMULATION);
+    }
+
+    /**
+     * Let another phone read the network as a tag while this activity is in the foreground
+     */
+    private void updateEmulatedTag() {
+        if (!isTagEmulationAvailable()) {
+            return;
+        }
+        if (wifiNetwork.getAuthType() == WifiAuthType.WEP || wifiNetwork.needsPassword()) {
+            NdefHostApduService.setNdefMessage(null);
+            return;
+        }
+        NdefHostApduService.setNdefMessage(WifiNetworkPrefetcher.getNdefMessage(wifiNetwork));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            /* Take precedence over other services registered for the NDEF tag application */
+            CardEmulation.getInstance(nfcAdapter).setPreferredService(this,
+                    new ComponentName(this, NdefHostApduService.class));
+        }
+    }
+
+    private void stopTagEmulation() {
+        if (!isTagEmulationAvailable()) {
+            return;
+        }
+        NdefHostApduService.setNdefMessage(null);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            CardEmulation.getInstance(nfcAdapter).unsetPreferredService(this);
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        cancelTagWriteRequests();
+        super.onDestroy();
+    }
+
     private void enableTagWriteMode() {
         isInWriteMode = true;
         writeTagDialog.show();
@@ -335,9 +395,110 @@ public class WifiNetworkActivity extends AppCompatActivity {
 
     private void disableTagWriteMode() {
         isInWriteMode = false;
+        cancelTagWriteRequests();
         writeTagDialog.dismiss();
     }
 
+    /**
+     * Write every tag presented until the dialog is closed
+     */
+    private void enableBatchWriteMode() {
+        final View batchWriteDialogLayout = getLayoutInflater().inflate(R.layout.dialog_batch_write, null);
+        batchWriteLastResultTextView = (TextView) batchWriteDialogLayout.findViewById(R.id.batch_write_last_result);
+        batchWriteStatusTextView = (TextView) batchWriteDialogLayout.findViewById(R.id.batch_write_status);
+        final CheckBox verifyCheckBox = (CheckBox) batchWriteDialogLayout.findViewById(R.id.batch_write_verify_checkbox);
+
+        batchWriteSession = new TagWriteSession(TagMessagePlan.forWifiNetwork(wifiNetwork),
+                verifyCheckBox.isChecked(), TagWriteSession.RetryPolicy.DEFAULT,
+                TagCapacityCache.getInstance());
+        verifyCheckBox.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener() {
+            @Override
+            public void onCheckedChanged(CompoundButton compoundButton, boolean isChecked) {
+                if (batchWriteSession != null) {
+                    batchWriteSession.setVerify(isChecked);
+                }
+            }
+        });
+
+        batchWriteDialog = new AlertDialog.Builder(this)
+                .setTitle(getString(R.string.batch_write_to_tags))
+                .setMessage(getString(R.string.batch_write_msg))
+                .setView(batchWriteDialogLayout)
+                .setNegativeButton(getString(R.string.action_close), new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        disableBatchWriteMode();
+                    }
+                })
+                .setCancelable(false)
+                .create();
+        updateBatchWriteStatus();
+        batchWriteDialog.show();
+    }
+
+    private void disableBatchWriteMode() {
+        Log.d(TAG, "Batch write: " + batchWriteSession.getWrittenCount() + " tags written, "
+                + batchWriteSession.getFailedCount() + " failures");
+        batchWriteSession = null;
+        cancelTagWriteRequests();
+        batchWriteDialog.dismiss();
+    }
+
+    /**
+     * Write the given tag in the background, until the write mode is left
+     *
+     * Only the pending writes are kept, so that a long batch does not pile up requests.
+     */
+    private void writeTag(TagWriteSession session, Tag tag, final NfcTagWriter.Callback callback) {
+        /* The callback is posted to the main thread, after the request has been stored */
+        final NfcTagWriter.Request[] request = new NfcTagWriter.Request[1];
+        request[0] = NfcTagWriter.write(session, tag, new NfcTagWriter.Callback() {
+            @Override
+            public void onTagWritten(TagWriteSession.Result result) {
+                tagWriteRequests.remove(request[0]);
+                callback.onTagWritten(result);
+            }
+        });
+        tagWriteRequests.add(request[0]);
+    }
+
+    private void cancelTagWriteRequests() {
+        for (NfcTagWriter.Request request : tagWriteRequests) {
+            request.cancel();
+        }
+        tagWriteRequests.clear();
+    }
+
+    private void updateBatchWriteStatus() {
+        batchWriteStatusTextView.setText(String.format(getString(R.string.batch_write_status),
+                batchWriteSession.getWrittenCount(),
+                batchWriteSession.getFailedCount(),
+                batchWriteSession.getAlreadyWrittenCount(),
+                batchWriteSession.getTagsPerMinute(),
+                batchWriteSession.getAverageWriteLatencyMillis()));
+    }
+
+    static int getTagWriteResultMessage(TagWriteSession.Result result) {
+        switch (result) {
+            case WRITTEN:
+                return R.string.batch_write_result_written;
+            case ALREADY_WRITTEN:
+                return R.string.batch_write_result_already_written;
+            case NOT_SUPPORTED:
+                return R.string.batch_write_result_not_supported;
+            case NOT_WRITABLE:
+                return R.string.batch_write_result_not_writable;
+            case TOO_SMALL:
+                return R.string.batch_write_result_too_small;
+            case VERIFICATION_FAILED:
+                return R.string.batch_write_result_verification_failed;
+            case TIMED_OUT:
+                return R.string.batch_write_result_timed_out;
+            default:
+                return R.string.error_nfc_tag_write;
+        }
+    }
+
     protected boolean isNfcAvailable() {
         return (nfcAdapter != null);
     }
@@ -355,6 +516,15 @@ public class WifiNetworkActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * Update the warning shown when the network does not fit on the last tag used
+     */
+    private void onTagCapacityChanged() {
+        FragmentManager fm = getSupportFragmentManager();
+        NfcFragment nfcFragment = (NfcFragment) fm.getFragments().get(1);
+        nfcFragment.updateCapacityWarning();
+    }
+
     protected void onNfcDisabled() {
         if (wifiNetwork.getAuthType() != WifiAuthType.WEP) { // writing WEP config is not supported
             // Update NFC write button and status text
@@ -405,20 +575,42 @@ public class WifiNetworkActivity extends AppCompatActivity {
         Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
         String action = intent.getAction();
         Log.d(TAG, "handleIntent: action=" + action);
-        if (isInWriteMode) {
-            /* Write tag */
-            Log.d(TAG, "Writing tag");
+        if (batchWriteSession != null) {
+            /* Write tag, staying in write mode */
             if (NfcAdapter.ACTION_TAG_DISCOVERED.equals(action)
                     || NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action)) {
-
-                if (NfcUtils.writeTag(wifiNetwork, tag)) {
-                    Toast.makeText(this, R.string.nfc_tag_written, Toast.LENGTH_LONG)
-                            .show();
-                } else {
-                    Toast.makeText(this, R.string.error_nfc_tag_write, Toast.LENGTH_LONG)
-                            .show();
-                }
-                disableTagWriteMode();
+                writeTag(batchWriteSession, tag, new NfcTagWriter.Callback() {
+                    @Override
+                    public void onTagWritten(TagWriteSession.Result result) {
+                        batchWriteLastResultTextView.setText(getTagWriteResultMessage(result));
+                        updateBatchWriteStatus();
+                        onTagCapacityChanged();
+                    }
+                });
+            }
+        } else if (isInWriteMode) {
+            /* Write tag */
+            Log.d(TAG, "Writing tag");
+            if ((NfcAdapter.ACTION_TAG_DISCOVERED.equals(action)
+                    || NfcAdapter.ACTION_NDEF_DISCOVERED.equals(action))
+                    && tagWriteRequests.isEmpty()) {
+                TagWriteSession session = new TagWriteSession(
+                        TagMessagePlan.forWifiNetwork(wifiNetwork), false,
+                        TagWriteSession.RetryPolicy.DEFAULT, TagCapacityCache.getInstance());
+                writeTag(session, tag, new NfcTagWriter.Callback() {
+                    @Override
+                    public void onTagWritten(TagWriteSession.Result result) {
+                        if (result == TagWriteSession.Result.WRITTEN) {
+                            Toast.makeText(WifiNetworkActivity.this, R.string.nfc_tag_written,
+                                    Toast.LENGTH_LONG).show();
+                        } else {
+                            Toast.makeText(WifiNetworkActivity.this,
+                                    getTagWriteResultMessage(result), Toast.LENGTH_LONG).show();
+                        }
+                        disableTagWriteMode();
+                        onTagCapacityChanged();
+                    }
+                });
             }
         } else {
             /* Read tag */
@@ -485,6 +677,8 @@ public class WifiNetworkActivity extends AppCompatActivity {
     public static class QrCodeFragment extends Fragment {
 
         private ImageView qrCodeImageView;
+        private ProgressBar qrCodeProgressBar;
+        private QrCodeGenerator.Request qrCodeRequest;
 
         public QrCodeFragment() {
         }
@@ -500,6 +694,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container,
                                  Bundle savedInstanceState) {
+            long startTime = System.nanoTime();
             View rootView = inflater.inflate(R.layout.fragment_qrcode, container, false);
 
             WifiNetwork wifiNetwork = (WifiNetwork) getArguments().getSerializable(KEY_WIFI_NETWORK);
@@ -511,21 +706,53 @@ public class WifiNetworkActivity extends AppCompatActivity {
                     // TODO: show fullscreen QR code
                 }
             });
+            qrCodeProgressBar = (ProgressBar) rootView.findViewById(R.id.qr_code_progress);
 
             updateQrCode(wifiNetwork);
 
+            Log.d(TAG, "QrCodeFragment.onCreateView: main thread time "
+                    + (System.nanoTime() - startTime) / 1000 + " us");
             return rootView;
         }
 
+        @Override
+        public void onDestroyView() {
+            cancelQrCodeRequest();
+            super.onDestroyView();
+        }
+
+        /**
+         * Generate the QR code of the given Wi-Fi configuration in the background, superseding
+         * any pending generation. A progress indicator is shown in the meantime.
+         *
+         * @param wifiNetwork the Wi-Fi configuration to show
+         */
         public void updateQrCode(WifiNetwork wifiNetwork) {
-            DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
-            float widthInDp = 200f;
-            int widthInPixels = (int) (metrics.density * widthInDp + 0.5f);
-            try {
-                Bitmap qrCodeBitmap = QrCodeUtils.generateWifiQrCode(widthInPixels, wifiNetwork);
-                qrCodeImageView.setImageBitmap(qrCodeBitmap);
-            } catch (final WriterException e) {
-                Log.d(TAG, e.getMessage());
+            cancelQrCodeRequest();
+            qrCodeImageView.setImageDrawable(null);
+            qrCodeProgressBar.setVisibility(View.VISIBLE);
+
+            qrCodeRequest = QrCodeGenerator.generateWifiQrCodeModules(wifiNetwork,
+                    new QrCodeGenerator.Callback() {
+                        @Override
+                        public void onQrCodeGenerated(Bitmap bitmap) {
+                            qrCodeProgressBar.setVisibility(View.GONE);
+                            /* Scaled up by QrCodeImageView */
+                            qrCodeImageView.setImageBitmap(bitmap);
+                        }
+
+                        @Override
+                        public void onQrCodeError(WriterException e) {
+                            qrCodeProgressBar.setVisibility(View.GONE);
+                            Log.d(TAG, e.getMessage());
+                        }
+                    });
+        }
+
+        private void cancelQrCodeRequest() {
+            if (qrCodeRequest != null) {
+                qrCodeRequest.cancel();
+                qrCodeRequest = null;
             }
         }
     }
@@ -534,8 +761,10 @@ public class WifiNetworkActivity extends AppCompatActivity {
 
         private WifiNetwork wifiNetwork;
         private Button writeTagButton;
+        private Button batchWriteButton;
         private TextView nfcStatusTextView;
         private Button nfcSettingsButton;
+        private TextView capacityWarningTextView;
 
         public NfcFragment() {
         }
@@ -563,8 +792,18 @@ public class WifiNetworkActivity extends AppCompatActivity {
                 }
             });
 
+            batchWriteButton = (Button) rootView.findViewById(R.id.nfc_batch_write_button);
+            batchWriteButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View view) {
+                    ((WifiNetworkActivity) getActivity()).enableBatchWriteMode();
+                }
+            });
+
             nfcStatusTextView = (TextView) rootView.findViewById(R.id.nfc_status);
 
+            capacityWarningTextView = (TextView) rootView.findViewById(R.id.nfc_capacity_warning);
+
             nfcSettingsButton = (Button) rootView.findViewById(R.id.open_nfc_settings);
             nfcSettingsButton.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -588,6 +827,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
 
             if (wifiNetwork.getAuthType() == WifiAuthType.WEP) {
                 writeTagButton.setEnabled(false);
+                batchWriteButton.setEnabled(false);
                 nfcStatusTextView.setText(R.string.error_wep_to_nfc_not_supported);
                 nfcStatusTextView.setVisibility(View.VISIBLE);
             } else {
@@ -602,11 +842,32 @@ public class WifiNetworkActivity extends AppCompatActivity {
                     setNfcStateAvailable(true);
                     setNfcStateEnabled(true);
                 }
+                updateCapacityWarning();
+            }
+        }
+
+        /**
+         * Warn when even the smallest message of the network does not fit on the last tag used
+         */
+        public void updateCapacityWarning() {
+            /* The key may have been entered after the creation of the fragment */
+            WifiNetwork currentWifiNetwork = ((WifiNetworkActivity) getActivity()).wifiNetwork;
+            int requiredSize = TagMessagePlan.forWifiNetwork(currentWifiNetwork).getMinimalSize();
+            int lastTagCapacity = TagCapacityCache.getInstance().getLastTagCapacity();
+
+            if (lastTagCapacity != TagCapacityCache.UNKNOWN_CAPACITY
+                    && requiredSize > lastTagCapacity) {
+                capacityWarningTextView.setText(String.format(
+                        getString(R.string.nfc_capacity_warning), requiredSize, lastTagCapacity));
+                capacityWarningTextView.setVisibility(View.VISIBLE);
+            } else {
+                capacityWarningTextView.setVisibility(View.GONE);
             }
         }
 
         public void setNfcStateEnabled(boolean enabled) {
             writeTagButton.setEnabled(enabled);
+            batchWriteButton.setEnabled(enabled);
             if (enabled) {
                 nfcSettingsButton.setVisibility(View.GONE);
                 nfcStatusTextView.setVisibility(View.GONE);
@@ -620,6 +881,7 @@ public class WifiNetworkActivity extends AppCompatActivity {
 
         public void setNfcStateAvailable(boolean available) {
             writeTagButton.setEnabled(available);
+            batchWriteButton.setEnabled(available);
             if (available) {
                 nfcStatusTextView.setVisibility(View.GONE);
                 nfcStatusTextView.setText(null);
@@ -0,0 +1,231 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Encrypted disk cache of the networks parsed from the root configuration files
+ *
+ * Every entry is stored with the fingerprint of the files it was parsed from (see
+ * {@link RootShell#statFiles(List)}), so that the files only need to be read again once they
+ * changed. Entries are encrypted with AES-GCM by a key of the Android keystore, which is why the
+ * cache is only available since Android 6.0, and kept out of backups.
+ */
+public class CredentialCache {
+    private static final String TAG = CredentialCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "credential_cache";
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "credential_cache";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int GCM_TAG_LENGTH = 128;
+    private static final int FORMAT_VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static CredentialCache instance;
+
+    private final File directory;
+    private SecretKey key;
+
+    public static void init(Context context) {
+        if (instance == null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            instance = new CredentialCache(new File(context.getNoBackupFilesDir(), CACHE_DIRECTORY),
+                    null);
+        }
+    }
+
+    /**
+     * @return the cache, or null before Android 6.0
+     */
+    public static CredentialCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param directory the directory of the entries
+     * @param key the encryption key, or null to use the one of the Android keystore
+     */
+    CredentialCache(File directory, SecretKey key) {
+        this.directory = directory;
+        this.key = key;
+    }
+
+    /**
+     * Get the networks of a source, if its files did not change
+     *
+     * @param name the name of the source
+     * @param fingerprint the current fingerprint of the files of the source
+     * @return the cached networks, or null if missing or outdated
+     */
+    public synchronized List<WifiNetwork> get(String name, String fingerprint) {
+        File file = getFile(name);
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            byte[] iv;
+            byte[] encrypted;
+            try {
+                iv = new byte[in.readUnsignedByte()];
+                in.readFully(iv);
+                encrypted = new byte[(int) file.length() - 1 - iv.length];
+                in.readFully(encrypted);
+            } finally {
+                in.close();
+            }
+
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getKey(), new GCMParameterSpec(GCM_TAG_LENGTH, iv));
+            cipher.updateAAD(name.getBytes(UTF_8));
+            ObjectInputStream entry = new ObjectInputStream(
+                    new ByteArrayInputStream(cipher.doFinal(encrypted)));
+            if (entry.readInt() != FORMAT_VERSION || !fingerprint.equals(entry.readUTF())) {
+                return null;
+            }
+            @SuppressWarnings("unchecked")
+            List<WifiNetwork> wifiNetworks = (List<WifiNetwork>) entry.readObject();
+            return wifiNetworks;
+        } catch (IOException | GeneralSecurityException | ClassNotFoundException
+                | ClassCastException e) {
+            /* E.g. the key was lost with a new lock screen: the entry is useless */
+            Log.w(TAG, "Cannot read cached networks of " + name, e);
+            if (!file.delete()) {
+                Log.e(TAG, "Cannot delete " + file);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Store the networks of a source
+     *
+     * @param name the name of the source
+     * @param fingerprint the fingerprint of the files of the source, taken before reading them
+     * @param wifiNetworks the networks parsed from the files
+     */
+    public synchronized void put(String name, String fingerprint, List<WifiNetwork> wifiNetworks) {
+        File file = getFile(name);
+        File temporaryFile = new File(directory, file.getName() + ".tmp");
+        try {
+            ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+            ObjectOutputStream entry = new ObjectOutputStream(plaintext);
+            entry.writeInt(FORMAT_VERSION);
+            entry.writeUTF(fingerprint);
+            entry.writeObject(new ArrayList<>(wifiNetworks));
+            entry.close();
+
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getKey());
+            cipher.updateAAD(name.getBytes(UTF_8));
+            byte[] encrypted = cipher.doFinal(plaintext.toByteArray());
+            byte[] iv = cipher.getIV();
+
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temporaryFile));
+            try {
+                out.writeByte(iv.length);
+                out.write(iv);
+                out.write(encrypted);
+            } finally {
+                out.close();
+            }
+            if (!temporaryFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + temporaryFile);
+            }
+        } catch (IOException | GeneralSecurityException e) {
+            Log.e(TAG, "Cannot cache networks of " + name, e);
+            if (temporaryFile.exists() && !temporaryFile.delete()) {
+                Log.e(TAG, "Cannot delete " + temporaryFile);
+            }
+        }
+    }
+
+    /**
+     * Remove all the entries
+     */
+    public synchronized void clear() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    Log.e(TAG, "Cannot delete " + file);
+                }
+            }
+        }
+    }
+
+    private File getFile(String name) {
+        return new File(directory, name);
+    }
+
+    private SecretKey getKey() throws GeneralSecurityException, IOException {
+        if (key == null) {
+            key = loadKeystoreKey();
+        }
+        return key;
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private static SecretKey loadKeystoreKey() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+        keyStore.load(null);
+        if (keyStore.containsAlias(KEY_ALIAS)) {
+            return (SecretKey) keyStore.getKey(KEY_ALIAS, null);
+        }
+        KeyGenerator keyGenerator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+        keyGenerator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                .build());
+        return keyGenerator.generateKey();
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.nfc.Tag;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write NFC tags on a dedicated background thread
+ *
+ * Tags are written one at a time, in the order they were presented, with the timeouts and
+ * retries of their {@link TagWriteSession}. Results are delivered on the main thread through a
+ * {@link Callback}, unless the request has been cancelled in the meantime.
+ */
+public class NfcTagWriter {
+    private static final String TAG = NfcTagWriter.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    return new Thread(runnable, "NfcTagWriter");
+                }
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private NfcTagWriter() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread when the tag has been processed
+         *
+         * @param result the result of the write
+         */
+        void onTagWritten(TagWriteSession.Result result);
+    }
+
+    /**
+     * A pending tag write, which can be cancelled from the main thread
+     */
+    public static class Request {
+        private volatile boolean isCancelled;
+        private Future<?> future;
+
+        /**
+         * Cancel the request. Its callback will not be called after this method returns. A write
+         * already in progress is completed.
+         */
+        public void cancel() {
+            isCancelled = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    /**
+     * Write the message of the session to the given tag in the background
+     *
+     * Must be called from the main thread.
+     *
+     * @param session the write session
+     * @param tag the tag to write
+     * @param callback the callback receiving the result on the main thread
+     * @return the request, to be cancelled when its result is no longer needed
+     */
+    public static Request write(final TagWriteSession session, final Tag tag,
+                                final Callback callback) {
+        final Request request = new Request();
+        request.future = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                long startTime = System.nanoTime();
+                final TagWriteSession.Result result = session.write(tag);
+                Log.d(TAG, "Tag processed in " + (System.nanoTime() - startTime) / 1000000
+                        + " ms: " + result);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!request.isCancelled()) {
+                            callback.onTagWritten(result);
+                        }
+                    }
+                });
+            }
+        });
+        return request;
+    }
+}
@@ -23,13 +23,14 @@ import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
 import android.nfc.Tag;
 import android.nfc.tech.Ndef;
-import android.nfc.tech.NdefFormatable;
 import android.util.Log;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 import be.brunoparmentier.wifikeyshare.BuildConfig;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
@@ -40,8 +41,10 @@ import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 public class NfcUtils {
     private static final String TAG = NfcUtils.class.getSimpleName();
 
-    private static final String PACKAGE_NAME = BuildConfig.APPLICATION_ID;
+    static final String PACKAGE_NAME = BuildConfig.APPLICATION_ID;
     public static final String NFC_TOKEN_MIME_TYPE = "application/vnd.wfa.wsc";
+    private static final byte[] NFC_TOKEN_MIME_TYPE_BYTES =
+            NFC_TOKEN_MIME_TYPE.getBytes(Charset.forName("US-ASCII"));
     /*
      * ID into configuration record for SSID and Network Key in hex.
      * Obtained from WFA Wi-Fi Simple Configuration Technical Specification v2.0.5.
@@ -79,276 +82,105 @@ public class NfcUtils {
     public static final int MAX_NETWORK_KEY_SIZE_BYTES = 64;
 
     /**
-     * Write the given Wi-Fi configuration to the NFC tag.
-     *
-     * The tag is NDEF-formatted with the application/vnd.wfa.wsc MIME type
+     * Generate an NDEF message containing the given Wi-Fi configuration
      *
-     * @param wifiNetwork the Wi-Fi configuration to write to the tag
-     * @param tag the tag to write
-     * @return true if the configuration has successfully been written to the tag, false otherwise
+     * @param wifiNetwork the Wi-Fi configuration to convert
+     * @return an NDEF message containing the given Wi-Fi configuration
      */
-    public static boolean writeTag(WifiNetwork wifiNetwork, Tag tag) {
-        return NfcUtils.writeTag(generateNdefMessage(wifiNetwork), tag);
+    public static NdefMessage generateNdefMessage(WifiNetwork wifiNetwork) {
+        return generateNdefMessage(Collections.singletonList(wifiNetwork), true);
     }
 
     /**
-     * Write the given NDEF message to the NFC tag.
-     *
-     * The NDEF message should contain two NDEF records: the actual Wi-Fi configuration and an
-     * AAR (Android Application Record) with the application package id.
-     * If the message size is greater than the maximum writable size, the AAR is removed from the
-     * NDEF message. If it is still too big, the message is not written.
+     * Generate an NDEF message containing the given Wi-Fi configurations in a single WSC token
      *
-     * @param message the NDEF message to write
-     * @param tag the NFC tag
-     * @return true if the NDEF message was successfully written to the tag, false otherwise
+     * @param wifiNetworks the Wi-Fi configurations to convert
+     * @param withAar whether to add an AAR (Android Application Record) to the message
+     * @return an NDEF message containing one credential per Wi-Fi configuration
      */
-    private static boolean writeTag(NdefMessage message, Tag tag) {
-        int messageSize = message.toByteArray().length;
-
-        try {
-            Ndef ndef = Ndef.get(tag);
-            if (ndef != null) {
-                ndef.connect();
-                if (!ndef.isWritable()) {
-                    Log.w(TAG, "Tag not writable");
-                    return false;
-                }
-                int ndefMaxSize = ndef.getMaxSize();
-                if (messageSize > ndefMaxSize) {
-                    /* Try to write the NDEF message without the Android Application Record */
-                    NdefMessage newMessage = new NdefMessage(new NdefRecord[]{message.getRecords()[0]});
-                    int newMessageSize = newMessage.toByteArray().length;
-                    if (newMessageSize > ndefMaxSize) {
-                        Log.w(TAG, "Tag too small");
-                        return false;
-                    } else {
-                        Log.d(TAG, "Writing tag without AAR");
-                        ndef.writeNdefMessage(newMessage);
-                        return true;
-                    }
-                }
-                ndef.writeNdefMessage(message);
-                return true;
-            } else {
-                NdefFormatable ndefFormatable = NdefFormatable.get(tag);
-                if (ndefFormatable != null) {
-                    try {
-                        ndefFormatable.connect();
-                        ndefFormatable.format(message); // FIXME: try without AAR if message too big
-                        return true;
-                    } catch (IOException e) {
-                        Log.w(TAG, "Tag not formatted");
-                        return false;
-                    }
-                } else {
-                    Log.d(TAG, "ndefFormatable is null");
-                    return false;
-                }
-            }
-        } catch (Exception e) {
-            Log.w(TAG, "Writing to tag failed", e);
-            return false;
-        }
+    public static NdefMessage generateNdefMessage(List<WifiNetwork> wifiNetworks, boolean withAar) {
+        return generateNdefMessage(WscTokenPacker.encodePayload(wifiNetworks), withAar);
     }
 
     /**
-     * Generate an NDEF message containing the given Wi-Fi configuration
+     * Generate an NDEF message containing the given Wi-Fi configurations in a single WSC token
      *
-     * @param wifiNetwork the Wi-Fi configuration to convert
-     * @return an NDEF message containing the given Wi-Fi configuration
+     * @param wifiNetworks the Wi-Fi configurations to convert
+     * @param withOptionalAttributes whether to add the network index and MAC address attributes
+     * @param withAar whether to add an AAR (Android Application Record) to the message
+     * @return an NDEF message containing one credential per Wi-Fi configuration
      */
-    public static NdefMessage generateNdefMessage(WifiNetwork wifiNetwork) {
-        byte[] payload = generateNdefPayload(wifiNetwork);
+    static NdefMessage generateNdefMessage(List<WifiNetwork> wifiNetworks,
+                                           boolean withOptionalAttributes, boolean withAar) {
+        return generateNdefMessage(
+                WscTokenPacker.encodePayload(wifiNetworks, withOptionalAttributes), withAar);
+    }
 
+    private static NdefMessage generateNdefMessage(byte[] payload, boolean withAar) {
         NdefRecord mimeRecord = new NdefRecord(
                 NdefRecord.TNF_MIME_MEDIA,
-                NfcUtils.NFC_TOKEN_MIME_TYPE.getBytes(Charset.forName("US-ASCII")),
+                NFC_TOKEN_MIME_TYPE_BYTES,
                 new byte[0],
                 payload);
-        NdefRecord aarRecord = NdefRecord.createApplicationRecord(PACKAGE_NAME);
-
-        return new NdefMessage(new NdefRecord[] {mimeRecord, aarRecord});
-    }
-
-    private static byte[] generateNdefPayload(WifiNetwork wifiNetwork) {
-        String ssid = wifiNetwork.getSsid();
-        short ssidSize = (short) ssid.getBytes().length;
 
-        short authType;
-        switch (wifiNetwork.getAuthType()) {
-            case WPA_PSK:
-                authType = AUTH_TYPE_WPA_PSK;
-                break;
-            case WPA2_PSK:
-                authType = AUTH_TYPE_WPA2_PSK;
-                break;
-            case WPA_EAP:
-                authType = AUTH_TYPE_WPA_EAP;
-                break;
-            case WPA2_EAP:
-                authType = AUTH_TYPE_WPA2_EAP;
-                break;
-            default:
-                authType = AUTH_TYPE_OPEN;
-                break;
+        if (!withAar) {
+            return new NdefMessage(new NdefRecord[] {mimeRecord});
         }
-
-        /*short encType;
-        switch (wifiNetwork.getEncType()) {
-            case WEP:
-                encType = ENC_TYPE_WEP;
-                break;
-            case TKIP:
-                encType = ENC_TYPE_TKIP;
-                break;
-            case AES:
-                encType = ENC_TYPE_AES;
-                break;
-            case AES_TKIP:
-                encType = ENC_TYPE_AES_TKIP;
-                break;
-            default:
-                encType = ENC_TYPE_NONE;
-                break;
-        }*/
-
-        String networkKey = wifiNetwork.getKey();
-        short networkKeySize = (short) networkKey.getBytes().length;
-
-        byte[] macAddress = new byte[MAX_MAC_ADDRESS_SIZE_BYTES];
-        for (int i = 0; i < MAX_MAC_ADDRESS_SIZE_BYTES; i++) {
-            macAddress[i] = (byte) 0xff;
-        }
-
-        /* Fill buffer */
-
-        int bufferSize = 18 + ssidSize + networkKeySize; // size of required credential attributes
-
-        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
-        buffer.putShort(CREDENTIAL_FIELD_ID);
-        buffer.putShort((short) (bufferSize - 4));
-
-//        buffer.putShort(NETWORK_INDEX_FIELD_ID);
-//        buffer.putShort((short) 1);
-//        buffer.put(NETWORK_INDEX_DEFAULT_VALUE);
-
-        buffer.putShort(SSID_FIELD_ID);
-        buffer.putShort(ssidSize);
-        buffer.put(ssid.getBytes());
-
-        buffer.putShort(AUTH_TYPE_FIELD_ID);
-        buffer.putShort((short) 2);
-        buffer.putShort(authType);
-
-//        buffer.putShort(ENC_TYPE_FIELD_ID);
-//        buffer.putShort((short) 2);
-//        buffer.putShort(ENC_TYPE_NONE); // FIXME
-
-        buffer.putShort(NETWORK_KEY_FIELD_ID);
-        buffer.putShort(networkKeySize);
-        buffer.put(networkKey.getBytes());
-
-//        buffer.putShort(MAC_ADDRESS_FIELD_ID);
-//        buffer.putShort((short) MAX_MAC_ADDRESS_SIZE_BYTES);
-//        buffer.put(macAddress);
-
-        return buffer.array();
+        NdefRecord aarRecord = NdefRecord.createApplicationRecord(PACKAGE_NAME);
+        return new NdefMessage(new NdefRecord[] {mimeRecord, aarRecord});
     }
 
-    public static WifiConfiguration readTag(Tag tag) {
+    /**
+     * Read the Wi-Fi configurations of an NFC tag
+     *
+     * @param tag the tag to read
+     * @return the Wi-Fi configurations of the tag, possibly empty
+     */
+    public static List<WifiConfiguration> readTag(Tag tag) {
         Ndef ndef = Ndef.get(tag);
         if (ndef == null) {
             Log.d(TAG, "NDEF not supported");
-            return null;
+            return Collections.emptyList();
         }
 
         NdefMessage ndefMessage = ndef.getCachedNdefMessage();
         if (ndefMessage == null) {
             Log.d(TAG, "ndefMessage is null");
-            return null;
+            return Collections.emptyList();
         }
         return NfcUtils.parse(ndefMessage);
     }
 
     /**
-     * Parse an NDEF message and return the corresponding Wi-Fi configuration
-     *
-     * Source: http://androidxref.com/6.0.1_r10/xref/packages/apps/Nfc/src/com/android/nfc/NfcWifiProtectedSetup.java
+     * Parse an NDEF message and return the Wi-Fi configurations of all its valid credentials
      *
      * @param message the NDEF message to parse
-     * @return a WifiConfiguration extracted from the NDEF message
+     * @return the Wi-Fi configurations extracted from the NDEF message, in order, possibly empty
      */
-    private static WifiConfiguration parse(NdefMessage message) {
-        NdefRecord[] records = message.getRecords();
-        for (NdefRecord record : records) {
-            if (new String(record.getType()).equals(NFC_TOKEN_MIME_TYPE)) {
-                ByteBuffer payload = ByteBuffer.wrap(record.getPayload());
-                while (payload.hasRemaining()) {
-                    short fieldId = payload.getShort();
-                    short fieldSize = payload.getShort();
-                    if (fieldId == CREDENTIAL_FIELD_ID) {
-                        return parseCredential(payload, fieldSize);
-                    } else {
-                        payload.position(payload.position() + fieldSize);
-                    }
-                }
-            }
+    static List<WifiConfiguration> parse(NdefMessage message) {
+        List<WscCredential> credentials = parseCredentials(message);
+        List<WifiConfiguration> wifiConfigurations = new ArrayList<>(credentials.size());
+        for (WscCredential credential : credentials) {
+            wifiConfigurations.add(credential.toWifiNetwork().toWifiConfiguration());
         }
-        return null;
+        return wifiConfigurations;
     }
 
-    private static WifiConfiguration parseCredential(ByteBuffer payload, short size) {
-        int startPosition = payload.position();
-        WifiConfiguration result = new WifiConfiguration();
-        while (payload.position() < startPosition + size) {
-            short fieldId = payload.getShort();
-            short fieldSize = payload.getShort();
-            // sanity check
-            if (payload.position() + fieldSize > startPosition + size) {
-                return null;
-            }
-            switch (fieldId) {
-                case SSID_FIELD_ID:
-                    byte[] ssid = new byte[fieldSize];
-                    payload.get(ssid);
-                    result.SSID = "\"" + new String(ssid) + "\"";
-                    break;
-                case NETWORK_KEY_FIELD_ID:
-                    if (fieldSize > MAX_NETWORK_KEY_SIZE_BYTES) {
-                        return null;
-                    }
-                    byte[] networkKey = new byte[fieldSize];
-                    payload.get(networkKey);
-                    result.preSharedKey = "\"" + new String(networkKey) + "\"";
-                    break;
-                case AUTH_TYPE_FIELD_ID:
-                    if (fieldSize != AUTH_TYPE_EXPECTED_SIZE) {
-                        // corrupt data
-                        return null;
-                    }
-                    short authType = payload.getShort();
-                    populateAllowedKeyManagement(result.allowedKeyManagement, authType);
-                    break;
-                default:
-                    // unknown / unparsed tag
-                    payload.position(payload.position() + fieldSize);
-                    break;
+    /**
+     * Return all the valid WSC credentials of the Wi-Fi configuration records of an NDEF message
+     *
+     * @param message the NDEF message to parse
+     * @return the credentials, possibly empty
+     */
+    public static List<WscCredential> parseCredentials(NdefMessage message) {
+        List<WscCredential> credentials = new ArrayList<>(1);
+        for (NdefRecord record : message.getRecords()) {
+            if (record.getTnf() == NdefRecord.TNF_MIME_MEDIA
+                    && Arrays.equals(record.getType(), NFC_TOKEN_MIME_TYPE_BYTES)) {
+                credentials.addAll(WscCredentialReader.readCredentials(
+                        ByteBuffer.wrap(record.getPayload())));
             }
         }
-        if (result.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.NONE)) {
-            result.preSharedKey = null;
-        }
-        return result;
-    }
-
-    private static void populateAllowedKeyManagement(BitSet allowedKeyManagement, short authType) {
-        if (authType == AUTH_TYPE_WPA_PSK || authType == AUTH_TYPE_WPA2_PSK) {
-            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
-        } else if (authType == AUTH_TYPE_WPA_EAP || authType == AUTH_TYPE_WPA2_EAP) {
-            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_EAP);
-        } else if (authType == AUTH_TYPE_OPEN) {
-            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
-        }
+        return credentials;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,160 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.zxing.WriterException;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Process-wide memory cache of generated QR code bitmaps
+ *
+ * Bitmaps are keyed by a hash of the Wi-Fi configuration string, the encoding policy and the
+ * colors, so that the cache never holds a plain text password. The cache is bounded by a byte
+ * budget derived from the memory class of the device.
+ *
+ * Cached bitmaps are shared and must not be modified or recycled by the callers.
+ */
+public class QrCodeCache {
+
+    private static final String TAG = QrCodeCache.class.getSimpleName();
+
+    /* Fraction of the application memory class used by the cache */
+    private static final int MEMORY_CLASS_DIVIDER = 16;
+
+    private static QrCodeCache instance;
+    private final LruCache<String, Bitmap> bitmaps;
+
+    public static void init(Context context) {
+        if (instance == null) {
+            ActivityManager activityManager =
+                    (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+            int maxBytes = activityManager.getMemoryClass() * 1024 * 1024 / MEMORY_CLASS_DIVIDER;
+            instance = new QrCodeCache(maxBytes);
+        }
+    }
+
+    public static QrCodeCache getInstance() {
+        return instance;
+    }
+
+    QrCodeCache(int maxBytes) {
+        bitmaps = new LruCache<String, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * Generate the module-resolution QR code of the given Wi-Fi configuration and cache it,
+     * after a miss of {@link #getCachedWifiQrCodeModules(WifiNetwork, QrCodePolicy)}
+     *
+     * @see QrCodeUtils#generateWifiQrCodeModules(WifiNetwork, QrCodePolicy)
+     */
+    Bitmap generateWifiQrCodeModules(WifiNetwork wifiNetwork, QrCodePolicy policy)
+            throws WriterException {
+        Bitmap bitmap = QrCodeUtils.generateWifiQrCodeModules(wifiNetwork, policy);
+        bitmaps.put(getKey(QrCodeUtils.getWifiString(wifiNetwork), policy), bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Return the module-resolution QR code of the given Wi-Fi configuration if it is cached
+     *
+     * @return the cached bitmap, or null if it has not been generated yet with this policy
+     */
+    public Bitmap getCachedWifiQrCodeModules(WifiNetwork wifiNetwork, QrCodePolicy policy) {
+        return bitmaps.get(getKey(QrCodeUtils.getWifiString(wifiNetwork), policy));
+    }
+
+    /**
+     * Release memory according to the level given to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}
+     *
+     * @param level the memory trim level
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            bitmaps.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            bitmaps.trimToSize(bitmaps.maxSize() / 2);
+        }
+        Log.d(TAG, "trimMemory: level=" + level + ", " + bitmaps);
+    }
+
+    public void clear() {
+        bitmaps.evictAll();
+    }
+
+    public int hitCount() {
+        return bitmaps.hitCount();
+    }
+
+    public int missCount() {
+        return bitmaps.missCount();
+    }
+
+    public int evictionCount() {
+        return bitmaps.evictionCount();
+    }
+
+    /**
+     * Return the size in bytes of the cached bitmaps
+     */
+    public int size() {
+        return bitmaps.size();
+    }
+
+    private static String getKey(String wifiString, QrCodePolicy policy) {
+        return getHash(wifiString) + ':' + policy.getMinErrorCorrectionLevel() + ':'
+                + policy.getMargin() + ':' + QrCodeUtils.DARK_COLOR + ':' + QrCodeUtils.LIGHT_COLOR;
+    }
+
+    /**
+     * Return the hex-encoded SHA-256 hash of the given Wi-Fi string, so that cache keys do not
+     * hold passwords in plaintext
+     */
+    static String getHash(String wifiString) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(wifiString.getBytes(Charset.forName("UTF-8")));
+            return new String(Hex.encodeHex(digest.digest()));
+        } catch (NoSuchAlgorithmException e) {
+            /* SHA-256 is available on every Android version */
+            throw new IllegalStateException(e);
+        }
+    }
+}
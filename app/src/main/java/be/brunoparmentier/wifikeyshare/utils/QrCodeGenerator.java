@@ -0,0 +1,215 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import com.google.zxing.WriterException;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Generate QR codes on a small pool of background threads
+ *
+ * Results are delivered on the main thread through a {@link Callback}, unless the request has
+ * been cancelled in the meantime. QR codes already present in {@link QrCodeCache} are delivered
+ * immediately.
+ */
+public class QrCodeGenerator {
+    private static final String TAG = QrCodeGenerator.class.getSimpleName();
+
+    private static final int MAX_POOL_SIZE = 2;
+    private static final int MAX_PENDING_REQUESTS = 16;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /*
+     * When the queue is full, the oldest pending request (the most likely to be stale) is dropped
+     * and its callback receives an error, so that no caller waits forever
+     */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(MAX_PENDING_REQUESTS),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "QrCodeGenerator #" + count.getAndIncrement());
+                }
+            },
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+                    if (executor.isShutdown()) {
+                        return;
+                    }
+                    Runnable oldest = executor.getQueue().poll();
+                    if (oldest instanceof GenerateTask) {
+                        ((GenerateTask) oldest).drop();
+                    }
+                    executor.execute(runnable);
+                }
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private QrCodeGenerator() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    public interface Callback {
+        /**
+         * Called on the main thread when the QR code has been generated
+         *
+         * @param bitmap the QR code, shared with {@link QrCodeCache}
+         */
+        void onQrCodeGenerated(Bitmap bitmap);
+
+        /**
+         * Called on the main thread when the Wi-Fi configuration cannot be encoded, or when the
+         * request has been dropped because too many requests were pending
+         *
+         * @param e the error raised by the encoder, or describing the dropped request
+         */
+        void onQrCodeError(WriterException e);
+    }
+
+    /**
+     * A pending QR code generation, which can be cancelled from the main thread
+     */
+    public static class Request {
+        private volatile boolean isCancelled;
+        private GenerateTask task;
+
+        /**
+         * Cancel the request. Its callback will not be called after this method returns.
+         */
+        public void cancel() {
+            isCancelled = true;
+            if (task != null) {
+                /* Free its slot in the queue if it has not started yet */
+                executor.remove(task);
+            }
+        }
+
+        public boolean isCancelled() {
+            return isCancelled;
+        }
+    }
+
+    /**
+     * Generate the module-resolution QR code of the given Wi-Fi configuration in the background
+     *
+     * Must be called from the main thread.
+     *
+     * @param wifiNetwork the Wi-Fi configuration
+     * @param callback the callback receiving the result on the main thread
+     * @return the request, to be cancelled when its result is no longer needed
+     */
+    public static Request generateWifiQrCodeModules(final WifiNetwork wifiNetwork,
+                                                    final Callback callback) {
+        final Request request = new Request();
+
+        Bitmap cachedBitmap = QrCodeCache.getInstance().getCachedWifiQrCodeModules(wifiNetwork,
+                QrCodePolicy.SCREEN);
+        if (cachedBitmap != null) {
+            callback.onQrCodeGenerated(cachedBitmap);
+            return request;
+        }
+
+        request.task = new GenerateTask(request, wifiNetwork, callback);
+        executor.execute(request.task);
+        return request;
+    }
+
+    private static void deliver(final Request request, final Callback callback,
+                                final Bitmap bitmap, final WriterException error) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isCancelled()) {
+                    return;
+                }
+                if (error != null) {
+                    callback.onQrCodeError(error);
+                } else {
+                    callback.onQrCodeGenerated(bitmap);
+                }
+            }
+        });
+    }
+
+    private static class GenerateTask implements Runnable {
+        private final Request request;
+        private final WifiNetwork wifiNetwork;
+        private final Callback callback;
+
+        GenerateTask(Request request, WifiNetwork wifiNetwork, Callback callback) {
+            this.request = request;
+            this.wifiNetwork = wifiNetwork;
+            this.callback = callback;
+        }
+
+        @Override
+        public void run() {
+            if (request.isCancelled()) {
+                return;
+            }
+            long startTime = System.nanoTime();
+            Bitmap bitmap = null;
+            WriterException error = null;
+            try {
+                bitmap = QrCodeCache.getInstance().generateWifiQrCodeModules(wifiNetwork,
+                        QrCodePolicy.SCREEN);
+            } catch (WriterException e) {
+                error = e;
+            }
+            Log.d(TAG, "Generated QR code in " + (System.nanoTime() - startTime) / 1000 + " us");
+            deliver(request, callback, bitmap, error);
+        }
+
+        /* Called when the task is evicted from the queue without having run */
+        void drop() {
+            Log.d(TAG, "Too many pending QR code requests, dropping the oldest one");
+            deliver(request, callback, null,
+                    new WriterException("QR code request dropped, too many pending requests"));
+        }
+    }
+}
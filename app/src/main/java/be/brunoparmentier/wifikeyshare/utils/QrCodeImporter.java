@@ -0,0 +1,191 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.zxing.BinaryBitmap;
+import com.google.zxing.DecodeHintType;
+import com.google.zxing.RGBLuminanceSource;
+import com.google.zxing.ReaderException;
+import com.google.zxing.common.HybridBinarizer;
+import com.google.zxing.qrcode.QRCodeReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Import Wi-Fi configurations from pictures of QR codes (e.g. photos of printed cards)
+ *
+ * Images are decoded in parallel on a pool of worker threads. Large photos are downsampled
+ * before decoding.
+ */
+public class QrCodeImporter {
+    private static final String TAG = QrCodeImporter.class.getSimpleName();
+
+    /* Photos are downsampled until their largest side is at most this size */
+    private static final int MAX_IMAGE_SIZE = 2048;
+
+    /*
+     * No character set is forced: ZXing follows the ECI of the code if any, and otherwise guesses
+     * between ISO-8859-1 (the QR code default), Shift_JIS and UTF-8
+     */
+    private static final Map<DecodeHintType, Object> DECODE_HINTS = new EnumMap<>(DecodeHintType.class);
+
+    static {
+        DECODE_HINTS.put(DecodeHintType.TRY_HARDER, Boolean.TRUE);
+    }
+
+    private final ContentResolver contentResolver;
+    private final ExecutorService executor;
+
+    public QrCodeImporter(Context context) {
+        contentResolver = context.getContentResolver();
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Release the decoding threads. The importer cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Decode the Wi-Fi configurations contained in the given images
+     *
+     * Images that cannot be read or do not contain a Wi-Fi QR code are skipped, as well as
+     * duplicate configurations.
+     *
+     * @param imageUris the images to decode
+     * @return the decoded Wi-Fi configurations, in the order of the images
+     */
+    public List<WifiNetwork> importWifiNetworks(List<Uri> imageUris) {
+        List<Future<WifiNetwork>> futures = new ArrayList<>(imageUris.size());
+        for (final Uri imageUri : imageUris) {
+            futures.add(executor.submit(new Callable<WifiNetwork>() {
+                @Override
+                public WifiNetwork call() throws Exception {
+                    return decode(imageUri);
+                }
+            }));
+        }
+
+        Set<WifiNetwork> wifiNetworks = new LinkedHashSet<>();
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                WifiNetwork wifiNetwork = futures.get(i).get();
+                if (wifiNetwork != null) {
+                    wifiNetworks.add(wifiNetwork);
+                } else {
+                    Log.d(TAG, "No Wi-Fi QR code found in " + imageUris.get(i));
+                }
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Cannot read " + imageUris.get(i), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return new ArrayList<>(wifiNetworks);
+    }
+
+    private WifiNetwork decode(Uri imageUri) throws IOException {
+        Bitmap bitmap = loadBitmap(imageUri);
+        if (bitmap == null) {
+            return null;
+        }
+
+        try {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            return decode(pixels, width, height);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Decode the Wi-Fi configuration of a QR code picture
+     *
+     * @param pixels the ARGB pixels of the picture, row by row
+     * @param width the width of the picture
+     * @param height the height of the picture
+     * @return the Wi-Fi configuration, or null if no Wi-Fi QR code is found
+     */
+    static WifiNetwork decode(int[] pixels, int width, int height) {
+        BinaryBitmap binaryBitmap = new BinaryBitmap(
+                new HybridBinarizer(new RGBLuminanceSource(width, height, pixels)));
+        try {
+            String contents = new QRCodeReader().decode(binaryBitmap, DECODE_HINTS).getText();
+            return WifiQrCodeParser.parse(contents);
+        } catch (ReaderException e) {
+            return null;
+        }
+    }
+
+    private Bitmap loadBitmap(Uri imageUri) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(imageUri, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / sampleSize > MAX_IMAGE_SIZE) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return decodeStream(imageUri, options);
+    }
+
+    private Bitmap decodeStream(Uri imageUri, BitmapFactory.Options options) throws IOException {
+        InputStream in = contentResolver.openInputStream(imageUri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Mode;
+import com.google.zxing.qrcode.decoder.Version;
+import com.google.zxing.qrcode.encoder.Encoder;
+import com.google.zxing.qrcode.encoder.QRCode;
+
+import java.io.UnsupportedEncodingException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Encoding policy choosing the error correction level, character set and margin of a QR code
+ *
+ * The version (hence the number of modules) is the smallest one that holds the payload at the
+ * minimum error correction level of the policy. The error correction level is then raised as
+ * long as the payload still fits in that version, so the extra robustness comes for free.
+ */
+public class QrCodePolicy {
+
+    /**
+     * Policy for QR codes displayed on the screen of the device: the lowest error correction
+     * level is enough on a clean, backlit display. The margin is the one required by the QR code
+     * specification, as scanners may need it to locate the code.
+     */
+    public static final QrCodePolicy SCREEN =
+            new QrCodePolicy(ErrorCorrectionLevel.L, QrCodeUtils.QUIET_ZONE_SIZE);
+
+    /**
+     * Policy for printed QR codes, which can get stained or creased, with the margin required
+     * by the QR code specification.
+     */
+    public static final QrCodePolicy PRINT =
+            new QrCodePolicy(ErrorCorrectionLevel.M, QrCodeUtils.QUIET_ZONE_SIZE);
+
+    static final String CHARSET_ISO_8859_1 = "ISO-8859-1";
+    static final String CHARSET_UTF_8 = "UTF-8";
+
+    private static final int MAX_VERSION = 40;
+    private static final int MAX_ASCII_CHAR = 0x7f;
+    /* ECI mode indicator and 8-bit ECI designator */
+    private static final int ECI_HEADER_BITS = 4 + 8;
+
+    private final ErrorCorrectionLevel minErrorCorrectionLevel;
+    private final int margin;
+
+    /**
+     * @param minErrorCorrectionLevel the scan robustness target
+     * @param margin the size of the quiet zone around the QR code, in modules
+     */
+    public QrCodePolicy(ErrorCorrectionLevel minErrorCorrectionLevel, int margin) {
+        this.minErrorCorrectionLevel = minErrorCorrectionLevel;
+        this.margin = margin;
+    }
+
+    public ErrorCorrectionLevel getMinErrorCorrectionLevel() {
+        return minErrorCorrectionLevel;
+    }
+
+    public int getMargin() {
+        return margin;
+    }
+
+    /**
+     * Encode the given contents according to this policy
+     *
+     * @param contents the contents of the QR code
+     * @return the QR code, whose matrix does not include the margin
+     * @throws WriterException if the contents does not fit in a QR code
+     */
+    public QRCode encode(String contents) throws WriterException {
+        String charset = selectCharset(contents);
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.CHARACTER_SET, charset);
+        return Encoder.encode(contents, selectErrorCorrectionLevel(contents, charset), hints);
+    }
+
+    /**
+     * Select the character set of the contents
+     *
+     * ASCII contents are encoded in ISO-8859-1, the default of the QR code specification, which
+     * does not need any ECI header. Other contents are encoded in UTF-8 declared by an ECI
+     * header: ISO-8859-1 would save a few bytes for accented letters, but many readers
+     * wrongly assume UTF-8 when no ECI is given.
+     */
+    static String selectCharset(String contents) {
+        for (int i = 0; i < contents.length(); i++) {
+            if (contents.charAt(i) > MAX_ASCII_CHAR) {
+                return CHARSET_UTF_8;
+            }
+        }
+        return CHARSET_ISO_8859_1;
+    }
+
+    /**
+     * Select the highest error correction level that does not need a larger version than the
+     * minimum error correction level of the policy (byte mode is assumed, as for any Wi-Fi
+     * configuration string)
+     */
+    ErrorCorrectionLevel selectErrorCorrectionLevel(String contents, String charset)
+            throws WriterException {
+        int dataBits;
+        try {
+            dataBits = contents.getBytes(charset).length * 8;
+        } catch (UnsupportedEncodingException e) {
+            throw new WriterException(e);
+        }
+        if (!CHARSET_ISO_8859_1.equals(charset)) {
+            dataBits += ECI_HEADER_BITS;
+        }
+
+        Version version = getMinVersion(dataBits, minErrorCorrectionLevel);
+        if (version == null) {
+            throw new WriterException("Data too big");
+        }
+
+        ErrorCorrectionLevel[] levels = ErrorCorrectionLevel.values();
+        for (int i = levels.length - 1; i > minErrorCorrectionLevel.ordinal(); i--) {
+            if (fits(dataBits, version, levels[i])) {
+                return levels[i];
+            }
+        }
+        return minErrorCorrectionLevel;
+    }
+
+    private static Version getMinVersion(int dataBits, ErrorCorrectionLevel ecLevel) {
+        for (int versionNumber = 1; versionNumber <= MAX_VERSION; versionNumber++) {
+            Version version = Version.getVersionForNumber(versionNumber);
+            if (fits(dataBits, version, ecLevel)) {
+                return version;
+            }
+        }
+        return null;
+    }
+
+    private static boolean fits(int dataBits, Version version, ErrorCorrectionLevel ecLevel) {
+        /* Mode indicator, character count and data */
+        int bits = 4 + Mode.BYTE.getCharacterCountBits(version) + dataBits;
+        int dataCodewords = version.getTotalCodewords()
+                - version.getECBlocksForLevel(ecLevel).getTotalECCodewords();
+        return (bits + 7) / 8 <= dataCodewords;
+    }
+}
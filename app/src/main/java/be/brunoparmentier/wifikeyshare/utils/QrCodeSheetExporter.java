@@ -0,0 +1,325 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import android.graphics.pdf.PdfDocument;
+import android.os.Build;
+import android.text.TextPaint;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Export the QR codes of several Wi-Fi networks to printable A4 sheets
+ *
+ * The QR codes of a page are encoded in parallel, then drawn with the SSID as caption. PNG pages
+ * are written one at a time, reusing a single bitmap. PDF pages are recorded by
+ * {@link PdfDocument} until the whole document is written, so large exports are split into
+ * several documents of at most {@link #PAGES_PER_PDF} pages to keep memory usage bounded.
+ */
+public class QrCodeSheetExporter {
+    private static final String TAG = QrCodeSheetExporter.class.getSimpleName();
+
+    /* A4 page in PostScript points (1/72 inch) */
+    private static final int PAGE_WIDTH = 595;
+    private static final int PAGE_HEIGHT = 842;
+    private static final int PAGE_MARGIN = 36;
+    private static final int COLUMNS = 3;
+    private static final int ROWS = 4;
+    public static final int CODES_PER_PAGE = COLUMNS * ROWS;
+    public static final int PAGES_PER_PDF = 20;
+
+    private static final int CAPTION_TEXT_SIZE = 11;
+    private static final int CAPTION_HEIGHT = 20;
+
+    /* Resolution of PNG pages, in pixels per point (about 150 dpi) */
+    private static final float PNG_SCALE = 150f / 72f;
+
+    public interface ProgressListener {
+        /**
+         * Called from the exporting thread after each page
+         *
+         * @param exportedCount number of networks exported so far
+         * @param totalCount total number of networks to export
+         */
+        void onProgress(int exportedCount, int totalCount);
+    }
+
+    /**
+     * Summary of an export
+     */
+    public static class Result {
+        private final int codeCount;
+        private final int pageCount;
+        private final int fileCount;
+        private final long elapsedNanos;
+
+        Result(int codeCount, int pageCount, int fileCount, long elapsedNanos) {
+            this.codeCount = codeCount;
+            this.pageCount = pageCount;
+            this.fileCount = fileCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public int getCodeCount() {
+            return codeCount;
+        }
+
+        public int getPageCount() {
+            return pageCount;
+        }
+
+        /**
+         * Return the number of written files, named baseName-N with N starting at 1
+         */
+        public int getFileCount() {
+            return fileCount;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public double getCodesPerSecond() {
+            return elapsedNanos > 0 ? codeCount * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "codeCount=" + codeCount +
+                    ", pageCount=" + pageCount +
+                    ", fileCount=" + fileCount +
+                    ", elapsedMillis=" + elapsedNanos / 1000000 +
+                    ", codesPerSecond=" + getCodesPerSecond() +
+                    '}';
+        }
+    }
+
+    private final ExecutorService executor;
+    private final Paint codePaint;
+    private final TextPaint captionPaint;
+
+    public QrCodeSheetExporter() {
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+
+        codePaint = new Paint();
+        codePaint.setFilterBitmap(false);
+        codePaint.setAntiAlias(false);
+
+        captionPaint = new TextPaint(Paint.ANTI_ALIAS_FLAG);
+        captionPaint.setColor(Color.BLACK);
+        captionPaint.setTextSize(CAPTION_TEXT_SIZE);
+        captionPaint.setTextAlign(Paint.Align.CENTER);
+    }
+
+    /**
+     * Release the encoding threads. The exporter cannot be used afterwards.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Export the QR codes of the given networks as multi-page PDF documents named baseName-N.pdf
+     *
+     * A new document is started every {@link #PAGES_PER_PDF} pages, as the pages of a document
+     * are held in memory until it is written.
+     *
+     * @param wifiNetworks the Wi-Fi configurations to export
+     * @param directory the directory to write the documents to
+     * @param baseName the prefix of the document file names
+     * @param listener the listener notified after each page, or null
+     * @return a summary of the export
+     * @throws IOException if a document cannot be written
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public Result exportPdf(List<WifiNetwork> wifiNetworks, File directory, String baseName,
+                            ProgressListener listener) throws IOException {
+        long startTime = System.nanoTime();
+        int pageCount = getPageCount(wifiNetworks.size());
+        int fileCount = (pageCount + PAGES_PER_PDF - 1) / PAGES_PER_PDF;
+        for (int fileIndex = 0; fileIndex < fileCount; fileIndex++) {
+            int firstPageIndex = fileIndex * PAGES_PER_PDF;
+            int endPageIndex = Math.min(firstPageIndex + PAGES_PER_PDF, pageCount);
+            PdfDocument document = new PdfDocument();
+            try {
+                for (int pageIndex = firstPageIndex; pageIndex < endPageIndex; pageIndex++) {
+                    List<WifiNetwork> pageNetworks = getPageNetworks(wifiNetworks, pageIndex);
+                    Bitmap[] codes = encode(pageNetworks);
+
+                    PdfDocument.PageInfo pageInfo = new PdfDocument.PageInfo.Builder(
+                            PAGE_WIDTH, PAGE_HEIGHT, pageIndex - firstPageIndex + 1).create();
+                    PdfDocument.Page page = document.startPage(pageInfo);
+                    drawPage(page.getCanvas(), pageNetworks, codes);
+                    document.finishPage(page);
+
+                    notifyProgress(listener, pageIndex, wifiNetworks.size());
+                }
+                OutputStream out = new FileOutputStream(
+                        new File(directory, baseName + "-" + (fileIndex + 1) + ".pdf"));
+                try {
+                    document.writeTo(out);
+                } finally {
+                    out.close();
+                }
+            } finally {
+                document.close();
+            }
+        }
+        return logResult(new Result(wifiNetworks.size(), pageCount, fileCount,
+                System.nanoTime() - startTime));
+    }
+
+    /**
+     * Export the QR codes of the given networks as PNG pages named baseName-N.png
+     *
+     * A single page bitmap is reused for every page.
+     *
+     * @param wifiNetworks the Wi-Fi configurations to export
+     * @param directory the directory to write the pages to
+     * @param baseName the prefix of the page file names
+     * @param listener the listener notified after each page, or null
+     * @return a summary of the export
+     * @throws IOException if a page cannot be written
+     */
+    public Result exportPng(List<WifiNetwork> wifiNetworks, File directory, String baseName,
+                            ProgressListener listener) throws IOException {
+        long startTime = System.nanoTime();
+        int pageCount = getPageCount(wifiNetworks.size());
+        Bitmap pageBitmap = Bitmap.createBitmap((int) (PAGE_WIDTH * PNG_SCALE),
+                (int) (PAGE_HEIGHT * PNG_SCALE), Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(pageBitmap);
+        canvas.scale(PNG_SCALE, PNG_SCALE);
+        try {
+            for (int pageIndex = 0; pageIndex < pageCount; pageIndex++) {
+                List<WifiNetwork> pageNetworks = getPageNetworks(wifiNetworks, pageIndex);
+                Bitmap[] codes = encode(pageNetworks);
+
+                pageBitmap.eraseColor(Color.WHITE);
+                drawPage(canvas, pageNetworks, codes);
+                OutputStream out = new FileOutputStream(
+                        new File(directory, baseName + "-" + (pageIndex + 1) + ".png"));
+                try {
+                    pageBitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+                } finally {
+                    out.close();
+                }
+
+                notifyProgress(listener, pageIndex, wifiNetworks.size());
+            }
+        } finally {
+            pageBitmap.recycle();
+        }
+        return logResult(new Result(wifiNetworks.size(), pageCount, pageCount,
+                System.nanoTime() - startTime));
+    }
+
+    private static int getPageCount(int codeCount) {
+        return (codeCount + CODES_PER_PAGE - 1) / CODES_PER_PAGE;
+    }
+
+    private static List<WifiNetwork> getPageNetworks(List<WifiNetwork> wifiNetworks, int pageIndex) {
+        int start = pageIndex * CODES_PER_PAGE;
+        return wifiNetworks.subList(start, Math.min(start + CODES_PER_PAGE, wifiNetworks.size()));
+    }
+
+    private static void notifyProgress(ProgressListener listener, int pageIndex, int totalCount) {
+        if (listener != null) {
+            listener.onProgress(Math.min((pageIndex + 1) * CODES_PER_PAGE, totalCount), totalCount);
+        }
+    }
+
+    /**
+     * Encode the QR codes of a page in parallel
+     *
+     * @return the module-resolution QR codes, null for the networks that cannot be encoded
+     */
+    private Bitmap[] encode(List<WifiNetwork> wifiNetworks) throws IOException {
+        List<Future<Bitmap>> futures = new ArrayList<>(wifiNetworks.size());
+        for (final WifiNetwork wifiNetwork : wifiNetworks) {
+            futures.add(executor.submit(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() throws Exception {
+                    return QrCodeUtils.generateWifiQrCodeModules(wifiNetwork, QrCodePolicy.PRINT);
+                }
+            }));
+        }
+
+        Bitmap[] codes = new Bitmap[wifiNetworks.size()];
+        for (int i = 0; i < codes.length; i++) {
+            try {
+                codes[i] = futures.get(i).get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Cannot encode " + wifiNetworks.get(i).getSsid(), e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Export interrupted");
+            }
+        }
+        return codes;
+    }
+
+    private void drawPage(Canvas canvas, List<WifiNetwork> wifiNetworks, Bitmap[] codes) {
+        float cellWidth = (PAGE_WIDTH - 2f * PAGE_MARGIN) / COLUMNS;
+        float cellHeight = (PAGE_HEIGHT - 2f * PAGE_MARGIN) / ROWS;
+        float codeSize = Math.min(cellWidth, cellHeight - CAPTION_HEIGHT);
+        RectF codeBounds = new RectF();
+
+        for (int i = 0; i < wifiNetworks.size(); i++) {
+            float cellLeft = PAGE_MARGIN + (i % COLUMNS) * cellWidth;
+            float cellTop = PAGE_MARGIN + (i / COLUMNS) * cellHeight;
+            float codeLeft = cellLeft + (cellWidth - codeSize) / 2;
+
+            if (codes[i] != null) {
+                codeBounds.set(codeLeft, cellTop, codeLeft + codeSize, cellTop + codeSize);
+                canvas.drawBitmap(codes[i], null, codeBounds, codePaint);
+            }
+
+            CharSequence caption = TextUtils.ellipsize(wifiNetworks.get(i).getSsid(),
+                    captionPaint, cellWidth, TextUtils.TruncateAt.END);
+            canvas.drawText(caption, 0, caption.length(), cellLeft + cellWidth / 2,
+                    cellTop + codeSize + CAPTION_TEXT_SIZE, captionPaint);
+        }
+    }
+
+    private static Result logResult(Result result) {
+        Log.d(TAG, "Export finished: " + result);
+        return result;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Utility class writing QR codes as SVG documents, for print and large displays
+ *
+ * The document uses one user unit per module. Horizontal runs of dark modules are merged into a
+ * single rectangle of the path, so a QR code only takes a few kilobytes whatever its printed size.
+ */
+public class QrCodeSvgWriter {
+
+    private QrCodeSvgWriter() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Write a QR code containing the given Wi-Fi configuration as an SVG document, encoded with
+     * the {@link QrCodePolicy#PRINT} policy
+     *
+     * @param wifiNetwork the Wi-Fi configuration
+     * @param out the writer to write the document to, neither flushed nor closed
+     * @throws WriterException if the Wi-Fi configuration cannot be represented in the QR code
+     * @throws IOException if the document cannot be written
+     */
+    public static void writeWifiQrCode(WifiNetwork wifiNetwork, Writer out)
+            throws WriterException, IOException {
+        QrCodePolicy policy = QrCodePolicy.PRINT;
+        write(policy.encode(QrCodeUtils.getWifiString(wifiNetwork)).getMatrix(), policy.getMargin(), out);
+    }
+
+    static void write(ByteMatrix modules, int margin, Writer out) throws IOException {
+        int width = modules.getWidth();
+        int height = modules.getHeight();
+        byte[][] moduleRows = modules.getArray();
+
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" viewBox=\"0 0 ");
+        out.write(Integer.toString(width + margin * 2));
+        out.write(' ');
+        out.write(Integer.toString(height + margin * 2));
+        out.write("\" shape-rendering=\"crispEdges\">");
+        out.write("<rect width=\"100%\" height=\"100%\" fill=\"");
+        out.write(toHexColor(QrCodeUtils.LIGHT_COLOR));
+        out.write("\"/><path fill=\"");
+        out.write(toHexColor(QrCodeUtils.DARK_COLOR));
+        out.write("\" d=\"");
+
+        for (int y = 0; y < height; y++) {
+            byte[] moduleRow = moduleRows[y];
+            int x = 0;
+            while (x < width) {
+                if (moduleRow[x] != 1) {
+                    x++;
+                    continue;
+                }
+                int runStart = x;
+                while (x < width && moduleRow[x] == 1) {
+                    x++;
+                }
+                int runLength = x - runStart;
+
+                /* Rectangle of runLength x 1 modules */
+                out.write('M');
+                out.write(Integer.toString(runStart + margin));
+                out.write(' ');
+                out.write(Integer.toString(y + margin));
+                out.write('h');
+                out.write(Integer.toString(runLength));
+                out.write("v1h-");
+                out.write(Integer.toString(runLength));
+                out.write('z');
+            }
+        }
+
+        out.write("\"/></svg>");
+    }
+
+    private static String toHexColor(int color) {
+        return String.format("#%06x", color & 0xffffff);
+    }
+}
@@ -21,10 +21,10 @@ package be.brunoparmentier.wifikeyshare.utils;
 import android.graphics.Bitmap;
 import android.graphics.Color;
 
-import com.google.zxing.BarcodeFormat;
 import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+
+import java.util.Arrays;
 
 import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
@@ -34,29 +34,135 @@ import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
  */
 public class QrCodeUtils {
 
+    /**
+     * Size of the quiet zone around the QR code required by the QR code specification, in
+     * modules (same as ZXing's QRCodeWriter)
+     */
+    public static final int QUIET_ZONE_SIZE = 4;
+
+    public static final int DARK_COLOR = Color.BLACK;
+    public static final int LIGHT_COLOR = Color.WHITE;
+
+    /* Length of a WPA pre-shared key given as hexadecimal digits instead of a passphrase */
+    private static final int WPA_HEX_KEY_LENGTH = 64;
+    /* Lengths of 64, 128 and 256-bit WEP keys given as hexadecimal digits */
+    private static final int WEP_40_HEX_KEY_LENGTH = 10;
+    private static final int WEP_104_HEX_KEY_LENGTH = 26;
+    private static final int WEP_232_HEX_KEY_LENGTH = 58;
+
+    /**
+     * Generate a QR code containing the given Wi-Fi configuration, for display on the screen
+     *
+     * @see #generateWifiQrCode(int, WifiNetwork, QrCodePolicy)
+     */
+    public static Bitmap generateWifiQrCode(int width, WifiNetwork wifiNetwork) throws WriterException {
+        return generateWifiQrCode(width, wifiNetwork, QrCodePolicy.SCREEN);
+    }
+
     /**
      * Generate a QR code containing the given Wi-Fi configuration
      *
+     * The modules are scaled by the largest integer factor that fits in the given width and the
+     * code is centered, as done by ZXing's QRCodeWriter.
+     *
      * @param width the width of the QR code
      * @param wifiNetwork the Wi-Fi configuration
+     * @param policy the encoding policy
      * @return a bitmap representing the QR code
      * @throws WriterException if the Wi-Fi configuration cannot be represented in the QR code
      */
-    public static Bitmap generateWifiQrCode(int width, WifiNetwork wifiNetwork) throws WriterException {
-        int height = width;
-        com.google.zxing.Writer writer = new QRCodeWriter();
-        String wifiString = getWifiString(wifiNetwork);
+    public static Bitmap generateWifiQrCode(int width, WifiNetwork wifiNetwork, QrCodePolicy policy)
+            throws WriterException {
+        ByteMatrix modules = policy.encode(getWifiString(wifiNetwork)).getMatrix();
+        int outputWidth = Math.max(width, modules.getWidth() + policy.getMargin() * 2);
+        Bitmap imageBitmap = Bitmap.createBitmap(outputWidth, outputWidth, Bitmap.Config.ARGB_8888);
+        rasterize(modules, policy.getMargin(), imageBitmap, DARK_COLOR, LIGHT_COLOR);
+
+        return imageBitmap;
+    }
+
+    /**
+     * Generate a QR code containing the given Wi-Fi configuration, for display on the screen,
+     * using one pixel per module
+     *
+     * @see #generateWifiQrCodeModules(WifiNetwork, QrCodePolicy)
+     */
+    public static Bitmap generateWifiQrCodeModules(WifiNetwork wifiNetwork) throws WriterException {
+        return generateWifiQrCodeModules(wifiNetwork, QrCodePolicy.SCREEN);
+    }
+
+    /**
+     * Generate a QR code containing the given Wi-Fi configuration, using one pixel per module
+     * (margin included).
+     *
+     * The resulting bitmap only takes a few kilobytes and is meant to be displayed with
+     * nearest-neighbour integer scaling (see {@link be.brunoparmentier.wifikeyshare.ui.QrCodeImageView}).
+     *
+     * @param wifiNetwork the Wi-Fi configuration
+     * @param policy the encoding policy
+     * @return a bitmap representing the QR code, one pixel per module
+     * @throws WriterException if the Wi-Fi configuration cannot be represented in the QR code
+     */
+    public static Bitmap generateWifiQrCodeModules(WifiNetwork wifiNetwork, QrCodePolicy policy)
+            throws WriterException {
+        ByteMatrix modules = policy.encode(getWifiString(wifiNetwork)).getMatrix();
+        int outputWidth = modules.getWidth() + policy.getMargin() * 2;
+        Bitmap imageBitmap = Bitmap.createBitmap(outputWidth, outputWidth, Bitmap.Config.RGB_565);
+        /* One pixel per module, whatever the screen density */
+        imageBitmap.setDensity(Bitmap.DENSITY_NONE);
+        rasterize(modules, policy.getMargin(), imageBitmap, DARK_COLOR, LIGHT_COLOR);
+
+        return imageBitmap;
+    }
 
-        BitMatrix bitMatrix = writer.encode(wifiString, BarcodeFormat.QR_CODE, width, height);
-        Bitmap imageBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    /**
+     * Draw the given QR code modules into the bitmap, one row of modules at a time.
+     *
+     * Modules are scaled by the largest integer factor that fits in the bitmap (margin
+     * included) and centered. Each row of modules is filled in a reusable buffer and written
+     * with {@link Bitmap#setPixels}, once per output row it spans.
+     *
+     * @param modules the QR code modules, without margin
+     * @param margin the size of the margin, in modules
+     * @param bitmap the mutable bitmap to draw into
+     * @param darkColor the color of dark modules
+     * @param lightColor the color of light modules and of the margin
+     */
+    static void rasterize(ByteMatrix modules, int margin, Bitmap bitmap, int darkColor, int lightColor) {
+        int inputWidth = modules.getWidth();
+        int inputHeight = modules.getHeight();
+        int outputWidth = bitmap.getWidth();
+        int outputHeight = bitmap.getHeight();
+        int multiple = Math.min(outputWidth / (inputWidth + margin * 2),
+                outputHeight / (inputHeight + margin * 2));
+        int leftPadding = (outputWidth - (inputWidth * multiple)) / 2;
+        int topPadding = (outputHeight - (inputHeight * multiple)) / 2;
+        byte[][] moduleRows = modules.getArray();
+        int[] rowPixels = new int[outputWidth];
 
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
-                imageBitmap.setPixel(i, j, bitMatrix.get(i, j) ? Color.BLACK : Color.WHITE);
+        /* Top margin (padding columns are never overwritten afterwards) */
+        Arrays.fill(rowPixels, lightColor);
+        int outputY = 0;
+        for (; outputY < topPadding; outputY++) {
+            bitmap.setPixels(rowPixels, 0, outputWidth, 0, outputY, outputWidth, 1);
+        }
+
+        for (int inputY = 0; inputY < inputHeight; inputY++) {
+            byte[] moduleRow = moduleRows[inputY];
+            for (int inputX = 0, outputX = leftPadding; inputX < inputWidth; inputX++, outputX += multiple) {
+                Arrays.fill(rowPixels, outputX, outputX + multiple,
+                        moduleRow[inputX] == 1 ? darkColor : lightColor);
+            }
+            for (int i = 0; i < multiple; i++, outputY++) {
+                bitmap.setPixels(rowPixels, 0, outputWidth, 0, outputY, outputWidth, 1);
             }
         }
 
-        return imageBitmap;
+        /* Bottom margin */
+        Arrays.fill(rowPixels, lightColor);
+        for (; outputY < outputHeight; outputY++) {
+            bitmap.setPixels(rowPixels, 0, outputWidth, 0, outputY, outputWidth, 1);
+        }
     }
 
     /**
@@ -69,15 +175,32 @@ public class QrCodeUtils {
      * @param wifiNetwork the Wi-Fi configuration to encode
      * @return the generated string encoding the Wi-Fi configuration
      */
-    private static String getWifiString(WifiNetwork wifiNetwork) {
-        String ssid = wifiNetwork.getSsid();
+    static String getWifiString(WifiNetwork wifiNetwork) {
+        int valuesLength = wifiNetwork.getSsid().length()
+                + (wifiNetwork.getKey() != null ? wifiNetwork.getKey().length() : 0);
+        /* Room for the fields and for a few escaped characters */
+        StringBuilder output = new StringBuilder(32 + valuesLength + valuesLength / 4);
+        appendWifiString(wifiNetwork, output);
+        return output.toString();
+    }
+
+    /**
+     * Append the Wi-Fi configuration string of the given network to a builder, in a single pass
+     * and without intermediate strings
+     *
+     * Special characters are escaped, and the SSID and key are enclosed in double quotes when
+     * they could be interpreted as hexadecimal, except a raw key: a 64 hex digits WPA key, or a
+     * 10, 26 or 58 hex digits WEP key.
+     *
+     * @param wifiNetwork the Wi-Fi configuration to encode
+     * @param output the builder to append the Wi-Fi configuration string to
+     * @see #getWifiString(WifiNetwork)
+     */
+    public static void appendWifiString(WifiNetwork wifiNetwork, StringBuilder output) {
         WifiAuthType authType = wifiNetwork.getAuthType();
         String key = wifiNetwork.getKey();
-        boolean isHidden = wifiNetwork.isHidden();
 
-        StringBuilder output = new StringBuilder(100);
-        output.append("WIFI:");
-        output.append("T:");
+        output.append("WIFI:T:");
         if (authType == WifiAuthType.OPEN) {
             output.append("nopass");
         } else if (authType == WifiAuthType.WEP) {
@@ -85,29 +208,62 @@ public class QrCodeUtils {
         } else {
             output.append("WPA"); // FIXME: support EAP?
         }
-        output.append(";");
-        maybeAppend(output, "P:", escapeMecard(key));
-        output.append("S:").append(escapeMecard(ssid)).append(';');
-        if (isHidden) {
-            maybeAppend(output, "H:", "true");
+        output.append(';');
+        if (key != null && !key.isEmpty()) {
+            output.append("P:");
+            appendMecardValue(output, key, !isRawKey(authType, key));
+            output.append(';');
+        }
+        output.append("S:");
+        appendMecardValue(output, wifiNetwork.getSsid(), true);
+        output.append(';');
+        if (wifiNetwork.isHidden()) {
+            output.append("H:true;");
         }
         output.append(';');
+    }
 
-        return output.toString();
+    /**
+     * Return whether the given key has the length of a key given as hexadecimal digits, which
+     * must not be quoted so that scanners do not take it for a passphrase
+     */
+    private static boolean isRawKey(WifiAuthType authType, String key) {
+        if (authType == WifiAuthType.WPA_PSK || authType == WifiAuthType.WPA2_PSK) {
+            return key.length() == WPA_HEX_KEY_LENGTH;
+        } else if (authType == WifiAuthType.WEP) {
+            return key.length() == WEP_40_HEX_KEY_LENGTH || key.length() == WEP_104_HEX_KEY_LENGTH
+                    || key.length() == WEP_232_HEX_KEY_LENGTH;
+        }
+        return false;
     }
 
-    private static void maybeAppend(StringBuilder output, String prefix, String value) {
-        if (value != null && !value.isEmpty()) {
-            output.append(prefix).append(value).append(';');
+    private static void appendMecardValue(StringBuilder output, String value, boolean quoteHex) {
+        boolean isQuoted = quoteHex && isHex(value);
+        if (isQuoted) {
+            output.append('"');
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"' || c == ';' || c == ',' || c == ':') {
+                output.append('\\');
+            }
+            output.append(c);
+        }
+        if (isQuoted) {
+            output.append('"');
         }
     }
 
-    private static String escapeMecard(String input) {
-        return input
-                .replace("\\", "\\\\")
-                .replace("\"", "\\\"")
-                .replace(";", "\\;")
-                .replace(",", "\\,")
-                .replace(":", "\\:");
+    private static boolean isHex(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F'))) {
+                return false;
+            }
+        }
+        return true;
     }
 }
@@ -0,0 +1,173 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream of files only readable as root, read with a single command
+ *
+ * The files are written by the {@link RootShell root shell}, whose standard output is read as
+ * is: the content is neither split into lines nor held in memory. The files are delimited by a
+ * random marker written right after each of them. Closing the stream skips the files not read
+ * yet, and hands the shell back for the next commands.
+ */
+public class RootFileStream implements Closeable {
+    private final RootShell shell;
+    private final InputStream input;
+    /* Its first byte does not appear again, so a partial match can be released as is */
+    private final byte[] marker;
+    private int remainingFiles;
+    private FileStream currentFile;
+    private boolean isShellEnded;
+    private boolean isClosed;
+
+    RootFileStream(RootShell shell, InputStream input, byte[] marker, int fileCount) {
+        this.shell = shell;
+        this.input = input;
+        this.marker = marker;
+        this.remainingFiles = fileCount;
+    }
+
+    /**
+     * Return the content of the next file, in the order of the paths given to
+     * {@link RootShell#readFiles(java.util.List)}
+     *
+     * The previous file is skipped if it has not been read to its end.
+     *
+     * @return the content of the file, empty if it cannot be read, or null after the last file
+     * @throws IOException if the previous file cannot be skipped
+     */
+    public InputStream nextFile() throws IOException {
+        if (currentFile != null) {
+            currentFile.close();
+            currentFile = null;
+        }
+        if (isClosed || remainingFiles == 0) {
+            return null;
+        }
+        remainingFiles--;
+        currentFile = new FileStream();
+        return currentFile;
+    }
+
+    /**
+     * @return whether the shell ended before the output was complete, e.g. when killed
+     */
+    boolean isShellEnded() {
+        return isShellEnded;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (isClosed) {
+            return;
+        }
+        boolean isSkipped = false;
+        try {
+            /* The output of the shell must be read up to the last marker */
+            while (nextFile() != null) {
+                /* Skipped */
+            }
+            isSkipped = true;
+        } finally {
+            isClosed = true;
+            shell.onOutputClosed(isShellEnded || !isSkipped);
+        }
+    }
+
+    /**
+     * Content of a single file, ending at its marker
+     */
+    private class FileStream extends InputStream {
+        private int matchedCount;
+        private int releasedCount;
+        private int releaseCount;
+        private int pendingByte = -1;
+        private boolean isEnded;
+
+        @Override
+        public int read() throws IOException {
+            /* Bytes which looked like the start of the marker but were not */
+            if (releasedCount < releaseCount) {
+                return marker[releasedCount++] & 0xff;
+            }
+            if (pendingByte != -1) {
+                int b = pendingByte;
+                pendingByte = -1;
+                return b;
+            }
+            if (isEnded) {
+                return -1;
+            }
+
+            while (true) {
+                int b = isShellEnded ? -1 : input.read();
+                if (b == -1) {
+                    /* The shell ended before the marker, e.g. when killed */
+                    isShellEnded = true;
+                    isEnded = true;
+                    return release(-1);
+                }
+                if (b == (marker[matchedCount] & 0xff)) {
+                    matchedCount++;
+                    if (matchedCount == marker.length) {
+                        isEnded = true;
+                        return -1;
+                    }
+                } else if (matchedCount > 0) {
+                    if (b == (marker[0] & 0xff)) {
+                        int released = release(-1);
+                        matchedCount = 1;
+                        return released;
+                    }
+                    return release(b);
+                } else {
+                    return b;
+                }
+            }
+        }
+
+        /**
+         * Release the bytes matched so far, followed by the given byte if any
+         */
+        private int release(int b) {
+            releaseCount = matchedCount;
+            releasedCount = 0;
+            matchedCount = 0;
+            pendingByte = b;
+            if (releasedCount < releaseCount) {
+                return marker[releasedCount++] & 0xff;
+            }
+            int next = pendingByte;
+            pendingByte = -1;
+            return next;
+        }
+
+        @Override
+        public void close() throws IOException {
+            /* Skip the rest of the file */
+            while (read() != -1) {
+                /* Discarded */
+            }
+        }
+    }
+}
@@ -0,0 +1,397 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived root shell, shared by the whole application
+ *
+ * A single su process is started on first use and closed after {@link #IDLE_TIMEOUT_SECONDS}
+ * without commands, so that repeated checks neither spawn su again nor show its toast. Commands
+ * are written to its standard input, and their output is read from its raw standard output,
+ * each one ending with a random marker (see {@link RootFileStream}). Whether root is available
+ * is only checked once per process, and files only need to be read again once their
+ * {@link #statFiles(List) fingerprint} changed. The methods of this class block and must
+ * not be called from the main thread.
+ */
+public class RootShell {
+    private static final String TAG = RootShell.class.getSimpleName();
+
+    public static final int IDLE_TIMEOUT_SECONDS = 30;
+    private static final int WATCHDOG_TIMEOUT_SECONDS = 20;
+
+    private static final String SU = "su";
+    private static final int BUFFER_SIZE = 16384;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static RootShell instance;
+
+    private static final ScheduledExecutorService idleTimer = newTimer("RootShell-idle");
+    /* Separate from the idle timer, which may wait for the lock held while su starts */
+    private static final ScheduledExecutorService watchdogTimer = newTimer("RootShell-watchdog");
+
+    private Boolean isRootAvailable;
+    private Process process;
+    private OutputStream stdin;
+    private InputStream stdout;
+    /* Output being read, no other command is sent until it is closed */
+    private RootFileStream pendingOutput;
+    private ScheduledFuture<?> pendingClose;
+    private int openCount;
+
+    private RootShell() {
+    }
+
+    public static synchronized RootShell getInstance() {
+        if (instance == null) {
+            instance = new RootShell();
+        }
+        return instance;
+    }
+
+    /**
+     * Check whether root is available, by opening the session the first time only
+     */
+    public synchronized boolean isRootAvailable() {
+        if (isRootAvailable == null) {
+            openShell();
+        }
+        return isRootAvailable;
+    }
+
+    /**
+     * @return whether the session is open, i.e. whether the next command is not slowed down by
+     * the start of su
+     */
+    public synchronized boolean isOpen() {
+        if (process == null) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return the number of times su has been started, to tell apart the operations slowed down
+     * by its start
+     */
+    public synchronized int getOpenCount() {
+        return openCount;
+    }
+
+    /**
+     * Read files as root with a single command
+     *
+     * The files are written by the session to its standard output, which is read byte for byte:
+     * the content is neither split into lines nor held in memory. The session runs no other
+     * command until the stream is closed.
+     *
+     * @param paths the absolute paths of the files
+     * @return the stream of the files, to be closed
+     * @throws IOException if root is not available
+     */
+    public RootFileStream readFiles(List<String> paths) throws IOException {
+        List<String> commands = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            /* Errors are discarded, so that the output only holds the files */
+            commands.add("cat " + quote(path) + " 2>/dev/null");
+        }
+        return run(commands);
+    }
+
+    /**
+     * Get the size, modification time and inode of files as root with a single command
+     *
+     * This is much cheaper than reading the files, and enough to tell whether they changed:
+     * the Wi-Fi configuration files are replaced by a rename on every write.
+     *
+     * @param paths the absolute paths of the files
+     * @return a fingerprint per file, empty if the file does not exist
+     * @throws IOException if root is not available or the command failed
+     */
+    public List<String> statFiles(List<String> paths) throws IOException {
+        List<String> commands = new ArrayList<>(paths.size());
+        for (String path : paths) {
+            commands.add("stat -c '%s %Y %i' " + quote(path) + " 2>/dev/null");
+        }
+
+        List<String> fingerprints = new ArrayList<>(paths.size());
+        RootFileStream output = run(commands);
+        try {
+            InputStream fingerprint;
+            while ((fingerprint = output.nextFile()) != null) {
+                fingerprints.add(readString(fingerprint).trim());
+            }
+            if (output.isShellEnded()) {
+                throw new IOException("Cannot stat files: root shell ended");
+            }
+        } finally {
+            output.close();
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Close the session now, once the output being read is closed
+     */
+    public synchronized void close() {
+        cancelClose();
+        while (pendingOutput != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        endShell();
+    }
+
+    /**
+     * Send commands to the session, opening it if needed
+     *
+     * @param commands the commands, whose output is returned as the successive files of the
+     *                 stream
+     * @throws IOException if root is not available or the commands cannot be sent
+     */
+    private synchronized RootFileStream run(List<String> commands) throws IOException {
+        while (pendingOutput != null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+        if (!isRootAvailable() || (!isOpen() && !openShell())) {
+            throw new IOException("Root not available");
+        }
+        cancelClose();
+        return send(commands);
+    }
+
+    private RootFileStream send(List<String> commands) throws IOException {
+        String marker = "#" + UUID.randomUUID().toString().replace("-", "");
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            script.append(command).append("; echo -n '").append(marker).append("'\n");
+        }
+        try {
+            stdin.write(script.toString().getBytes(UTF_8));
+            stdin.flush();
+        } catch (IOException e) {
+            endShell();
+            throw e;
+        }
+        pendingOutput = new RootFileStream(this, stdout, marker.getBytes(UTF_8), commands.size());
+        return pendingOutput;
+    }
+
+    /**
+     * Called when the output of the last commands has been read, or skipped
+     *
+     * @param isShellEnded whether the session ended before the end of the output
+     */
+    synchronized void onOutputClosed(boolean isShellEnded) {
+        pendingOutput = null;
+        if (isShellEnded) {
+            endShell();
+        } else {
+            scheduleClose();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Open the session, caching whether root is available
+     *
+     * @return whether the session is open
+     */
+    private boolean openShell() {
+        long startTime = System.nanoTime();
+        openCount++;
+        String uid = null;
+        try {
+            process = new ProcessBuilder(SU).start();
+            stdin = process.getOutputStream();
+            stdout = new BufferedInputStream(process.getInputStream(), BUFFER_SIZE);
+            drain(process.getErrorStream());
+            uid = readUid(process);
+        } catch (IOException e) {
+            Log.d(TAG, "Cannot start su: " + e.getMessage());
+        }
+
+        boolean isOpen = "0".equals(uid);
+        Log.d(TAG, "Root shell opened in " + (System.nanoTime() - startTime) / 1000000
+                + " ms: " + uid);
+        if (isRootAvailable == null) {
+            /* A denied or missing su is not asked again until the next process */
+            isRootAvailable = isOpen;
+        }
+        if (!isOpen) {
+            endShell();
+        } else {
+            scheduleClose();
+        }
+        return isOpen;
+    }
+
+    /**
+     * Get the user of the session, which stays blocked while su asks the user
+     */
+    private String readUid(final Process startedProcess) throws IOException {
+        ScheduledFuture<?> watchdog = watchdogTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "Root shell not answering, killed");
+                startedProcess.destroy();
+            }
+        }, WATCHDOG_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        RootFileStream output = send(Collections.singletonList("id -u"));
+        try {
+            String uid = readString(output.nextFile()).trim();
+            return output.isShellEnded() ? null : uid;
+        } finally {
+            output.close();
+            watchdog.cancel(false);
+        }
+    }
+
+    /**
+     * End the su process, if any
+     */
+    private void endShell() {
+        if (process == null) {
+            return;
+        }
+        try {
+            /* The shell exits at the end of its input */
+            stdin.close();
+            stdout.close();
+        } catch (IOException e) {
+            /* Ended anyway */
+        } finally {
+            process.destroy();
+            process = null;
+            stdin = null;
+            stdout = null;
+            Log.d(TAG, "Root shell closed");
+        }
+    }
+
+    private synchronized void scheduleClose() {
+        cancelClose();
+        pendingClose = idleTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                closeIfIdle();
+            }
+        }, IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private synchronized void closeIfIdle() {
+        pendingClose = null;
+        if (pendingOutput == null) {
+            close();
+        }
+    }
+
+    private void cancelClose() {
+        if (pendingClose != null) {
+            pendingClose.cancel(false);
+            pendingClose = null;
+        }
+    }
+
+    private static ScheduledExecutorService newTimer(final String name) {
+        return Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private static String readString(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return new String(output.toByteArray(), UTF_8);
+    }
+
+    /**
+     * Discard the messages of su itself, which would otherwise block it once the pipe is full
+     */
+    private static void drain(final InputStream stream) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[512];
+                try {
+                    while (stream.read(buffer) != -1) {
+                        /* Discarded */
+                    }
+                } catch (IOException e) {
+                    /* The shell has ended */
+                } finally {
+                    try {
+                        stream.close();
+                    } catch (IOException e) {
+                        /* Ignored */
+                    }
+                }
+            }
+        }, "RootShell-stderr");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Quote an argument for the shell
+     */
+    static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+}
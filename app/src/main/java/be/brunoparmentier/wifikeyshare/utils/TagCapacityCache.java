@@ -0,0 +1,166 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory of the NDEF capacities of the tags seen by the application
+ *
+ * Capacities are remembered per tag ID, and per tag type (the technologies of the tag, besides
+ * the NDEF ones, which change when a tag is formatted). The tech list does not tell models apart
+ * (NTAG213, NTAG215 and NTAG216 are all NfcA and MifareUltralight), so the capacity of a type is
+ * the largest one seen: an upper bound for a first write attempt, smaller variants being tried
+ * when it fails. The type and capacity of the last tag are persisted, so that a message too big
+ * for it can be reported before a tag is presented.
+ */
+public class TagCapacityCache {
+
+    public static final int UNKNOWN_CAPACITY = -1;
+
+    private static final String PREF_KEY_LAST_TAG_TYPE = "last_tag_type";
+    private static final String PREF_KEY_LAST_TAG_CAPACITY = "last_tag_capacity";
+    private static final int MAX_REMEMBERED_TAGS = 256;
+
+    private static TagCapacityCache instance;
+
+    private final SharedPreferences preferences;
+    private final LruCache<ByteBuffer, Integer> capacitiesByTagId =
+            new LruCache<>(MAX_REMEMBERED_TAGS);
+    private final Map<String, Integer> capacitiesByTagType = new HashMap<>();
+    private String lastTagType;
+    private int lastTagCapacity;
+
+    public static void init(Context context) {
+        if (instance == null) {
+            instance = new TagCapacityCache(PreferenceManager.getDefaultSharedPreferences(context));
+        }
+    }
+
+    public static TagCapacityCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param preferences the preferences persisting the last tag, or null
+     */
+    TagCapacityCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+        lastTagCapacity = UNKNOWN_CAPACITY;
+        if (preferences != null) {
+            lastTagType = preferences.getString(PREF_KEY_LAST_TAG_TYPE, null);
+            lastTagCapacity = preferences.getInt(PREF_KEY_LAST_TAG_CAPACITY, UNKNOWN_CAPACITY);
+            if (lastTagType != null && lastTagCapacity != UNKNOWN_CAPACITY) {
+                capacitiesByTagType.put(lastTagType, lastTagCapacity);
+            }
+        }
+    }
+
+    /**
+     * Remember the capacity of a tag, which becomes the last tag
+     *
+     * @param tagId the ID of the tag, or null if unknown
+     * @param tagType the type of the tag (see {@link #getTagType(String[])}), or null if unknown
+     * @param capacity the maximum NDEF message size of the tag
+     */
+    public synchronized void putCapacity(byte[] tagId, String tagType, int capacity) {
+        if (tagId != null && tagId.length > 0) {
+            capacitiesByTagId.put(ByteBuffer.wrap(tagId.clone()), capacity);
+        }
+        if (tagType != null) {
+            Integer typeCapacity = capacitiesByTagType.get(tagType);
+            if (typeCapacity == null || capacity > typeCapacity) {
+                capacitiesByTagType.put(tagType, capacity);
+            }
+        }
+
+        boolean isLastTagChanged = capacity != lastTagCapacity
+                || (tagType == null ? lastTagType != null : !tagType.equals(lastTagType));
+        if (isLastTagChanged && preferences != null) {
+            preferences.edit()
+                    .putString(PREF_KEY_LAST_TAG_TYPE, tagType)
+                    .putInt(PREF_KEY_LAST_TAG_CAPACITY, capacity)
+                    .apply();
+        }
+        lastTagType = tagType;
+        lastTagCapacity = capacity;
+    }
+
+    /**
+     * Return the remembered capacity of a tag, or else the largest capacity seen for its type
+     *
+     * The capacity of a type is only an upper bound, as several models share it.
+     *
+     * @return the capacity, or {@link #UNKNOWN_CAPACITY}
+     */
+    public synchronized int getCapacity(byte[] tagId, String tagType) {
+        if (tagId != null && tagId.length > 0) {
+            Integer capacity = capacitiesByTagId.get(ByteBuffer.wrap(tagId));
+            if (capacity != null) {
+                return capacity;
+            }
+        }
+        if (tagType != null) {
+            Integer capacity = capacitiesByTagType.get(tagType);
+            if (capacity != null) {
+                return capacity;
+            }
+        }
+        return UNKNOWN_CAPACITY;
+    }
+
+    /**
+     * @return the capacity of the last tag, or {@link #UNKNOWN_CAPACITY}
+     */
+    public synchronized int getLastTagCapacity() {
+        return lastTagCapacity;
+    }
+
+    /**
+     * Return the type of a tag from its technologies
+     *
+     * @param techList the technologies of the tag (see android.nfc.Tag#getTechList())
+     * @return the sorted technologies, NDEF ones excluded
+     */
+    public static String getTagType(String[] techList) {
+        String[] sortedTechList = techList.clone();
+        Arrays.sort(sortedTechList);
+        StringBuilder builder = new StringBuilder();
+        for (String tech : sortedTechList) {
+            if (tech.equals(Ndef.class.getName()) || tech.equals(NdefFormatable.class.getName())) {
+                continue;
+            }
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(tech);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Variants of the NDEF message written to a tag, from the largest to the smallest
+ *
+ * The serialized size of every variant is known before a tag is presented. A variant is only
+ * built and serialized the first time it is written.
+ *
+ * The plan of several Wi-Fi configurations holds all of them, and selects for each tag capacity
+ * the most configurations that fit (see {@link #forCapacity(int)}).
+ */
+public class TagMessagePlan {
+
+    public static final int UNAVAILABLE = -1;
+
+    public enum Variant {
+        /* Credentials with optional attributes, and AAR (Android Application Record) */
+        FULL,
+        /* Credentials with optional attributes */
+        WITHOUT_AAR,
+        /* Credentials with required attributes only */
+        MINIMAL
+    }
+
+    private static final Variant[] VARIANTS = Variant.values();
+
+    /* Configurations of the message, or null if the message is already built */
+    private final List<WifiNetwork> wifiNetworks;
+    /* Whether the configurations are to be selected against the capacity of each tag */
+    private final boolean isSelectable;
+    private final int[] sizes = new int[VARIANTS.length];
+    private final NdefMessage[] messages = new NdefMessage[VARIANTS.length];
+    private final byte[][] messageBytes = new byte[VARIANTS.length][];
+    /* Plans of the configurations selected for a given capacity */
+    private Map<Integer, TagMessagePlan> capacityPlans;
+
+    private TagMessagePlan(List<WifiNetwork> wifiNetworks, boolean isSelectable) {
+        this.wifiNetworks = wifiNetworks;
+        this.isSelectable = isSelectable;
+    }
+
+    /**
+     * Plan the messages of a Wi-Fi configuration, without building them
+     */
+    public static TagMessagePlan forWifiNetwork(WifiNetwork wifiNetwork) {
+        return forSelection(Collections.singletonList(wifiNetwork), true, false);
+    }
+
+    /**
+     * Plan the messages of several Wi-Fi configurations in a single WSC token, without building
+     * them
+     *
+     * Without a known capacity, the variants hold all the configurations.
+     *
+     * @param wifiNetworks the Wi-Fi configurations, by decreasing priority
+     */
+    public static TagMessagePlan forWifiNetworks(List<WifiNetwork> wifiNetworks) {
+        return forSelection(wifiNetworks, true, true);
+    }
+
+    private static TagMessagePlan forSelection(List<WifiNetwork> wifiNetworks, boolean withAar,
+                                               boolean isSelectable) {
+        TagMessagePlan plan = new TagMessagePlan(wifiNetworks, isSelectable);
+        int fullPayloadSize = WscTokenPacker.getPayloadSize(wifiNetworks, true);
+        int minimalPayloadSize = WscTokenPacker.getPayloadSize(wifiNetworks, false);
+        plan.sizes[Variant.FULL.ordinal()] = withAar
+                ? WscTokenPacker.getMessageSize(fullPayloadSize, NfcUtils.PACKAGE_NAME) : UNAVAILABLE;
+        plan.sizes[Variant.WITHOUT_AAR.ordinal()] =
+                WscTokenPacker.getMessageSize(fullPayloadSize, null);
+        plan.sizes[Variant.MINIMAL.ordinal()] =
+                WscTokenPacker.getMessageSize(minimalPayloadSize, null);
+        return plan;
+    }
+
+    /**
+     * Plan an already built message: its first record alone is the variant without AAR, and
+     * there is no minimal variant
+     */
+    public static TagMessagePlan forMessage(NdefMessage message) {
+        TagMessagePlan plan = new TagMessagePlan(null, false);
+        plan.setMessage(Variant.FULL, message);
+        NdefRecord[] records = message.getRecords();
+        if (records.length > 1) {
+            plan.setMessage(Variant.WITHOUT_AAR, new NdefMessage(new NdefRecord[] {records[0]}));
+        } else {
+            plan.sizes[Variant.WITHOUT_AAR.ordinal()] = UNAVAILABLE;
+        }
+        plan.sizes[Variant.MINIMAL.ordinal()] = UNAVAILABLE;
+        return plan;
+    }
+
+    /**
+     * Return the plan of the configurations to write to a tag of the given capacity
+     *
+     * The most configurations that fit are selected (see
+     * {@link WscTokenPacker#selectNetworks(List, int, String)}). The AAR is dropped when that
+     * lets one more configuration fit. When not even one configuration fits, the plan of all of
+     * them is returned, none of its variants fitting.
+     *
+     * @param capacity the maximum NDEF message size of the tag, or a negative value if unknown
+     * @return the plan of the selected configurations, this plan if it does not depend on the
+     * capacity
+     */
+    public synchronized TagMessagePlan forCapacity(int capacity) {
+        if (!isSelectable || capacity < 0) {
+            return this;
+        }
+        if (capacityPlans == null) {
+            capacityPlans = new HashMap<>();
+        }
+        TagMessagePlan plan = capacityPlans.get(capacity);
+        if (plan == null) {
+            List<WifiNetwork> withAar =
+                    WscTokenPacker.selectNetworks(wifiNetworks, capacity, NfcUtils.PACKAGE_NAME);
+            List<WifiNetwork> withoutAar =
+                    WscTokenPacker.selectNetworks(wifiNetworks, capacity, null);
+            if (withAar.size() == wifiNetworks.size() || withoutAar.isEmpty()) {
+                plan = this;
+            } else if (withoutAar.size() > withAar.size()) {
+                plan = forSelection(withoutAar, false, false);
+            } else {
+                plan = forSelection(withAar, true, false);
+            }
+            capacityPlans.put(capacity, plan);
+        }
+        return plan;
+    }
+
+    private void setMessage(Variant variant, NdefMessage message) {
+        messages[variant.ordinal()] = message;
+        messageBytes[variant.ordinal()] = message.toByteArray();
+        sizes[variant.ordinal()] = messageBytes[variant.ordinal()].length;
+    }
+
+    /**
+     * @return the number of Wi-Fi configurations of the message, or 0 if unknown
+     */
+    public int getNetworkCount() {
+        return wifiNetworks != null ? wifiNetworks.size() : 0;
+    }
+
+    /**
+     * @return the serialized size of the variant, or {@link #UNAVAILABLE}
+     */
+    public int getSize(Variant variant) {
+        return sizes[variant.ordinal()];
+    }
+
+    /**
+     * @return the size of the smallest variant
+     */
+    public int getMinimalSize() {
+        for (int i = VARIANTS.length - 1; i >= 0; i--) {
+            if (sizes[i] != UNAVAILABLE) {
+                return sizes[i];
+            }
+        }
+        throw new IllegalStateException("No variant");
+    }
+
+    /**
+     * Select the largest variant fitting the given capacity
+     *
+     * @param capacity the maximum NDEF message size of the tag, or a negative value if unknown
+     * @return the variant, or null if none fits
+     */
+    public Variant selectVariant(int capacity) {
+        for (Variant variant : VARIANTS) {
+            int size = sizes[variant.ordinal()];
+            if (size != UNAVAILABLE && (capacity < 0 || size <= capacity)) {
+                return variant;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the next smaller variant, or null if the given variant is the smallest
+     */
+    public Variant getSmallerVariant(Variant variant) {
+        for (int i = variant.ordinal() + 1; i < VARIANTS.length; i++) {
+            if (sizes[i] != UNAVAILABLE) {
+                return VARIANTS[i];
+            }
+        }
+        return null;
+    }
+
+    public synchronized NdefMessage getMessage(Variant variant) {
+        if (messages[variant.ordinal()] == null) {
+            if (sizes[variant.ordinal()] == UNAVAILABLE) {
+                throw new IllegalArgumentException("Unavailable variant: " + variant);
+            }
+            setMessage(variant, NfcUtils.generateNdefMessage(wifiNetworks,
+                    variant != Variant.MINIMAL, variant == Variant.FULL));
+        }
+        return messages[variant.ordinal()];
+    }
+
+    /**
+     * @return the serialized message of the variant, not to be modified
+     */
+    public synchronized byte[] getMessageBytes(Variant variant) {
+        getMessage(variant);
+        return messageBytes[variant.ordinal()];
+    }
+}
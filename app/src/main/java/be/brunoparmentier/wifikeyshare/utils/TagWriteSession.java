@@ -0,0 +1,512 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.TagLostException;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Session writing the same NDEF message to a series of NFC tags
+ *
+ * The largest variant of the message fitting each tag is written (see {@link TagMessagePlan}),
+ * and each variant is serialized at most once for the whole session. When the plan holds several
+ * Wi-Fi configurations, the most that fit each tag are written. Tags already written during
+ * the session are recognized by their ID and skipped. Each write can optionally be verified by
+ * reading the tag back.
+ *
+ * Writes block until the tag has been written, timed out or failed its last attempt, and must
+ * therefore run off the main thread (see {@link NfcTagWriter}). A session is meant to be used by
+ * a single thread at a time; its counters can be read from any thread.
+ */
+public class TagWriteSession {
+    private static final String TAG = TagWriteSession.class.getSimpleName();
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final double NANOS_PER_MINUTE = 60e9;
+    private static final long WATCHDOG_KEEP_ALIVE_SECONDS = 30;
+
+    /* Closing a tag technology from another thread cancels its blocked I/O */
+    private static final ScheduledThreadPoolExecutor watchdog = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TagWriteSession watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        watchdog.setKeepAliveTime(WATCHDOG_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        watchdog.allowCoreThreadTimeOut(true);
+    }
+
+    public enum Result {
+        WRITTEN,
+        ALREADY_WRITTEN,
+        NOT_SUPPORTED,
+        NOT_WRITABLE,
+        TOO_SMALL,
+        VERIFICATION_FAILED,
+        TIMED_OUT,
+        FAILED
+    }
+
+    /**
+     * Timeout of a write attempt and number of attempts made when a tag is lost or an I/O
+     * error occurs
+     */
+    public static class RetryPolicy {
+        public static final RetryPolicy DEFAULT = new RetryPolicy(3, 3000, 100);
+
+        private final int maxAttempts;
+        private final long timeoutMillis;
+        private final long retryDelayMillis;
+
+        /**
+         * @param maxAttempts the maximum number of attempts, at least 1
+         * @param timeoutMillis the maximum duration of an attempt (connection, write and
+         *                      verification)
+         * @param retryDelayMillis the delay before each new attempt
+         */
+        public RetryPolicy(int maxAttempts, long timeoutMillis, long retryDelayMillis) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            }
+            this.maxAttempts = maxAttempts;
+            this.timeoutMillis = timeoutMillis;
+            this.retryDelayMillis = retryDelayMillis;
+        }
+
+        public int getMaxAttempts() {
+            return maxAttempts;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public long getRetryDelayMillis() {
+            return retryDelayMillis;
+        }
+    }
+
+    /**
+     * NDEF-capable technology of a tag, abstracted from {@link Ndef} and {@link NdefFormatable}
+     */
+    public interface Target {
+        void connect() throws IOException;
+
+        void close() throws IOException;
+
+        boolean isWritable();
+
+        /**
+         * @return the maximum NDEF message size, or -1 if unknown
+         */
+        int getMaxSize();
+
+        void write(NdefMessage message) throws IOException, FormatException;
+
+        /**
+         * @return the NDEF message of the tag, or null if it cannot be read back
+         */
+        NdefMessage read() throws IOException, FormatException;
+    }
+
+    private final TagMessagePlan plan;
+    private final RetryPolicy retryPolicy;
+    private final TagCapacityCache capacityCache;
+
+    private final Set<ByteBuffer> writtenTagIds = new HashSet<>();
+    private volatile boolean verify;
+    /* Plan and variant written by the last attempt */
+    private TagMessagePlan attemptedPlan;
+    private TagMessagePlan.Variant attemptedVariant;
+    private volatile int lastNetworkCount;
+
+    private volatile int writtenCount;
+    private volatile int failedCount;
+    private volatile int alreadyWrittenCount;
+    private volatile long totalWriteNanos;
+    private volatile long startNanos;
+
+    /**
+     * @param message the message to write, whose first record is the Wi-Fi configuration and
+     *                optional second record the AAR (Android Application Record)
+     * @param verify whether to read each tag back after writing it
+     */
+    public TagWriteSession(NdefMessage message, boolean verify) {
+        this(message, verify, RetryPolicy.DEFAULT);
+    }
+
+    /**
+     * @param message the message to write, whose first record is the Wi-Fi configuration and
+     *                optional second record the AAR (Android Application Record)
+     * @param verify whether to read each tag back after writing it
+     * @param retryPolicy the timeout and retry policy of each write
+     */
+    public TagWriteSession(NdefMessage message, boolean verify, RetryPolicy retryPolicy) {
+        this(TagMessagePlan.forMessage(message), verify, retryPolicy, null);
+    }
+
+    /**
+     * @param plan the variants of the message to write, the largest fitting a tag being written
+     * @param verify whether to read each tag back after writing it
+     * @param retryPolicy the timeout and retry policy of each write
+     * @param capacityCache the memory of tag capacities, or null
+     */
+    public TagWriteSession(TagMessagePlan plan, boolean verify, RetryPolicy retryPolicy,
+                           TagCapacityCache capacityCache) {
+        this.plan = plan;
+        this.verify = verify;
+        this.retryPolicy = retryPolicy;
+        this.capacityCache = capacityCache;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    /**
+     * Write the message to the given tag, unless it has already been written in this session
+     */
+    public Result write(Tag tag) {
+        return write(tag.getId(), TagCapacityCache.getTagType(tag.getTechList()), getTarget(tag));
+    }
+
+    Result write(byte[] tagId, Target target) {
+        return write(tagId, null, target);
+    }
+
+    /**
+     * Write the message to the given tag technology
+     *
+     * @param tagId the ID of the tag, or null if unknown
+     * @param tagType the type of the tag (see TagCapacityCache#getTagType()), or null if unknown
+     * @param target the NDEF technology of the tag, or null if the tag does not support NDEF
+     */
+    Result write(byte[] tagId, String tagType, Target target) {
+        if (startNanos == 0) {
+            startNanos = System.nanoTime();
+        }
+
+        ByteBuffer tagKey = tagId == null || tagId.length == 0
+                ? null : ByteBuffer.wrap(tagId.clone());
+        if (tagKey != null && writtenTagIds.contains(tagKey)) {
+            alreadyWrittenCount++;
+            return Result.ALREADY_WRITTEN;
+        }
+
+        if (target == null) {
+            failedCount++;
+            return Result.NOT_SUPPORTED;
+        }
+
+        long writeStartNanos = System.nanoTime();
+        Result result = writeTarget(tagId, tagType, target);
+        if (result == Result.WRITTEN) {
+            totalWriteNanos += System.nanoTime() - writeStartNanos;
+            writtenCount++;
+            if (tagKey != null) {
+                writtenTagIds.add(tagKey);
+            }
+        } else {
+            failedCount++;
+        }
+        return result;
+    }
+
+    /**
+     * Write the message, retrying on I/O errors as allowed by the retry policy
+     */
+    private Result writeTarget(byte[] tagId, String tagType, Target target) {
+        /* Largest variant allowed by the failures of the previous attempts */
+        TagMessagePlan.Variant maxVariant = TagMessagePlan.Variant.FULL;
+        for (int attempt = 1; ; attempt++) {
+            Result result;
+            AtomicBoolean isTimedOut = new AtomicBoolean();
+            ScheduledFuture<?> timeout = scheduleTimeout(target, isTimedOut);
+            attemptedPlan = null;
+            attemptedVariant = null;
+            try {
+                return writeTargetOnce(tagId, tagType, target, maxVariant);
+            } catch (FormatException e) {
+                Log.w(TAG, "Writing to tag failed", e);
+                return Result.FAILED;
+            } catch (IOException e) {
+                Log.w(TAG, "Writing to tag failed (attempt " + attempt + ")", e);
+                result = isTimedOut.get() ? Result.TIMED_OUT : Result.FAILED;
+                if (!isTimedOut.get() && !(e instanceof TagLostException)
+                        && target.getMaxSize() < 0 && attemptedVariant != null) {
+                    /* The capacity of an unformatted tag is unknown: a smaller variant may fit */
+                    TagMessagePlan.Variant smallerVariant =
+                            attemptedPlan.getSmallerVariant(attemptedVariant);
+                    if (smallerVariant != null) {
+                        maxVariant = smallerVariant;
+                    }
+                }
+            } finally {
+                timeout.cancel(false);
+                closeTarget(target);
+            }
+
+            if (attempt >= retryPolicy.getMaxAttempts()
+                    || !sleep(retryPolicy.getRetryDelayMillis())) {
+                return result;
+            }
+        }
+    }
+
+    private Result writeTargetOnce(byte[] tagId, String tagType, Target target,
+                                   TagMessagePlan.Variant maxVariant)
+            throws IOException, FormatException {
+        target.connect();
+        if (!target.isWritable()) {
+            return Result.NOT_WRITABLE;
+        }
+
+        int capacity = target.getMaxSize();
+        TagMessagePlan tagPlan;
+        TagMessagePlan.Variant variant;
+        if (capacity >= 0) {
+            if (capacityCache != null) {
+                capacityCache.putCapacity(tagId, tagType, capacity);
+            }
+            tagPlan = plan.forCapacity(capacity);
+            variant = tagPlan.selectVariant(capacity);
+            if (variant == null) {
+                return Result.TOO_SMALL;
+            }
+        } else {
+            /*
+             * Capacity remembered for this tag, or else the largest one of its type: a smaller
+             * model of the same type fails this attempt and gets a smaller variant on retry
+             */
+            capacity = capacityCache != null
+                    ? capacityCache.getCapacity(tagId, tagType) : TagCapacityCache.UNKNOWN_CAPACITY;
+            tagPlan = plan.forCapacity(capacity);
+            variant = tagPlan.selectVariant(capacity);
+            if (variant == null) {
+                variant = tagPlan.selectVariant(tagPlan.getMinimalSize());
+            }
+        }
+        if (variant.ordinal() < maxVariant.ordinal()) {
+            variant = maxVariant;
+        }
+
+        attemptedPlan = tagPlan;
+        attemptedVariant = variant;
+        target.write(tagPlan.getMessage(variant));
+
+        if (verify) {
+            NdefMessage readMessage = target.read();
+            if (readMessage == null) {
+                Log.d(TAG, "Tag cannot be read back, not verified");
+            } else if (!Arrays.equals(tagPlan.getMessageBytes(variant), readMessage.toByteArray())) {
+                return Result.VERIFICATION_FAILED;
+            }
+        }
+        lastNetworkCount = tagPlan.getNetworkCount();
+        return Result.WRITTEN;
+    }
+
+    private ScheduledFuture<?> scheduleTimeout(final Target target, final AtomicBoolean isTimedOut) {
+        return watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Log.w(TAG, "Tag operation timed out");
+                isTimedOut.set(true);
+                closeTarget(target);
+            }
+        }, retryPolicy.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static void closeTarget(Target target) {
+        try {
+            target.close();
+        } catch (IOException e) {
+            Log.d(TAG, "Closing tag failed", e);
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public int getWrittenCount() {
+        return writtenCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getAlreadyWrittenCount() {
+        return alreadyWrittenCount;
+    }
+
+    /**
+     * @return the number of Wi-Fi configurations written to the last tag, or 0 if unknown
+     */
+    public int getLastNetworkCount() {
+        return lastNetworkCount;
+    }
+
+    /**
+     * @return the number of tags written per minute since the first tag of the session
+     */
+    public double getTagsPerMinute() {
+        if (writtenCount == 0) {
+            return 0;
+        }
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        return writtenCount * NANOS_PER_MINUTE / elapsedNanos;
+    }
+
+    /**
+     * @return the average duration of a successful write, verification included, in milliseconds
+     */
+    public long getAverageWriteLatencyMillis() {
+        if (writtenCount == 0) {
+            return 0;
+        }
+        return totalWriteNanos / writtenCount / NANOS_PER_MILLI;
+    }
+
+    /**
+     * Return the NDEF technology of the given tag
+     *
+     * @return the NDEF technology of the tag, or null if the tag does not support NDEF
+     */
+    static Target getTarget(Tag tag) {
+        Ndef ndef = Ndef.get(tag);
+        if (ndef != null) {
+            return new NdefTarget(ndef);
+        }
+        NdefFormatable ndefFormatable = NdefFormatable.get(tag);
+        if (ndefFormatable != null) {
+            return new NdefFormatableTarget(ndefFormatable);
+        }
+        return null;
+    }
+
+    private static class NdefTarget implements Target {
+        private final Ndef ndef;
+
+        NdefTarget(Ndef ndef) {
+            this.ndef = ndef;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            ndef.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ndef.close();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return ndef.isWritable();
+        }
+
+        @Override
+        public int getMaxSize() {
+            return ndef.getMaxSize();
+        }
+
+        @Override
+        public void write(NdefMessage message) throws IOException, FormatException {
+            ndef.writeNdefMessage(message);
+        }
+
+        @Override
+        public NdefMessage read() throws IOException, FormatException {
+            return ndef.getNdefMessage();
+        }
+    }
+
+    private static class NdefFormatableTarget implements Target {
+        private final NdefFormatable ndefFormatable;
+
+        NdefFormatableTarget(NdefFormatable ndefFormatable) {
+            this.ndefFormatable = ndefFormatable;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            ndefFormatable.connect();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ndefFormatable.close();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return true;
+        }
+
+        @Override
+        public int getMaxSize() {
+            return -1;
+        }
+
+        @Override
+        public void write(NdefMessage message) throws IOException, FormatException {
+            ndefFormatable.format(message);
+        }
+
+        @Override
+        public NdefMessage read() {
+            /* The NDEF technology is only available once the tag is rediscovered */
+            return null;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.util.Arrays;
+
+/**
+ * Read-only NFC Forum Type 4 tag serving a single NDEF message
+ *
+ * Commands are handled as described in the NFC Forum Type 4 Tag Operation specification (version
+ * 2.0): SELECT of the NDEF tag application, SELECT of the capability container (CC) and NDEF
+ * files, and READ BINARY. The files and the fixed responses are serialized once, when the
+ * emulator is created.
+ *
+ * This class is not thread-safe.
+ */
+public class Type4TagEmulator {
+
+    /* AID of the NDEF tag application */
+    public static final String NDEF_APPLICATION_AID = "D2760000850101";
+
+    private static final byte CLA = 0x00;
+    private static final byte INS_SELECT = (byte) 0xA4;
+    private static final byte INS_READ_BINARY = (byte) 0xB0;
+    private static final byte SELECT_BY_NAME = 0x04;
+    private static final byte SELECT_BY_FILE_ID = 0x00;
+
+    private static final byte[] NDEF_APPLICATION_NAME = {
+            (byte) 0xD2, 0x76, 0x00, 0x00, (byte) 0x85, 0x01, 0x01};
+    private static final int CC_FILE_ID = 0xE103;
+    private static final int NDEF_FILE_ID = 0xE104;
+
+    /* Maximum data size of R-APDUs and C-APDUs, without extended length */
+    private static final int MAX_LE = 0xFF;
+    private static final int MAX_LC = 0xFF;
+    /* Largest NDEF message fitting in the NDEF file, whose size is at most 0xFFFE */
+    public static final int MAX_MESSAGE_SIZE = 0xFFFE - 2;
+
+    static final byte[] SW_OK = {(byte) 0x90, 0x00};
+    static final byte[] SW_WRONG_LENGTH = {0x67, 0x00};
+    static final byte[] SW_COMMAND_NOT_ALLOWED = {0x69, (byte) 0x86};
+    static final byte[] SW_FILE_NOT_FOUND = {0x6A, (byte) 0x82};
+    static final byte[] SW_WRONG_PARAMETERS = {0x6B, 0x00};
+    static final byte[] SW_INS_NOT_SUPPORTED = {0x6D, 0x00};
+    static final byte[] SW_CLA_NOT_SUPPORTED = {0x6E, 0x00};
+
+    private final byte[] ccFile;
+    private final byte[] ndefFile;
+
+    private boolean isApplicationSelected;
+    private byte[] selectedFile;
+
+    /**
+     * @param ndefMessage the serialized NDEF message, at most {@link #MAX_MESSAGE_SIZE} bytes
+     */
+    public Type4TagEmulator(byte[] ndefMessage) {
+        if (ndefMessage.length > MAX_MESSAGE_SIZE) {
+            throw new IllegalArgumentException("NDEF message too large: " + ndefMessage.length);
+        }
+
+        /* NDEF file: NLEN, then the message */
+        ndefFile = new byte[2 + ndefMessage.length];
+        putShort(ndefFile, 0, ndefMessage.length);
+        System.arraycopy(ndefMessage, 0, ndefFile, 2, ndefMessage.length);
+
+        /* CC file: CCLEN, mapping version, MLe, MLc, then the NDEF file control TLV */
+        ccFile = new byte[15];
+        putShort(ccFile, 0, ccFile.length);
+        ccFile[2] = 0x20;
+        putShort(ccFile, 3, MAX_LE);
+        putShort(ccFile, 5, MAX_LC);
+        ccFile[7] = 0x04;
+        ccFile[8] = 0x06;
+        putShort(ccFile, 9, NDEF_FILE_ID);
+        putShort(ccFile, 11, ndefFile.length);
+        ccFile[13] = 0x00; // read access without any security
+        ccFile[14] = (byte) 0xFF; // no write access
+    }
+
+    /**
+     * Process a command APDU
+     *
+     * @param apdu the command APDU
+     * @return the response APDU, ending with the status word
+     */
+    public byte[] processCommandApdu(byte[] apdu) {
+        if (apdu == null || apdu.length < 4) {
+            return SW_WRONG_LENGTH;
+        }
+        if (apdu[0] != CLA) {
+            return SW_CLA_NOT_SUPPORTED;
+        }
+        switch (apdu[1]) {
+            case INS_SELECT:
+                return select(apdu);
+            case INS_READ_BINARY:
+                return readBinary(apdu);
+            default:
+                return SW_INS_NOT_SUPPORTED;
+        }
+    }
+
+    /**
+     * Forget the selected application and file, e.g. when the reader goes away
+     */
+    public void reset() {
+        isApplicationSelected = false;
+        selectedFile = null;
+    }
+
+    private byte[] select(byte[] apdu) {
+        /* CLA INS P1 P2 Lc data [Le] */
+        if (apdu.length < 5) {
+            return SW_WRONG_LENGTH;
+        }
+        int lc = apdu[4] & 0xFF;
+        if (apdu.length != 5 + lc && apdu.length != 6 + lc) {
+            return SW_WRONG_LENGTH;
+        }
+
+        if (apdu[2] == SELECT_BY_NAME) {
+            selectedFile = null;
+            isApplicationSelected = lc == NDEF_APPLICATION_NAME.length
+                    && regionMatches(apdu, 5, NDEF_APPLICATION_NAME);
+            return isApplicationSelected ? SW_OK : SW_FILE_NOT_FOUND;
+        }
+
+        if (apdu[2] == SELECT_BY_FILE_ID) {
+            if (lc != 2) {
+                return SW_WRONG_LENGTH;
+            }
+            int fileId = ((apdu[5] & 0xFF) << 8) | (apdu[6] & 0xFF);
+            if (!isApplicationSelected) {
+                return SW_FILE_NOT_FOUND;
+            } else if (fileId == CC_FILE_ID) {
+                selectedFile = ccFile;
+            } else if (fileId == NDEF_FILE_ID) {
+                selectedFile = ndefFile;
+            } else {
+                return SW_FILE_NOT_FOUND;
+            }
+            return SW_OK;
+        }
+
+        return SW_WRONG_PARAMETERS;
+    }
+
+    private byte[] readBinary(byte[] apdu) {
+        /* CLA INS P1 P2 Le */
+        if (apdu.length != 5) {
+            return SW_WRONG_LENGTH;
+        }
+        if (selectedFile == null) {
+            return SW_COMMAND_NOT_ALLOWED;
+        }
+        int offset = ((apdu[2] & 0x7F) << 8) | (apdu[3] & 0xFF);
+        if ((apdu[2] & 0x80) != 0 || offset > selectedFile.length) {
+            return SW_WRONG_PARAMETERS;
+        }
+        int le = apdu[4] & 0xFF;
+        if (le == 0) {
+            le = 256;
+        }
+
+        int length = Math.min(le, selectedFile.length - offset);
+        byte[] response = Arrays.copyOfRange(selectedFile, offset, offset + length + 2);
+        response[length] = SW_OK[0];
+        response[length + 1] = SW_OK[1];
+        return response;
+    }
+
+    private static boolean regionMatches(byte[] array, int offset, byte[] expected) {
+        for (int i = 0; i < expected.length; i++) {
+            if (array[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void putShort(byte[] array, int offset, int value) {
+        array[offset] = (byte) (value >> 8);
+        array[offset + 1] = (byte) value;
+    }
+}
@@ -24,15 +24,26 @@ import android.util.Xml;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 
+/**
+ * Parser of the WifiConfigStore.xml file, used to store the Wi-Fi configuration since Android 8.0
+ *
+ * Networks are parsed one at a time, while the file is read, by a {@link NetworkIterator}: a
+ * malformed Network element is skipped without losing the following ones.
+ */
 public class WifiConfigStoreParser {
+    private static final String TAG = WifiConfigStoreParser.class.getSimpleName();
 
     public WifiConfigStoreParser() {
         throw new IllegalStateException("Utility class");
@@ -40,57 +51,164 @@ public class WifiConfigStoreParser {
 
     public static List<WifiNetwork> parse(InputStream in)
             throws XmlPullParserException, IOException {
-        List<WifiNetwork> wifiNetworks = new ArrayList<>();
-
+        XmlPullParser parser = Xml.newPullParser();
         try {
-            XmlPullParser parser = Xml.newPullParser();
             parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
             parser.setInput(in, null);
-            while (parser.next() != XmlPullParser.END_DOCUMENT) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
-                }
-                if (parser.getName().equalsIgnoreCase("NetworkList")) {
-                    wifiNetworks.addAll(readNetworkList(parser));
-                }
-            }
-            return wifiNetworks;
-        } finally {
+        } catch (XmlPullParserException e) {
             in.close();
+            throw e;
         }
+        return toList(new NetworkIterator(parser, in));
     }
 
-    private static List<WifiNetwork> readNetworkList(XmlPullParser parser)
+    /**
+     * Parse a configuration already decoded, e.g. streamed by {@link RootFileStream}
+     */
+    public static List<WifiNetwork> parse(Reader in)
             throws XmlPullParserException, IOException {
-        List<WifiNetwork> result = new ArrayList<>();
-        parser.require(XmlPullParser.START_TAG, null, "NetworkList");
-        boolean doLoop = true;
-        while (doLoop) {
-            try {
-                parser.next();
-                String tagName = parser.getName();
-                if (tagName == null) {
-                    tagName = "";
+        return toList(iterate(in));
+    }
+
+    /**
+     * Parse the networks of a configuration one at a time, as they are read
+     *
+     * @param in the configuration, closed by the returned iterator
+     * @return the networks, to be closed once done
+     */
+    public static NetworkIterator iterate(Reader in) throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        try {
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+            parser.setInput(in);
+        } catch (XmlPullParserException e) {
+            in.close();
+            throw e;
+        }
+        return new NetworkIterator(parser, in);
+    }
+
+    private static List<WifiNetwork> toList(NetworkIterator iterator)
+            throws XmlPullParserException, IOException {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>();
+        try {
+            while (iterator.hasNext()) {
+                wifiNetworks.add(iterator.next());
+            }
+            iterator.checkError();
+        } finally {
+            iterator.close();
+        }
+        return wifiNetworks;
+    }
+
+    /**
+     * Pull-based iterator over the networks of a configuration
+     *
+     * Errors of the document itself, e.g. when it is truncated or missing, end the iteration and
+     * are reported by {@link #checkError()}.
+     */
+    public static class NetworkIterator implements Iterator<WifiNetwork>, Closeable {
+        private final XmlPullParser parser;
+        private final Closeable input;
+        private WifiNetwork nextNetwork;
+        private boolean isInNetworkList;
+        private boolean isFinished;
+        private Exception error;
+        private int skippedCount;
+
+        NetworkIterator(XmlPullParser parser, Closeable input) {
+            this.parser = parser;
+            this.input = input;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (nextNetwork == null && !isFinished) {
+                try {
+                    advance();
+                } catch (XmlPullParserException | IOException e) {
+                    error = e;
+                    isFinished = true;
                 }
-                doLoop = (!tagName.equalsIgnoreCase("NetworkList"));
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
+            }
+            return nextNetwork != null;
+        }
+
+        @Override
+        public WifiNetwork next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            WifiNetwork wifiNetwork = nextNetwork;
+            nextNetwork = null;
+            return wifiNetwork;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the number of malformed networks skipped so far
+         */
+        public int getSkippedCount() {
+            return skippedCount;
+        }
+
+        /**
+         * Throw the error that ended the iteration, if any
+         */
+        public void checkError() throws XmlPullParserException, IOException {
+            if (error instanceof XmlPullParserException) {
+                throw (XmlPullParserException) error;
+            } else if (error instanceof IOException) {
+                throw (IOException) error;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            isFinished = true;
+            input.close();
+        }
+
+        private void advance() throws XmlPullParserException, IOException {
+            int eventType = parser.next();
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                isFinished = true;
+            } else if (eventType == XmlPullParser.START_TAG) {
+                String tagName = parser.getName();
+                if (tagName.equalsIgnoreCase("NetworkList")) {
+                    isInNetworkList = true;
+                } else if (isInNetworkList && tagName.equals("Network")) {
+                    readNetwork();
                 }
+            } else if (eventType == XmlPullParser.END_TAG
+                    && parser.getName().equalsIgnoreCase("NetworkList")) {
+                isInNetworkList = false;
+            }
+        }
 
-                if (tagName.equals("Network")) {
-                    WifiNetwork newWifi = readNetworkEntry(parser);
-                    if (newWifi.getSsid().length() != 0) {
-                        result.add(newWifi);
-                    }
-                } else {
-                    skip(parser);
+        private void readNetwork() throws XmlPullParserException, IOException {
+            int depth = parser.getDepth();
+            try {
+                WifiNetwork wifiNetwork = readNetworkEntry(parser);
+                if (wifiNetwork != null && wifiNetwork.getSsid().length() != 0) {
+                    nextNetwork = wifiNetwork;
+                }
+            } catch (XmlPullParserException | RuntimeException e) {
+                /* Skip to the end of the network, unless the document itself is malformed */
+                Log.e(TAG, "Skipping malformed network: " + e);
+                skippedCount++;
+                while (parser.getEventType() != XmlPullParser.END_DOCUMENT
+                        && (parser.getEventType() != XmlPullParser.END_TAG
+                        || parser.getDepth() != depth)) {
+                    parser.next();
                 }
-            } catch (Exception e) {
-                Log.e("LoadData.NetworkList", e.getMessage());
-                doLoop = false;
             }
         }
-        return result;
     }
 
     private static WifiNetwork readNetworkEntry(XmlPullParser parser) throws XmlPullParserException, IOException {
@@ -113,76 +231,79 @@ public class WifiConfigStoreParser {
         return result;
     }
 
-    private static WifiNetwork readWiFiConfig(XmlPullParser parser) {
+    private static WifiNetwork readWiFiConfig(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
         String ssid = "";
         WifiAuthType authType = WifiAuthType.OPEN;
         String key = "";
 
-        try {
-            while (parser.next() != XmlPullParser.END_TAG) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
+        while (parser.next() != XmlPullParser.END_TAG) {
+            if (parser.getEventType() != XmlPullParser.START_TAG) {
+                continue;
+            }
+            String tagName = parser.getName();
+            String name = parser.getAttributeValue(null, "name");
+            if (name.equals("ConfigKey") && !tagName.equalsIgnoreCase("null")) {
+                String configKey = readTag(parser, tagName);
+                String parsedAuthType = configKey.substring(configKey.lastIndexOf("\"") + 1);
+                switch (parsedAuthType) {
+                    case "NONE":
+                        authType = WifiAuthType.OPEN;
+                        break;
+                    case "WEP":
+                        authType = WifiAuthType.WEP;
+                        break;
+                    case "WPA_PSK":
+                        authType = WifiAuthType.WPA2_PSK;
+                        break;
+                    case "WPA_EAP":
+                        authType = WifiAuthType.WPA2_EAP;
+                        break;
                 }
-                String tagName = parser.getName();
-                String name = parser.getAttributeValue(null, "name");
-                if (name.equals("ConfigKey") && !tagName.equalsIgnoreCase("null")) {
-                    String configKey = readTag(parser, tagName);
-                    String parsedAuthType = configKey.substring(configKey.lastIndexOf("\"") + 1);
-                    switch (parsedAuthType) {
-                        case "NONE":
-                            authType = WifiAuthType.OPEN;
-                            break;
-                        case "WEP":
-                            authType = WifiAuthType.WEP;
-                            break;
-                        case "WPA_PSK":
-                            authType = WifiAuthType.WPA2_PSK;
-                            break;
-                        case "WPA_EAP":
-                            authType = WifiAuthType.WPA2_EAP;
-                            break;
-                    }
-                } else if (name.equals("SSID") && !tagName.equalsIgnoreCase("null")) {
-                    ssid = readTag(parser, tagName);
-                } else if (name.equals("PreSharedKey") && !tagName.equalsIgnoreCase("null")) {
-                    String newKey = readTag(parser, tagName);
+            } else if (name.equals("SSID") && !tagName.equalsIgnoreCase("null")) {
+                ssid = readTag(parser, tagName);
+            } else if (name.equals("PreSharedKey") && !tagName.equalsIgnoreCase("null")) {
+                String newKey = readTag(parser, tagName);
+                if (newKey.length() > 0) {
+                    key = newKey;
+                }
+            } else if (name.equals("WEPKeys") && !tagName.equalsIgnoreCase("null")) {
+                if (tagName.equalsIgnoreCase("string-array")) {
+                    String newKey = readWepKeys(parser);
                     if (newKey.length() > 0) {
                         key = newKey;
                     }
-                } else if (name.equals("WEPKeys") && !tagName.equalsIgnoreCase("null")) {
-                    if (tagName.equalsIgnoreCase("string-array")) {
-                        try {
-                            int numQty = Integer.parseInt(parser.getAttributeValue(null, "num"));
-                            int loopQty = 0;
-                            while ((parser.next() != XmlPullParser.END_DOCUMENT) && (loopQty < numQty)) {
-                                String innerTagName = parser.getName();
-                                if ((innerTagName != null) && innerTagName.equalsIgnoreCase("item")) {
-                                    loopQty++;
-                                    String newKey = parser.getAttributeValue(null, "value");
-                                    if (newKey.length() > 0) {
-                                        key = newKey.substring(1, newKey.length() - 1);
-                                    }
-                                }
-                            }
-                        } catch (Exception error) {
-                            parser.getName();
-                        }
-                    } else {
-                        String newPwd = readTag(parser, tagName);
-                        if (newPwd.length() > 0) {
-                            key = readTag(parser, tagName);
-                        }
-                    }
                 } else {
-                    skip(parser);
+                    String newPwd = readTag(parser, tagName);
+                    if (newPwd.length() > 0) {
+                        key = newPwd;
+                    }
                 }
+            } else {
+                skip(parser);
             }
-        } catch (Exception error) {
-            Log.e("LoadData.readWiFiConfig", error.getMessage() + "\n\nParser: " + parser.getText());
         }
         return new WifiNetwork(ssid, authType, key, false);
     }
 
+    // Return the first WEP key of a string-array, unquoted if ASCII.
+    private static String readWepKeys(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        String result = "";
+        while (parser.next() != XmlPullParser.END_TAG) {
+            if (parser.getEventType() != XmlPullParser.START_TAG) {
+                continue;
+            }
+            String value = parser.getAttributeValue(null, "value");
+            if (result.isEmpty() && value != null) {
+                result = value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+                        ? value.substring(1, value.length() - 1) : value;
+            }
+            skip(parser);
+        }
+        return result;
+    }
+
     // Return the text for a specified tag.
     private static String readTag(XmlPullParser parser, String tagName)
             throws IOException, XmlPullParserException {
@@ -193,9 +314,8 @@ public class WifiConfigStoreParser {
             parser.nextTag();
         }
         parser.require(XmlPullParser.END_TAG, null, tagName);
-        if (tagName.equalsIgnoreCase("string")
-                && Character.toString(result.charAt(0)).equals("\"")
-                && Character.toString(result.charAt(result.length() - 1)).equals("\"")) {
+        if (tagName.equalsIgnoreCase("string") && result.length() >= 2
+                && result.startsWith("\"") && result.endsWith("\"")) {
             result = result.substring(1, result.length() - 1);
         }
         return result;
@@ -0,0 +1,209 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.content.ComponentCallbacks2;
+import android.nfc.NdefMessage;
+import android.os.Process;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+
+import com.google.zxing.WriterException;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Speculatively generate the QR codes and NDEF messages of the networks visible in the network
+ * list, so that they are ready when the user taps one of them
+ *
+ * Prefetching runs on a single thread at the lowest priority. QR codes go into
+ * {@link QrCodeCache}, NDEF messages into a small cache read by {@link #getNdefMessage(WifiNetwork)}.
+ * The methods of this class must be called from the main thread.
+ */
+public class WifiNetworkPrefetcher {
+    private static final String TAG = WifiNetworkPrefetcher.class.getSimpleName();
+
+    private static final int MAX_CACHED_NDEF_MESSAGES = 32;
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private static final LruCache<String, NdefMessage> ndefMessages =
+            new LruCache<>(MAX_CACHED_NDEF_MESSAGES);
+
+    /* Pending prefetches, by network key */
+    private static final Map<String, Future<?>> pendingPrefetches = new HashMap<>();
+
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+                            runnable.run();
+                        }
+                    }, "WifiNetworkPrefetcher");
+                }
+            });
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    private WifiNetworkPrefetcher() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Prefetch the QR codes and NDEF messages of the given visible networks, and cancel the
+     * pending prefetches of the networks that are no longer visible
+     *
+     * Networks whose password is unknown are skipped.
+     *
+     * @param visibleNetworks the networks currently visible in the list
+     */
+    public static void prefetch(List<WifiNetwork> visibleNetworks) {
+        retain(visibleNetworks);
+
+        for (WifiNetwork wifiNetwork : visibleNetworks) {
+            String key = getKey(wifiNetwork);
+            if (wifiNetwork.needsPassword() || pendingPrefetches.containsKey(key)) {
+                continue;
+            }
+            if (ndefMessages.get(key) != null
+                    && QrCodeCache.getInstance().getCachedWifiQrCodeModules(wifiNetwork,
+                            QrCodePolicy.SCREEN) != null) {
+                continue;
+            }
+            pendingPrefetches.put(key, executor.submit(newPrefetchTask(copy(wifiNetwork), key)));
+        }
+    }
+
+    /**
+     * Cancel the pending prefetches of the networks that are no longer visible
+     *
+     * @param visibleNetworks the networks currently visible in the list
+     */
+    public static void retain(List<WifiNetwork> visibleNetworks) {
+        Set<String> visibleKeys = new HashSet<>(visibleNetworks.size() * 2);
+        for (WifiNetwork wifiNetwork : visibleNetworks) {
+            visibleKeys.add(getKey(wifiNetwork));
+        }
+
+        Iterator<Map.Entry<String, Future<?>>> iterator = pendingPrefetches.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Future<?>> entry = iterator.next();
+            if (entry.getValue().isDone()) {
+                iterator.remove();
+            } else if (!visibleKeys.contains(entry.getKey())) {
+                entry.getValue().cancel(false);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Cancel all pending prefetches
+     */
+    public static void cancelAll() {
+        for (Future<?> future : pendingPrefetches.values()) {
+            future.cancel(false);
+        }
+        pendingPrefetches.clear();
+    }
+
+    /**
+     * Release the cached NDEF messages according to the level given to
+     * {@link ComponentCallbacks2#onTrimMemory(int)}
+     *
+     * @param level the memory trim level
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            ndefMessages.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            ndefMessages.trimToSize(ndefMessages.maxSize() / 2);
+        }
+    }
+
+    public static void clear() {
+        ndefMessages.evictAll();
+    }
+
+    /**
+     * Return the NDEF message of the given network, from the prefetch cache if available
+     *
+     * @see NfcUtils#generateNdefMessage(WifiNetwork)
+     */
+    public static NdefMessage getNdefMessage(WifiNetwork wifiNetwork) {
+        String key = getKey(wifiNetwork);
+        NdefMessage ndefMessage = ndefMessages.get(key);
+        if (ndefMessage == null) {
+            ndefMessage = NfcUtils.generateNdefMessage(wifiNetwork);
+            ndefMessages.put(key, ndefMessage);
+        }
+        return ndefMessage;
+    }
+
+    private static Runnable newPrefetchTask(final WifiNetwork wifiNetwork, final String key) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                QrCodeCache qrCodeCache = QrCodeCache.getInstance();
+                try {
+                    if (qrCodeCache.getCachedWifiQrCodeModules(wifiNetwork, QrCodePolicy.SCREEN) == null) {
+                        qrCodeCache.generateWifiQrCodeModules(wifiNetwork, QrCodePolicy.SCREEN);
+                    }
+                } catch (WriterException e) {
+                    Log.d(TAG, "Cannot prefetch the QR code of " + wifiNetwork.getSsid(), e);
+                }
+                if (ndefMessages.get(key) == null) {
+                    ndefMessages.put(key, NfcUtils.generateNdefMessage(wifiNetwork));
+                }
+            }
+        };
+    }
+
+    /* The list items are mutable, prefetch a snapshot */
+    private static WifiNetwork copy(WifiNetwork wifiNetwork) {
+        return new WifiNetwork(wifiNetwork.getSsid(), wifiNetwork.getAuthType(),
+                wifiNetwork.getKey(), wifiNetwork.isHidden());
+    }
+
+    /* Hashed like the QrCodeCache keys, the Wi-Fi string holding the password */
+    private static String getKey(WifiNetwork wifiNetwork) {
+        return QrCodeCache.getHash(QrCodeUtils.getWifiString(wifiNetwork));
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Parser of Wi-Fi configuration strings, the inverse of {@link QrCodeUtils#getWifiString(WifiNetwork)}
+ *
+ *     WIFI:T:WPA;S:mynetwork;P:mypass;;
+ *
+ * Fields can appear in any order. Backslash escapes are resolved and values enclosed in unescaped
+ * double quotes (hex-looking values) are unquoted.
+ *
+ * See: https://github.com/zxing/zxing/wiki/Barcode-Contents#wifi-network-config-android
+ */
+public class WifiQrCodeParser {
+
+    private static final String WIFI_PREFIX = "WIFI:";
+
+    private WifiQrCodeParser() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Parse a Wi-Fi configuration string in a single pass
+     *
+     * @param contents the contents of the QR code
+     * @return the Wi-Fi configuration, or null if the contents is not a valid Wi-Fi configuration
+     */
+    public static WifiNetwork parse(CharSequence contents) {
+        int length = contents.length();
+        if (length < WIFI_PREFIX.length()
+                || !WIFI_PREFIX.contentEquals(contents.subSequence(0, WIFI_PREFIX.length()))) {
+            return null;
+        }
+
+        String ssid = null;
+        String key = "";
+        String type = "";
+        boolean isHidden = false;
+
+        StringBuilder value = new StringBuilder(length);
+        int i = WIFI_PREFIX.length();
+        while (i < length) {
+            if (contents.charAt(i) == ';') {
+                /* End of the configuration, or empty field */
+                i++;
+                continue;
+            }
+
+            /* Field name, up to the colon */
+            int nameStart = i;
+            while (i < length && contents.charAt(i) != ':') {
+                i++;
+            }
+            if (i == length) {
+                return null;
+            }
+            char fieldName = (i - nameStart == 1) ? contents.charAt(nameStart) : 0;
+            i++;
+
+            /* Field value, up to the next unescaped semicolon */
+            value.setLength(0);
+            boolean startsWithQuote = i < length && contents.charAt(i) == '"';
+            boolean endsWithQuote = false;
+            while (i < length) {
+                char c = contents.charAt(i++);
+                if (c == '\\' && i < length) {
+                    value.append(contents.charAt(i++));
+                    endsWithQuote = false;
+                } else if (c == ';') {
+                    break;
+                } else {
+                    value.append(c);
+                    endsWithQuote = (c == '"');
+                }
+            }
+            String fieldValue = (startsWithQuote && endsWithQuote && value.length() >= 2)
+                    ? value.substring(1, value.length() - 1)
+                    : value.toString();
+
+            switch (fieldName) {
+                case 'S':
+                    ssid = fieldValue;
+                    break;
+                case 'P':
+                    key = fieldValue;
+                    break;
+                case 'T':
+                    type = fieldValue;
+                    break;
+                case 'H':
+                    isHidden = Boolean.parseBoolean(fieldValue);
+                    break;
+                default:
+                    // unknown field
+                    break;
+            }
+        }
+
+        if (ssid == null || ssid.isEmpty()) {
+            return null;
+        }
+        return new WifiNetwork(ssid, getAuthType(type), key, isHidden);
+    }
+
+    private static WifiAuthType getAuthType(String type) {
+        if (type.equalsIgnoreCase("WEP")) {
+            return WifiAuthType.WEP;
+        } else if (type.equalsIgnoreCase("WPA") || type.equalsIgnoreCase("WPA2")) {
+            return WifiAuthType.WPA2_PSK;
+        } else {
+            return WifiAuthType.OPEN;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Network block of a wpa_supplicant.conf file, with its fields decoded once
+ */
+public class WpaSupplicantNetwork {
+
+    public static final int WEP_KEY_COUNT = 4;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Defaults of wpa_supplicant when the fields are missing */
+    private static final Set<String> DEFAULT_KEY_MANAGEMENT =
+            new HashSet<>(Arrays.asList("WPA-PSK", "WPA-EAP"));
+    private static final Set<String> DEFAULT_PROTOCOLS = new HashSet<>(Arrays.asList("WPA", "RSN"));
+
+    private static final Set<String> PSK_KEY_MANAGEMENT =
+            new HashSet<>(Arrays.asList("WPA-PSK", "WPA-PSK-SHA256", "FT-PSK", "SAE"));
+    private static final Set<String> EAP_KEY_MANAGEMENT =
+            new HashSet<>(Arrays.asList("WPA-EAP", "WPA-EAP-SHA256", "FT-EAP", "IEEE8021X"));
+
+    private final byte[] ssidBytes;
+    private final String ssid;
+    private final boolean isHidden;
+    private final int priority;
+    private final boolean isDisabled;
+    private final Set<String> keyManagement;
+    private final Set<String> protocols;
+    private final String psk;
+    private final String[] wepKeys;
+    private final int wepTxKeyIndex;
+    private final WifiAuthType authType;
+
+    private WpaSupplicantNetwork(Map<String, String> fields) {
+        ssidBytes = decodeBytes(fields.get("ssid"));
+        ssid = ssidBytes != null ? new String(ssidBytes, UTF_8) : "";
+        isHidden = parseInt(fields.get("scan_ssid"), 0) != 0;
+        priority = parseInt(fields.get("priority"), 0);
+        isDisabled = parseInt(fields.get("disabled"), 0) != 0;
+        keyManagement = parseList(fields.get("key_mgmt"), DEFAULT_KEY_MANAGEMENT);
+        protocols = parseList(fields.get("proto"), DEFAULT_PROTOCOLS);
+
+        String pskValue = fields.get("psk");
+        if (pskValue == null) {
+            psk = null;
+        } else if (isQuoted(pskValue)) {
+            psk = unquote(pskValue);
+        } else if (pskValue.length() == 64 && isHex(pskValue)) {
+            /* Raw PSK, kept as hexadecimal */
+            psk = pskValue;
+        } else {
+            /* Stored elsewhere, e.g. "ext:" references */
+            psk = null;
+        }
+
+        wepKeys = new String[WEP_KEY_COUNT];
+        for (int i = 0; i < WEP_KEY_COUNT; i++) {
+            String wepKeyValue = fields.get("wep_key" + i);
+            if (wepKeyValue != null) {
+                /* Quoted ASCII keys are unquoted, hexadecimal keys are kept as is */
+                wepKeys[i] = isQuoted(wepKeyValue) ? unquote(wepKeyValue) : wepKeyValue;
+            }
+        }
+        int txKeyIndex = parseInt(fields.get("wep_tx_keyidx"), 0);
+        wepTxKeyIndex = txKeyIndex >= 0 && txKeyIndex < WEP_KEY_COUNT ? txKeyIndex : 0;
+
+        authType = getAuthType(fields.containsKey("key_mgmt"));
+    }
+
+    /**
+     * Build a network from the raw fields of its block
+     */
+    static WpaSupplicantNetwork fromFields(Map<String, String> fields) {
+        return new WpaSupplicantNetwork(fields);
+    }
+
+    private WifiAuthType getAuthType(boolean hasKeyManagement) {
+        boolean hasWpaProtocol = protocols.contains("RSN") || protocols.contains("WPA2");
+        if (hasAny(keyManagement, PSK_KEY_MANAGEMENT) && (hasKeyManagement || psk != null)) {
+            return hasWpaProtocol ? WifiAuthType.WPA2_PSK : WifiAuthType.WPA_PSK;
+        } else if (hasAny(keyManagement, EAP_KEY_MANAGEMENT) && hasKeyManagement) {
+            return hasWpaProtocol ? WifiAuthType.WPA2_EAP : WifiAuthType.WPA_EAP;
+        } else if (getWepKey() != null) {
+            return WifiAuthType.WEP;
+        } else {
+            return WifiAuthType.OPEN;
+        }
+    }
+
+    /**
+     * @return the SSID as stored in the file, or null if missing
+     */
+    public byte[] getSsidBytes() {
+        return ssidBytes != null ? ssidBytes.clone() : null;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    /**
+     * @return whether the network is scanned for with probe requests (scan_ssid)
+     */
+    public boolean isHidden() {
+        return isHidden;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public boolean isDisabled() {
+        return isDisabled;
+    }
+
+    public Set<String> getKeyManagement() {
+        return Collections.unmodifiableSet(keyManagement);
+    }
+
+    public Set<String> getProtocols() {
+        return Collections.unmodifiableSet(protocols);
+    }
+
+    public WifiAuthType getAuthType() {
+        return authType;
+    }
+
+    /**
+     * @return the passphrase, the raw PSK as 64 hexadecimal digits, or null if not available
+     */
+    public String getPsk() {
+        return psk;
+    }
+
+    /**
+     * @return the WEP key in the given slot, unquoted if ASCII, or null if missing
+     */
+    public String getWepKey(int index) {
+        return wepKeys[index];
+    }
+
+    public int getWepTxKeyIndex() {
+        return wepTxKeyIndex;
+    }
+
+    /**
+     * @return the transmit WEP key, or else the first WEP key set, or null if none
+     */
+    public String getWepKey() {
+        if (wepKeys[wepTxKeyIndex] != null) {
+            return wepKeys[wepTxKeyIndex];
+        }
+        for (String wepKey : wepKeys) {
+            if (wepKey != null) {
+                return wepKey;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the key to share, or an empty string if none
+     */
+    public String getKey() {
+        String key;
+        switch (authType) {
+            case WPA_PSK:
+            case WPA2_PSK:
+                key = psk;
+                break;
+            case WEP:
+                key = getWepKey();
+                break;
+            default:
+                key = null;
+                break;
+        }
+        return key != null ? key : "";
+    }
+
+    public WifiNetwork toWifiNetwork() {
+        return new WifiNetwork(ssid, authType, getKey(), isHidden);
+    }
+
+    private static boolean isQuoted(String value) {
+        return value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"");
+    }
+
+    private static String unquote(String value) {
+        return value.substring(1, value.length() - 1);
+    }
+
+    /**
+     * Decode a quoted, printf-escaped (P"...") or hexadecimal string value
+     */
+    private static byte[] decodeBytes(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (isQuoted(value)) {
+            return unquote(value).getBytes(UTF_8);
+        }
+        if (value.startsWith("P\"") && value.length() >= 3 && value.endsWith("\"")) {
+            return unescape(value.substring(2, value.length() - 1));
+        }
+        if (value.length() % 2 == 0 && isHex(value)) {
+            byte[] bytes = new byte[value.length() / 2];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) Integer.parseInt(value.substring(2 * i, 2 * i + 2), 16);
+            }
+            return bytes;
+        }
+        /* Not a valid string value: keep it raw */
+        return value.getBytes(UTF_8);
+    }
+
+    /**
+     * Unescape a string written by wpa_supplicant's printf_encode()
+     */
+    private static byte[] unescape(String value) {
+        byte[] utf8 = value.getBytes(UTF_8);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(utf8.length);
+        for (int i = 0; i < utf8.length; i++) {
+            byte b = utf8[i];
+            if (b != '\\' || i + 1 == utf8.length) {
+                output.write(b);
+                continue;
+            }
+            byte escaped = utf8[++i];
+            switch (escaped) {
+                case 'n':
+                    output.write('\n');
+                    break;
+                case 'r':
+                    output.write('\r');
+                    break;
+                case 't':
+                    output.write('\t');
+                    break;
+                case 'e':
+                    output.write(0x1b);
+                    break;
+                case 'x':
+                    if (i + 2 < utf8.length && isHex((char) utf8[i + 1]) && isHex((char) utf8[i + 2])) {
+                        output.write(Integer.parseInt(new String(utf8, i + 1, 2, UTF_8), 16));
+                        i += 2;
+                    } else {
+                        output.write(escaped);
+                    }
+                    break;
+                default:
+                    /* \\ and \", among others */
+                    output.write(escaped);
+                    break;
+            }
+        }
+        return output.toByteArray();
+    }
+
+    private static Set<String> parseList(String value, Set<String> defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        Set<String> values = new HashSet<>();
+        for (String item : value.split("[ \t]+")) {
+            if (!item.isEmpty()) {
+                values.add(item);
+            }
+        }
+        return values;
+    }
+
+    private static boolean hasAny(Set<String> values, Set<String> expectedValues) {
+        return !Collections.disjoint(values, expectedValues);
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static boolean isHex(String value) {
+        if (value.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (!isHex(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+}
@@ -18,13 +18,13 @@
 
 package be.brunoparmentier.wifikeyshare.utils;
 
-import org.apache.commons.codec.DecoderException;
-import org.apache.commons.codec.binary.Hex;
-
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
-import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 
 public class WpaSupplicantParser {
@@ -32,89 +32,42 @@ public class WpaSupplicantParser {
     private static final String TAG = WpaSupplicantParser.class.getSimpleName();
 
     public static List<WifiNetwork> parse(String networkString) {
-        List<WifiNetwork> wifiNetworks = new ArrayList<>();
-        String[] networkSections = networkString.split("network=");
-        for (int i = 1; i < networkSections.length; i++) {
-            String networkSection = networkSections[i];
-            String name = networkName(networkSection);
-            WifiAuthType authType = networkType(networkSection);
-            String password = networkPassword(networkSection);
-            wifiNetworks.add(new WifiNetwork(name, authType, password, false));
+        try {
+            return parse(new StringReader(networkString));
+        } catch (IOException e) {
+            /* Not thrown by StringReader */
+            throw new IllegalStateException(e);
         }
-
-        return wifiNetworks;
     }
 
-    private static String networkName(String networkSection) {
-        if (hasToken(networkSection, "ssid")) {
-            return parseToken(networkSection, "ssid");
+    /**
+     * Parse the networks of a wpa_supplicant.conf file in a single pass
+     *
+     * @param reader the file, read until its end but not closed
+     */
+    public static List<WifiNetwork> parse(Reader reader) throws IOException {
+        List<WpaSupplicantNetwork> networks = parseNetworks(reader);
+        List<WifiNetwork> wifiNetworks = new ArrayList<>(networks.size());
+        for (WpaSupplicantNetwork network : networks) {
+            wifiNetworks.add(network.toWifiNetwork());
         }
-
-        return "";
-    }
-
-    private static WifiAuthType networkType(String networkSection) {
-        if (hasToken(networkSection, "wep_key0")) {
-            return WifiAuthType.WEP;
-        } else if (hasToken(networkSection, "psk")) {
-            return WifiAuthType.WPA2_PSK;
-        } else if (hasToken(networkSection, "key_mgmt")
-                && parseToken(networkSection, "key_mgmt").startsWith("WPA-EAP")) {
-            return WifiAuthType.WPA2_EAP;
-        } else {
-            return WifiAuthType.OPEN;
-        }
-    }
-
-    private static String networkPassword(String networkSection) {
-        switch (networkType(networkSection)) {
-            case WPA_PSK:
-            case WPA2_PSK:
-                return parseToken(networkSection, "psk");
-            case WEP:
-                return parseToken(networkSection, "wep_key0");
-            default:
-                return "";
-        }
-    }
-
-    private static boolean hasToken(String networkSection, String tokenName) {
-        return tokenLines(networkSection, tokenName).size() > 0;
-    }
-
-    private static List<String> tokenLines(String networkSection, String tokenName) {
-        List<String> lines = new ArrayList<>();
-        String[] tokenLines = networkSection.split("\n");
-        for (String line : tokenLines) {
-            if (line.trim().startsWith(tokenName)) {
-                lines.add(line.trim());
-            }
-        }
-
-        return lines;
+        return wifiNetworks;
     }
 
-    private static String parseToken(String networkSection, String tokenName) {
-        if (hasToken(networkSection, tokenName)) {
-            List<String> tokenLines = tokenLines(networkSection, tokenName);
-            String key = tokenLines.get(0).split("=", 2)[1];
-
-            if (tokenName.equals("ssid")
-                    || tokenName.equals("psk")
-                    || tokenName.startsWith("wep_key")) {
-                if (key.startsWith("\"")) {
-                    key = key.replaceAll("^\"", "").replaceAll("\"$", "");
-                } else {
-                    try {
-                        key = new String(Hex.decodeHex(key.toCharArray()));
-                    } catch (DecoderException e) {
-                        e.printStackTrace();
-                    }
-                }
+    /**
+     * Parse the network blocks of a wpa_supplicant.conf file in a single pass, with all their
+     * fields
+     *
+     * @param reader the file, read until its end but not closed
+     */
+    public static List<WpaSupplicantNetwork> parseNetworks(Reader reader) throws IOException {
+        final List<WpaSupplicantNetwork> networks = new ArrayList<>();
+        WpaSupplicantTokenizer.tokenize(reader, new WpaSupplicantTokenizer.Listener() {
+            @Override
+            public void onNetworkBlock(Map<String, String> fields) {
+                networks.add(WpaSupplicantNetwork.fromFields(fields));
             }
-            return key;
-        }
-
-        return "";
+        });
+        return networks;
     }
 }
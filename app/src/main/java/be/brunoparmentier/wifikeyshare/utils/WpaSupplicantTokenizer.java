@@ -0,0 +1,219 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Single-pass reader of the network blocks of a wpa_supplicant.conf file
+ *
+ * The file is read once, character by character, by a small state machine. Every
+ * <code>network={ ... }</code> block is reported as a map from field names to raw values:
+ * quoted values (including printf-escaped P"..." ones) keep their quotes, so that they can be
+ * told apart from hexadecimal ones. A quoted value extends to the last quote of its line, as
+ * wpa_supplicant does not escape quotes. Comments are only recognized outside quoted values.
+ * Fields outside network blocks, and other blocks, are skipped.
+ */
+class WpaSupplicantTokenizer {
+
+    private static final String NETWORK_BLOCK = "network";
+    private static final int BUFFER_SIZE = 8192;
+
+    private enum State {
+        LINE_START,
+        KEY,
+        VALUE_START,
+        VALUE,
+        QUOTED_VALUE,
+        COMMENT
+    }
+
+    interface Listener {
+        /**
+         * Called for every network block, in the order of the file
+         *
+         * @param fields the fields of the network, by name
+         */
+        void onNetworkBlock(Map<String, String> fields);
+    }
+
+    private final Listener listener;
+    private final StringBuilder key = new StringBuilder();
+    private final StringBuilder value = new StringBuilder();
+    /* End of the last quote of the current quoted value */
+    private int quotedValueEnd;
+    private State state = State.LINE_START;
+    /* Depth of nested blocks, and whether the outermost one is a network block */
+    private int blockDepth;
+    private boolean isInNetworkBlock;
+    private Map<String, String> networkFields;
+
+    private WpaSupplicantTokenizer(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Read the network blocks of a wpa_supplicant.conf file
+     *
+     * @param reader the file, read until its end but not closed
+     * @param listener the listener receiving the network blocks
+     */
+    static void tokenize(Reader reader, Listener listener) throws IOException {
+        WpaSupplicantTokenizer tokenizer = new WpaSupplicantTokenizer(listener);
+        char[] buffer = new char[BUFFER_SIZE];
+        int length;
+        while ((length = reader.read(buffer)) != -1) {
+            for (int i = 0; i < length; i++) {
+                tokenizer.accept(buffer[i]);
+            }
+        }
+        tokenizer.accept('\n');
+    }
+
+    private void accept(char c) {
+        boolean isEndOfLine = c == '\n' || c == '\r';
+        switch (state) {
+            case LINE_START:
+                if (c == '#') {
+                    state = State.COMMENT;
+                } else if (c == '}') {
+                    closeBlock();
+                    state = State.COMMENT;
+                } else if (!isEndOfLine && !isWhitespace(c)) {
+                    key.append(c);
+                    state = State.KEY;
+                }
+                break;
+            case KEY:
+                if (c == '=') {
+                    state = State.VALUE_START;
+                } else if (isEndOfLine) {
+                    /* Line without value */
+                    endLine();
+                } else {
+                    key.append(c);
+                }
+                break;
+            case VALUE_START:
+                if (c == '"') {
+                    value.append(c);
+                    quotedValueEnd = value.length();
+                    state = State.QUOTED_VALUE;
+                } else if (c == '#') {
+                    onField();
+                    state = State.COMMENT;
+                } else if (isEndOfLine) {
+                    onField();
+                    endLine();
+                } else if (!isWhitespace(c)) {
+                    value.append(c);
+                    state = State.VALUE;
+                }
+                break;
+            case VALUE:
+                if (c == '"' && value.length() == 1 && value.charAt(0) == 'P') {
+                    /* Printf-escaped string: P"..." */
+                    value.append(c);
+                    quotedValueEnd = value.length();
+                    state = State.QUOTED_VALUE;
+                } else if (c == '#') {
+                    onField();
+                    state = State.COMMENT;
+                } else if (isEndOfLine) {
+                    onField();
+                    endLine();
+                } else {
+                    value.append(c);
+                }
+                break;
+            case QUOTED_VALUE:
+                if (isEndOfLine) {
+                    value.setLength(quotedValueEnd);
+                    onField();
+                    endLine();
+                } else {
+                    value.append(c);
+                    if (c == '"') {
+                        quotedValueEnd = value.length();
+                    }
+                }
+                break;
+            case COMMENT:
+                if (isEndOfLine) {
+                    endLine();
+                }
+                break;
+        }
+    }
+
+    private void onField() {
+        String fieldKey = trim(key);
+        String fieldValue = trim(value);
+        if (fieldValue.equals("{")) {
+            openBlock(fieldKey);
+        } else if (isInNetworkBlock && blockDepth == 1) {
+            networkFields.put(fieldKey, fieldValue);
+        }
+    }
+
+    private void endLine() {
+        key.setLength(0);
+        value.setLength(0);
+        state = State.LINE_START;
+    }
+
+    private void openBlock(String name) {
+        blockDepth++;
+        if (blockDepth == 1 && name.equals(NETWORK_BLOCK)) {
+            isInNetworkBlock = true;
+            networkFields = new HashMap<>();
+        }
+    }
+
+    private void closeBlock() {
+        if (blockDepth == 0) {
+            return;
+        }
+        blockDepth--;
+        if (blockDepth == 0 && isInNetworkBlock) {
+            isInNetworkBlock = false;
+            listener.onNetworkBlock(networkFields);
+            networkFields = null;
+        }
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t';
+    }
+
+    private static String trim(StringBuilder builder) {
+        int start = 0;
+        int end = builder.length();
+        while (start < end && isWhitespace(builder.charAt(start))) {
+            start++;
+        }
+        while (end > start && isWhitespace(builder.charAt(end - 1))) {
+            end--;
+        }
+        return builder.substring(start, end);
+    }
+}
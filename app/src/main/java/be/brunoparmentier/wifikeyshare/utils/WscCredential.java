@@ -0,0 +1,143 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.util.Arrays;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Immutable WSC (Wi-Fi Simple Configuration) credential, as read from an NFC token
+ *
+ * Optional attributes missing from the token are reported as {@link #ABSENT} (or null for the
+ * MAC address).
+ */
+public final class WscCredential {
+
+    public static final int ABSENT = -1;
+
+    private final int networkIndex;
+    private final String ssid;
+    private final int authType;
+    private final int encType;
+    private final String networkKey;
+    private final byte[] macAddress;
+
+    WscCredential(int networkIndex, String ssid, int authType, int encType, String networkKey,
+                  byte[] macAddress) {
+        this.networkIndex = networkIndex;
+        this.ssid = ssid;
+        this.authType = authType;
+        this.encType = encType;
+        this.networkKey = networkKey;
+        this.macAddress = macAddress;
+    }
+
+    public int getNetworkIndex() {
+        return networkIndex;
+    }
+
+    public String getSsid() {
+        return ssid;
+    }
+
+    /**
+     * @return the authentication type flags (NfcUtils.AUTH_TYPE_*)
+     */
+    public int getAuthType() {
+        return authType;
+    }
+
+    /**
+     * @return the encryption type flags (NfcUtils.ENC_TYPE_*), or {@link #ABSENT}
+     */
+    public int getEncType() {
+        return encType;
+    }
+
+    public String getNetworkKey() {
+        return networkKey;
+    }
+
+    /**
+     * @return a copy of the 6-byte MAC address, or null if absent
+     */
+    public byte[] getMacAddress() {
+        return macAddress == null ? null : macAddress.clone();
+    }
+
+    /**
+     * Convert this credential to a Wi-Fi configuration, preferring WPA2 when several
+     * authentication types are allowed
+     */
+    public WifiNetwork toWifiNetwork() {
+        WifiAuthType wifiAuthType;
+        if ((authType & NfcUtils.AUTH_TYPE_WPA2_PSK) != 0) {
+            wifiAuthType = WifiAuthType.WPA2_PSK;
+        } else if ((authType & NfcUtils.AUTH_TYPE_WPA_PSK) != 0) {
+            wifiAuthType = WifiAuthType.WPA_PSK;
+        } else if ((authType & NfcUtils.AUTH_TYPE_WPA2_EAP) != 0) {
+            wifiAuthType = WifiAuthType.WPA2_EAP;
+        } else if ((authType & NfcUtils.AUTH_TYPE_WPA_EAP) != 0) {
+            wifiAuthType = WifiAuthType.WPA_EAP;
+        } else if (encType != ABSENT && (encType & NfcUtils.ENC_TYPE_WEP) != 0) {
+            wifiAuthType = WifiAuthType.WEP;
+        } else {
+            wifiAuthType = WifiAuthType.OPEN;
+        }
+        String key = wifiAuthType == WifiAuthType.OPEN ? "" : networkKey;
+        return new WifiNetwork(ssid, wifiAuthType, key, false);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        WscCredential that = (WscCredential) o;
+        return networkIndex == that.networkIndex &&
+                authType == that.authType &&
+                encType == that.encType &&
+                ssid.equals(that.ssid) &&
+                networkKey.equals(that.networkKey) &&
+                Arrays.equals(macAddress, that.macAddress);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = networkIndex;
+        result = 31 * result + ssid.hashCode();
+        result = 31 * result + authType;
+        result = 31 * result + encType;
+        result = 31 * result + networkKey.hashCode();
+        result = 31 * result + Arrays.hashCode(macAddress);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "WscCredential{" +
+                "networkIndex=" + networkIndex +
+                ", ssid='" + ssid + '\'' +
+                ", authType=" + authType +
+                ", encType=" + encType +
+                ", macAddress=" + Arrays.toString(macAddress) +
+                '}';
+    }
+}
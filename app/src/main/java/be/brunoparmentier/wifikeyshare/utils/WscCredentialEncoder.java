@@ -0,0 +1,226 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.nio.ByteBuffer;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Encoder of Wi-Fi configurations as WSC (Wi-Fi Simple Configuration) credential attributes
+ *
+ * Attribute sizes are computed in a single pass over the UTF-8 encoding of the SSID and network
+ * key, and strings are encoded straight into the destination buffer, without intermediate
+ * arrays. Multi-byte values are written in network byte order whatever the order of the buffer.
+ */
+public class WscCredentialEncoder {
+
+    /* Type and length of an attribute */
+    private static final int ATTRIBUTE_HEADER_SIZE = 4;
+    private static final int SHORT_SIZE = 2;
+
+    /* The credential is not bound to a specific access point */
+    private static final byte BROADCAST_MAC_ADDRESS_BYTE = (byte) 0xff;
+
+    private WscCredentialEncoder() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Return the size of the credential attribute of the given Wi-Fi configuration, header
+     * included
+     *
+     * @param wifiNetwork the Wi-Fi configuration
+     * @param withOptionalAttributes whether to count the network index, encryption type and MAC
+     *                               address attributes
+     */
+    public static int getEncodedSize(WifiNetwork wifiNetwork, boolean withOptionalAttributes) {
+        return ATTRIBUTE_HEADER_SIZE + getCredentialSize(wifiNetwork, withOptionalAttributes);
+    }
+
+    /**
+     * Encode the credential attribute of the given Wi-Fi configuration in a new array of the
+     * exact size
+     *
+     * @see #encode(WifiNetwork, boolean, ByteBuffer)
+     */
+    public static byte[] encode(WifiNetwork wifiNetwork, boolean withOptionalAttributes) {
+        byte[] payload = new byte[getEncodedSize(wifiNetwork, withOptionalAttributes)];
+        encode(wifiNetwork, withOptionalAttributes, ByteBuffer.wrap(payload));
+        return payload;
+    }
+
+    /**
+     * Encode the credential attribute of the given Wi-Fi configuration at the current position
+     * of the buffer, and advance the position past it
+     *
+     * @param wifiNetwork the Wi-Fi configuration
+     * @param withOptionalAttributes whether to write the network index, encryption type and MAC
+     *                               address attributes, mandatory in the WSC specification but
+     *                               ignored by Android
+     * @param out the buffer to write to
+     * @throws java.nio.BufferOverflowException if the buffer is too small
+     */
+    public static void encode(WifiNetwork wifiNetwork, boolean withOptionalAttributes, ByteBuffer out) {
+        String ssid = wifiNetwork.getSsid();
+        String networkKey = wifiNetwork.getKey();
+        int ssidSize = getUtf8Size(ssid);
+        int networkKeySize = getUtf8Size(networkKey);
+
+        putShort(out, NfcUtils.CREDENTIAL_FIELD_ID);
+        putShort(out, getCredentialSize(ssidSize, networkKeySize, withOptionalAttributes));
+
+        if (withOptionalAttributes) {
+            putShort(out, NfcUtils.NETWORK_INDEX_FIELD_ID);
+            putShort(out, 1);
+            out.put(NfcUtils.NETWORK_INDEX_DEFAULT_VALUE);
+        }
+
+        putShort(out, NfcUtils.SSID_FIELD_ID);
+        putShort(out, ssidSize);
+        putUtf8(out, ssid);
+
+        putShort(out, NfcUtils.AUTH_TYPE_FIELD_ID);
+        putShort(out, SHORT_SIZE);
+        putShort(out, getAuthType(wifiNetwork));
+
+        if (withOptionalAttributes) {
+            putShort(out, NfcUtils.ENC_TYPE_FIELD_ID);
+            putShort(out, SHORT_SIZE);
+            putShort(out, getEncType(wifiNetwork));
+        }
+
+        putShort(out, NfcUtils.NETWORK_KEY_FIELD_ID);
+        putShort(out, networkKeySize);
+        putUtf8(out, networkKey);
+
+        if (withOptionalAttributes) {
+            putShort(out, NfcUtils.MAC_ADDRESS_FIELD_ID);
+            putShort(out, NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES);
+            for (int i = 0; i < NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES; i++) {
+                out.put(BROADCAST_MAC_ADDRESS_BYTE);
+            }
+        }
+    }
+
+    static short getAuthType(WifiNetwork wifiNetwork) {
+        switch (wifiNetwork.getAuthType()) {
+            case WPA_PSK:
+                return NfcUtils.AUTH_TYPE_WPA_PSK;
+            case WPA2_PSK:
+                return NfcUtils.AUTH_TYPE_WPA2_PSK;
+            case WPA_EAP:
+                return NfcUtils.AUTH_TYPE_WPA_EAP;
+            case WPA2_EAP:
+                return NfcUtils.AUTH_TYPE_WPA2_EAP;
+            default:
+                return NfcUtils.AUTH_TYPE_OPEN;
+        }
+    }
+
+    static short getEncType(WifiNetwork wifiNetwork) {
+        switch (wifiNetwork.getAuthType()) {
+            case WEP:
+                return NfcUtils.ENC_TYPE_WEP;
+            case WPA_PSK:
+            case WPA_EAP:
+                return NfcUtils.ENC_TYPE_AES_TKIP;
+            case WPA2_PSK:
+            case WPA2_EAP:
+                return NfcUtils.ENC_TYPE_AES;
+            default:
+                return NfcUtils.ENC_TYPE_NONE;
+        }
+    }
+
+    private static int getCredentialSize(WifiNetwork wifiNetwork, boolean withOptionalAttributes) {
+        return getCredentialSize(getUtf8Size(wifiNetwork.getSsid()),
+                getUtf8Size(wifiNetwork.getKey()), withOptionalAttributes);
+    }
+
+    private static int getCredentialSize(int ssidSize, int networkKeySize,
+                                         boolean withOptionalAttributes) {
+        int size = ATTRIBUTE_HEADER_SIZE + ssidSize
+                + ATTRIBUTE_HEADER_SIZE + SHORT_SIZE
+                + ATTRIBUTE_HEADER_SIZE + networkKeySize;
+        if (withOptionalAttributes) {
+            size += ATTRIBUTE_HEADER_SIZE + 1
+                    + ATTRIBUTE_HEADER_SIZE + SHORT_SIZE
+                    + ATTRIBUTE_HEADER_SIZE + NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Return the size of the UTF-8 encoding of the given string. Unpaired surrogates count as
+     * the single '?' they are replaced with by {@link #putUtf8(ByteBuffer, String)}.
+     */
+    static int getUtf8Size(String value) {
+        int size = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                size += 1;
+            } else if (c < 0x800) {
+                size += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                size += 4;
+                i++;
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                size += 1;
+            } else {
+                size += 3;
+            }
+        }
+        return size;
+    }
+
+    private static void putUtf8(ByteBuffer out, String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xc0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xf0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3f)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (codePoint & 0x3f)));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xe0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                out.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static void putShort(ByteBuffer out, int value) {
+        out.put((byte) (value >> 8));
+        out.put((byte) value);
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reader of the WSC (Wi-Fi Simple Configuration) credentials of an NFC token payload
+ *
+ * The payload is walked with a cursor and absolute reads: every attribute length is checked
+ * against the enclosing bounds before it is read, so malformed payloads never raise exceptions.
+ * Strings are decoded straight from the backing array of the buffer when it has one. The
+ * position of the buffer is left untouched.
+ */
+public class WscCredentialReader {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* Type and length of an attribute */
+    private static final int ATTRIBUTE_HEADER_SIZE = 4;
+    private static final int SHORT_SIZE = 2;
+
+    private WscCredentialReader() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Read all the valid credentials of the payload, between its position and its limit
+     *
+     * Malformed credentials are skipped. Reading stops at the first top-level attribute whose
+     * length exceeds the payload.
+     *
+     * @param payload the payload of an application/vnd.wfa.wsc NDEF record
+     * @return the credentials, in the order of the payload
+     */
+    public static List<WscCredential> readCredentials(ByteBuffer payload) {
+        List<WscCredential> credentials = new ArrayList<>(1);
+        int cursor = payload.position();
+        int end = payload.limit();
+        while (end - cursor >= ATTRIBUTE_HEADER_SIZE) {
+            int fieldId = getUnsignedShort(payload, cursor);
+            int fieldSize = getUnsignedShort(payload, cursor + 2);
+            cursor += ATTRIBUTE_HEADER_SIZE;
+            if (fieldSize > end - cursor) {
+                break;
+            }
+            if (fieldId == NfcUtils.CREDENTIAL_FIELD_ID) {
+                WscCredential credential = readCredential(payload, cursor, cursor + fieldSize);
+                if (credential != null) {
+                    credentials.add(credential);
+                }
+            }
+            cursor += fieldSize;
+        }
+        return credentials;
+    }
+
+    /**
+     * Read the attributes of a credential
+     *
+     * @return the credential, or null if it is malformed or has no SSID
+     */
+    static WscCredential readCredential(ByteBuffer payload, int start, int end) {
+        int networkIndex = WscCredential.ABSENT;
+        String ssid = null;
+        int authType = NfcUtils.AUTH_TYPE_OPEN;
+        int encType = WscCredential.ABSENT;
+        String networkKey = "";
+        byte[] macAddress = null;
+
+        int cursor = start;
+        while (cursor < end) {
+            if (end - cursor < ATTRIBUTE_HEADER_SIZE) {
+                return null;
+            }
+            int fieldId = getUnsignedShort(payload, cursor);
+            int fieldSize = getUnsignedShort(payload, cursor + 2);
+            cursor += ATTRIBUTE_HEADER_SIZE;
+            if (fieldSize > end - cursor) {
+                return null;
+            }
+
+            switch (fieldId) {
+                case NfcUtils.NETWORK_INDEX_FIELD_ID:
+                    if (fieldSize != 1) {
+                        return null;
+                    }
+                    networkIndex = payload.get(cursor) & 0xff;
+                    break;
+                case NfcUtils.SSID_FIELD_ID:
+                    if (fieldSize > NfcUtils.MAX_SSID_SIZE_BYTES) {
+                        return null;
+                    }
+                    ssid = getUtf8String(payload, cursor, fieldSize);
+                    break;
+                case NfcUtils.AUTH_TYPE_FIELD_ID:
+                    if (fieldSize != NfcUtils.AUTH_TYPE_EXPECTED_SIZE) {
+                        return null;
+                    }
+                    authType = getUnsignedShort(payload, cursor);
+                    break;
+                case NfcUtils.ENC_TYPE_FIELD_ID:
+                    if (fieldSize != SHORT_SIZE) {
+                        return null;
+                    }
+                    encType = getUnsignedShort(payload, cursor);
+                    break;
+                case NfcUtils.NETWORK_KEY_FIELD_ID:
+                    if (fieldSize > NfcUtils.MAX_NETWORK_KEY_SIZE_BYTES) {
+                        return null;
+                    }
+                    networkKey = getUtf8String(payload, cursor, fieldSize);
+                    break;
+                case NfcUtils.MAC_ADDRESS_FIELD_ID:
+                    if (fieldSize != NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES) {
+                        return null;
+                    }
+                    macAddress = new byte[NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES];
+                    for (int i = 0; i < macAddress.length; i++) {
+                        macAddress[i] = payload.get(cursor + i);
+                    }
+                    break;
+                default:
+                    // unknown / unparsed attribute
+                    break;
+            }
+            cursor += fieldSize;
+        }
+
+        if (ssid == null || ssid.isEmpty()) {
+            return null;
+        }
+        return new WscCredential(networkIndex, ssid, authType, encType, networkKey, macAddress);
+    }
+
+    private static int getUnsignedShort(ByteBuffer payload, int index) {
+        return ((payload.get(index) & 0xff) << 8) | (payload.get(index + 1) & 0xff);
+    }
+
+    private static String getUtf8String(ByteBuffer payload, int index, int length) {
+        if (payload.hasArray()) {
+            return new String(payload.array(), payload.arrayOffset() + index, length, UTF_8);
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = payload.get(index + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
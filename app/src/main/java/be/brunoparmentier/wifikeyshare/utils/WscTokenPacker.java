@@ -0,0 +1,169 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+/**
+ * Pack several Wi-Fi configurations into a single WSC token (one NDEF record holding several
+ * credential attributes), within the capacity of an NFC tag
+ *
+ * Serialized sizes are computed from the attribute sizes, without building the NDEF message.
+ */
+public class WscTokenPacker {
+
+    /* Flags and type length of an NDEF record */
+    private static final int RECORD_HEADER_SIZE = 2;
+    /* Payloads shorter than this use a one-byte length (short record) */
+    private static final int SHORT_RECORD_MAX_PAYLOAD_SIZE = 255;
+    /* NdefRecord.createApplicationRecord() */
+    private static final int AAR_TYPE_SIZE = "android.com:pkg".length();
+
+    private static final int WSC_TYPE_SIZE =
+            NfcUtils.NFC_TOKEN_MIME_TYPE.getBytes(Charset.forName("US-ASCII")).length;
+
+    private WscTokenPacker() {
+        throw new IllegalStateException("Utility class");
+    }
+
+    /**
+     * Select the networks to write to a tag of the given capacity
+     *
+     * The largest possible number of networks is kept. Among the selections of that size, the
+     * one favouring the first networks of the list is chosen, and the order of the list is
+     * preserved.
+     *
+     * @param wifiNetworks the networks, by decreasing priority
+     * @param maxMessageSize the maximum NDEF message size of the tag
+     * @param aarPackageName the package name of the Android Application Record, or null for none
+     * @return the selected networks, empty if not even one fits
+     */
+    public static List<WifiNetwork> selectNetworks(List<WifiNetwork> wifiNetworks,
+                                                   int maxMessageSize, String aarPackageName) {
+        int count = wifiNetworks.size();
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = WscCredentialEncoder.getEncodedSize(wifiNetworks.get(i), true);
+        }
+
+        /* The largest number of credentials that fits is reached with the smallest ones */
+        int[] sortedSizes = sizes.clone();
+        Arrays.sort(sortedSizes);
+        int maxCount = 0;
+        int payloadSize = 0;
+        while (maxCount < count && getMessageSize(payloadSize + sortedSizes[maxCount],
+                aarPackageName) <= maxMessageSize) {
+            payloadSize += sortedSizes[maxCount];
+            maxCount++;
+        }
+
+        /*
+         * Take each network in priority order if the remaining slots can still be filled with
+         * the smallest of the following networks
+         */
+        List<WifiNetwork> selectedNetworks = new ArrayList<>(maxCount);
+        payloadSize = 0;
+        for (int i = 0; i < count && selectedNetworks.size() < maxCount; i++) {
+            int remainingSlots = maxCount - selectedNetworks.size() - 1;
+            int candidateSize = payloadSize + sizes[i]
+                    + getSmallestSizesSum(sizes, i + 1, remainingSlots);
+            if (getMessageSize(candidateSize, aarPackageName) <= maxMessageSize) {
+                selectedNetworks.add(wifiNetworks.get(i));
+                payloadSize += sizes[i];
+            }
+        }
+        return selectedNetworks;
+    }
+
+    /**
+     * Encode the credentials of the given networks, in order, in a single WSC payload
+     */
+    public static byte[] encodePayload(List<WifiNetwork> wifiNetworks) {
+        return encodePayload(wifiNetworks, true);
+    }
+
+    /**
+     * Encode the credentials of the given networks, in order, in a single WSC payload
+     *
+     * @param wifiNetworks the networks to encode
+     * @param withOptionalAttributes whether to add the network index and MAC address attributes
+     */
+    static byte[] encodePayload(List<WifiNetwork> wifiNetworks, boolean withOptionalAttributes) {
+        byte[] payload = new byte[getPayloadSize(wifiNetworks, withOptionalAttributes)];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            WscCredentialEncoder.encode(wifiNetwork, withOptionalAttributes, buffer);
+        }
+        return payload;
+    }
+
+    public static int getPayloadSize(List<WifiNetwork> wifiNetworks) {
+        return getPayloadSize(wifiNetworks, true);
+    }
+
+    static int getPayloadSize(List<WifiNetwork> wifiNetworks, boolean withOptionalAttributes) {
+        int payloadSize = 0;
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            payloadSize += WscCredentialEncoder.getEncodedSize(wifiNetwork, withOptionalAttributes);
+        }
+        return payloadSize;
+    }
+
+    /**
+     * Return the serialized size of the NDEF message holding a WSC payload of the given size
+     *
+     * @param payloadSize the size of the WSC payload
+     * @param aarPackageName the package name of the Android Application Record, or null for none
+     */
+    public static int getMessageSize(int payloadSize, String aarPackageName) {
+        int messageSize = getRecordSize(WSC_TYPE_SIZE, payloadSize);
+        if (aarPackageName != null) {
+            messageSize += getRecordSize(AAR_TYPE_SIZE,
+                    aarPackageName.getBytes(Charset.forName("UTF-8")).length);
+        }
+        return messageSize;
+    }
+
+    /**
+     * Return the serialized size of an NDEF record without ID
+     */
+    static int getRecordSize(int typeSize, int payloadSize) {
+        int payloadLengthSize = payloadSize <= SHORT_RECORD_MAX_PAYLOAD_SIZE ? 1 : 4;
+        return RECORD_HEADER_SIZE + payloadLengthSize + typeSize + payloadSize;
+    }
+
+    private static int getSmallestSizesSum(int[] sizes, int from, int count) {
+        if (count <= 0) {
+            return 0;
+        }
+        int[] remainingSizes = Arrays.copyOfRange(sizes, from, sizes.length);
+        Arrays.sort(remainingSizes);
+        int sum = 0;
+        for (int i = 0; i < count && i < remainingSizes.length; i++) {
+            sum += remainingSizes[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class WifiNetworkAggregatorTest {
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    @Test
+    public void mergeKeysAsSourcesComplete() throws InterruptedException {
+        FakeSource listingSource = new FakeSource(true, WifiNetworkSource.KEY_PRIORITY_NONE,
+                new WifiNetwork("home", WifiAuthType.WPA_PSK, "", false),
+                new WifiNetwork("Cafe", WifiAuthType.WEP, "", false),
+                new WifiNetwork("open", WifiAuthType.OPEN, "", false));
+        FakeSource savedSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SAVED,
+                new WifiNetwork("home", WifiAuthType.WPA_PSK, "saved-key", false),
+                new WifiNetwork("Cafe", WifiAuthType.WEP, "12345", false));
+        FakeSource systemSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SYSTEM,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "system-key", true),
+                new WifiNetwork("open", WifiAuthType.OPEN, "", false));
+        RecordingListener listener = new RecordingListener();
+        new WifiNetworkAggregator(Arrays.<WifiNetworkSource>asList(
+                listingSource, savedSource, systemSource), listener).load();
+
+        /* Keys of the sources completed first are merged before the networks are listed */
+        complete(savedSource);
+        complete(listingSource);
+        assertNotNull(listener.listedNetworks);
+        assertEquals("Cafe", listener.listedNetworks.get(0).getSsid());
+        assertEquals("12345", listener.listedNetworks.get(0).getKey());
+        assertEquals("saved-key", listener.listedNetworks.get(1).getKey());
+        assertFalse(listener.listedNetworks.get(1).isHidden());
+
+        /* Keys of higher priority replace them, whatever the WPA version */
+        complete(systemSource);
+        assertEquals(1, listener.changeSet.size());
+        assertEquals(1, listener.changeSet.nextPosition(0));
+        assertEquals("system-key", listener.listedNetworks.get(1).getKey());
+        assertTrue(listener.listedNetworks.get(1).isHidden());
+        assertEquals("", listener.listedNetworks.get(2).getKey());
+        assertTrue(listener.isFinished);
+    }
+
+    @Test
+    public void keepKeysOfHigherPriority() throws InterruptedException {
+        FakeSource listingSource = new FakeSource(true, WifiNetworkSource.KEY_PRIORITY_NONE,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "", false));
+        FakeSource systemSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SYSTEM,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "system-key", false));
+        FakeSource savedSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SAVED,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "saved-key", false));
+        RecordingListener listener = new RecordingListener();
+        new WifiNetworkAggregator(Arrays.<WifiNetworkSource>asList(
+                listingSource, systemSource, savedSource), listener).load();
+
+        complete(listingSource);
+        complete(systemSource);
+        complete(savedSource);
+        assertEquals("system-key", listener.listedNetworks.get(0).getKey());
+        assertTrue(listener.isFinished);
+    }
+
+    @Test
+    public void reportUnavailableSources() throws InterruptedException {
+        FakeSource listingSource = new FakeSource(true, WifiNetworkSource.KEY_PRIORITY_NONE,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "", false));
+        FakeSource rootSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SYSTEM);
+        rootSource.isAvailable = false;
+        RecordingListener listener = new RecordingListener();
+        WifiNetworkAggregator aggregator = new WifiNetworkAggregator(
+                Arrays.<WifiNetworkSource>asList(listingSource, rootSource), listener);
+        aggregator.load();
+
+        complete(rootSource);
+        assertEquals(rootSource, listener.unavailableSource);
+        assertNull(listener.listedNetworks);
+
+        /* Nothing is delivered once cancelled */
+        aggregator.cancel();
+        listingSource.canComplete.countDown();
+        Thread.sleep(100);
+        ShadowLooper.runUiThreadTasks();
+        assertNull(listener.listedNetworks);
+        assertFalse(listener.isFinished);
+    }
+
+    @Test
+    public void finishDespiteFailingSource() throws InterruptedException {
+        FakeSource listingSource = new FakeSource(true, WifiNetworkSource.KEY_PRIORITY_NONE,
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "", false));
+        FakeSource failingSource = new FakeSource(false, WifiNetworkSource.KEY_PRIORITY_SYSTEM);
+        failingSource.error = new IllegalStateException("Unexpected output");
+        RecordingListener listener = new RecordingListener();
+        WifiNetworkAggregator aggregator = new WifiNetworkAggregator(
+                Arrays.<WifiNetworkSource>asList(listingSource, failingSource), listener);
+        aggregator.load();
+
+        complete(listingSource);
+        complete(failingSource);
+        assertEquals(1, listener.listedNetworks.size());
+        assertEquals("", listener.listedNetworks.get(0).getKey());
+        assertTrue(listener.isFinished);
+    }
+
+    /**
+     * Let a source complete and deliver its result on the main thread
+     */
+    private static void complete(FakeSource source) throws InterruptedException {
+        Scheduler scheduler = ShadowLooper.getShadowMainLooper().getScheduler();
+        source.canComplete.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (scheduler.size() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    private static class FakeSource implements WifiNetworkSource {
+        final boolean isListing;
+        final int keyPriority;
+        final List<WifiNetwork> wifiNetworks;
+        final CountDownLatch canComplete = new CountDownLatch(1);
+        volatile boolean isAvailable = true;
+        volatile RuntimeException error;
+
+        FakeSource(boolean isListing, int keyPriority, WifiNetwork... wifiNetworks) {
+            this.isListing = isListing;
+            this.keyPriority = keyPriority;
+            this.wifiNetworks = Arrays.asList(wifiNetworks);
+        }
+
+        @Override
+        public boolean isAvailable() {
+            try {
+                canComplete.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return isAvailable;
+        }
+
+        @Override
+        public List<WifiNetwork> load() {
+            if (error != null) {
+                throw error;
+            }
+            return new ArrayList<>(wifiNetworks);
+        }
+
+        @Override
+        public boolean isListing() {
+            return isListing;
+        }
+
+        @Override
+        public int getKeyPriority() {
+            return keyPriority;
+        }
+    }
+
+    private static class RecordingListener implements WifiNetworkAggregator.Listener {
+        List<WifiNetwork> listedNetworks;
+        WifiNetworkChangeSet changeSet;
+        WifiNetworkSource unavailableSource;
+        boolean isFinished;
+
+        @Override
+        public void onNetworksListed(List<WifiNetwork> wifiNetworks) {
+            listedNetworks = wifiNetworks;
+        }
+
+        @Override
+        public void onNetworksUpdated(WifiNetworkChangeSet changeSet) {
+            this.changeSet = changeSet;
+        }
+
+        @Override
+        public void onSourceUnavailable(WifiNetworkSource source) {
+            unavailableSource = source;
+        }
+
+        @Override
+        public void onLoadFinished() {
+            isFinished = true;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.sources;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WifiNetworkMergerTest {
+
+    @Test
+    public void mergeByCanonicalKey() {
+        List<WifiNetwork> listedNetworks = Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA_PSK, "", false),
+                new WifiNetwork("home", WifiAuthType.WEP, "", false),
+                new WifiNetwork("Home", WifiAuthType.WPA2_PSK, "", false),
+                new WifiNetwork("café", WifiAuthType.WPA2_PSK, "", false));
+        WifiNetworkMerger merger = new WifiNetworkMerger(listedNetworks);
+
+        WifiNetworkChangeSet changeSet = merger.merge(Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "wpa-key", false),
+                new WifiNetwork("café", WifiAuthType.WPA2_PSK, "", true),
+                new WifiNetwork("unknown", WifiAuthType.WPA2_PSK, "other-key", false)),
+                WifiNetworkSource.KEY_PRIORITY_SYSTEM);
+
+        /* WPA and WPA2 match, not WEP nor another case */
+        assertEquals("wpa-key", listedNetworks.get(0).getKey());
+        assertEquals("", listedNetworks.get(1).getKey());
+        assertEquals("", listedNetworks.get(2).getKey());
+        assertTrue(listedNetworks.get(3).isHidden());
+        assertEquals(2, changeSet.size());
+        assertEquals(Arrays.asList(listedNetworks.get(0), listedNetworks.get(3)),
+                merger.getNetworks(changeSet));
+    }
+
+    @Test
+    public void resolveConflicts() {
+        List<WifiNetwork> listedNetworks = Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "", false),
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "", false),
+                new WifiNetwork("office", WifiAuthType.WPA2_PSK, "entered-key", false));
+        WifiNetworkMerger merger = new WifiNetworkMerger(listedNetworks);
+
+        /* Within a source, the first key wins and duplicates of the list are all updated */
+        merger.merge(Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "saved-key", false),
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "older-key", false),
+                new WifiNetwork("office", WifiAuthType.WPA2_PSK, "saved-key", false)),
+                WifiNetworkSource.KEY_PRIORITY_SAVED);
+        assertEquals("saved-key", listedNetworks.get(0).getKey());
+        assertEquals("saved-key", listedNetworks.get(1).getKey());
+        assertEquals("entered-key", listedNetworks.get(2).getKey());
+
+        /* Across sources, the highest priority wins whatever the order */
+        WifiNetworkChangeSet changeSet = merger.merge(Collections.singletonList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "system-key", false)),
+                WifiNetworkSource.KEY_PRIORITY_SYSTEM);
+        assertEquals("system-key", listedNetworks.get(1).getKey());
+        assertEquals(2, changeSet.size());
+        changeSet = merger.merge(Collections.singletonList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "saved-key", false)),
+                WifiNetworkSource.KEY_PRIORITY_SAVED);
+        assertTrue(changeSet.isEmpty());
+        assertEquals("system-key", listedNetworks.get(0).getKey());
+    }
+
+    @Test
+    public void countOtherKeys() {
+        List<WifiNetwork> listedNetworks = Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA2_PSK, "entered-key", false),
+                new WifiNetwork("office", WifiAuthType.WPA2_PSK, "", false),
+                new WifiNetwork("guest", WifiAuthType.OPEN, "", false));
+        WifiNetworkMerger merger = new WifiNetworkMerger(listedNetworks);
+        List<WifiNetwork> sourceNetworks = Arrays.asList(
+                new WifiNetwork("home", WifiAuthType.WPA_PSK, "imported-key", false),
+                new WifiNetwork("office", WifiAuthType.WPA2_PSK, "imported-key", false),
+                new WifiNetwork("guest", WifiAuthType.OPEN, "", false),
+                new WifiNetwork("unknown", WifiAuthType.WPA2_PSK, "imported-key", false));
+
+        merger.merge(sourceNetworks, WifiNetworkSource.KEY_PRIORITY_SAVED);
+
+        /* Only the key entered before the merge is kept */
+        assertEquals("entered-key", listedNetworks.get(0).getKey());
+        assertEquals("imported-key", listedNetworks.get(1).getKey());
+        assertEquals(1, merger.countOtherKeys(sourceNetworks));
+    }
+
+    @Test
+    public void dispatchRanges() {
+        List<WifiNetwork> listedNetworks = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            listedNetworks.add(new WifiNetwork("network-" + i, WifiAuthType.WPA2_PSK, "", false));
+        }
+        List<WifiNetwork> sourceNetworks = new ArrayList<>();
+        for (int i : new int[] {7, 1, 2, 3, 9, 8}) {
+            sourceNetworks.add(new WifiNetwork("network-" + i, WifiAuthType.WPA2_PSK, "key", false));
+        }
+
+        final List<String> ranges = new ArrayList<>();
+        new WifiNetworkMerger(listedNetworks)
+                .merge(sourceNetworks, WifiNetworkSource.KEY_PRIORITY_SYSTEM)
+                .dispatchTo(new WifiNetworkChangeSet.Callback() {
+                    @Override
+                    public void onChanged(int position, int count) {
+                        ranges.add(position + "+" + count);
+                    }
+                });
+        assertEquals(Arrays.asList("1+3", "7+3"), ranges);
+    }
+
+    @Test
+    public void mergeManyNetworks() {
+        int networkCount = 2000;
+        Random random = new Random(42);
+        List<WifiNetwork> listedNetworks = generateNetworks(networkCount, random, "");
+        List<WifiNetwork> sourceNetworks = generateNetworks(networkCount, random, "key-");
+
+        assertEquals(networkCount, merge(listedNetworks, sourceNetworks).size());
+        for (WifiNetwork wifiNetwork : listedNetworks) {
+            assertEquals("key-" + wifiNetwork.getSsid(), wifiNetwork.getKey());
+            assertFalse(wifiNetwork.isHidden());
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void mergeBenchmark() {
+        int networkCount = 2000;
+        Random random = new Random(42);
+
+        /* Warm up before measuring */
+        for (int i = 0; i < 5; i++) {
+            merge(generateNetworks(networkCount, random, ""),
+                    generateNetworks(networkCount, random, "key-"));
+        }
+
+        List<WifiNetwork> listedNetworks = generateNetworks(networkCount, random, "");
+        List<WifiNetwork> sourceNetworks = generateNetworks(networkCount, random, "key-");
+        long start = System.nanoTime();
+        merge(listedNetworks, sourceNetworks);
+        long nanos = System.nanoTime() - start;
+
+        /* Reference: nested loops over both lists */
+        List<WifiNetwork> nestedListedNetworks = generateNetworks(networkCount, random, "");
+        long nestedStart = System.nanoTime();
+        for (WifiNetwork listedNetwork : nestedListedNetworks) {
+            for (WifiNetwork sourceNetwork : sourceNetworks) {
+                if (listedNetwork.getSsid().equals(sourceNetwork.getSsid())
+                        && listedNetwork.getAuthType() == sourceNetwork.getAuthType()) {
+                    listedNetwork.setKey(sourceNetwork.getKey());
+                    break;
+                }
+            }
+        }
+        long nestedNanos = System.nanoTime() - nestedStart;
+
+        assertTrue(String.format("%d x %d networks: %d us (nested loops: %d us)",
+                networkCount, networkCount, nanos / 1000, nestedNanos / 1000),
+                nanos < nestedNanos);
+    }
+
+    private static WifiNetworkChangeSet merge(List<WifiNetwork> listedNetworks,
+                                              List<WifiNetwork> sourceNetworks) {
+        return new WifiNetworkMerger(listedNetworks)
+                .merge(sourceNetworks, WifiNetworkSource.KEY_PRIORITY_SYSTEM);
+    }
+
+    /**
+     * Generate the same networks in a random order
+     */
+    private static List<WifiNetwork> generateNetworks(int networkCount, Random random,
+                                                      String keyPrefix) {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>(networkCount);
+        for (int i = 0; i < networkCount; i++) {
+            String ssid = "network-" + i;
+            wifiNetworks.add(new WifiNetwork(ssid, WifiAuthType.WPA2_PSK,
+                    keyPrefix.isEmpty() ? "" : keyPrefix + ssid, false));
+        }
+        Collections.shuffle(wifiNetworks, random);
+        return wifiNetworks;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CredentialCacheTest {
+
+    private static final String FINGERPRINT = "4096 1530000000 1234\n";
+    private static final List<WifiNetwork> WIFI_NETWORKS = Arrays.asList(
+            new WifiNetwork("home", WifiAuthType.WPA2_PSK, "password", false),
+            new WifiNetwork("hidden", WifiAuthType.WEP, "12345", true));
+
+    private File directory;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws GeneralSecurityException {
+        directory = new File(RuntimeEnvironment.application.getCacheDir(), "credential_cache");
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        key = keyGenerator.generateKey();
+        new CredentialCache(directory, key).clear();
+    }
+
+    @Test
+    public void getUnchangedFiles() {
+        CredentialCache credentialCache = new CredentialCache(directory, key);
+        assertNull(credentialCache.get("WpaSupplicantSource", FINGERPRINT));
+
+        credentialCache.put("WpaSupplicantSource", FINGERPRINT, WIFI_NETWORKS);
+        assertEquals(WIFI_NETWORKS, credentialCache.get("WpaSupplicantSource", FINGERPRINT));
+        assertEquals(WIFI_NETWORKS, new CredentialCache(directory, key)
+                .get("WpaSupplicantSource", FINGERPRINT));
+
+        /* Changed files, or another source */
+        assertNull(credentialCache.get("WpaSupplicantSource", "4096 1530000001 1234\n"));
+        assertNull(credentialCache.get("WifiConfigStoreSource", FINGERPRINT));
+    }
+
+    @Test
+    public void encryptEntries() throws IOException {
+        new CredentialCache(directory, key).put("WpaSupplicantSource", FINGERPRINT, WIFI_NETWORKS);
+        File file = new File(directory, "WpaSupplicantSource");
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        in.readFully(bytes);
+        in.close();
+        String content = new String(bytes, "ISO-8859-1");
+        assertFalse(content.contains("password"));
+        assertFalse(content.contains("home"));
+
+        /* Entries renamed to another source are rejected */
+        assertTrue(file.renameTo(new File(directory, "WifiConfigStoreSource")));
+        assertNull(new CredentialCache(directory, key).get("WifiConfigStoreSource", FINGERPRINT));
+    }
+
+    @Test
+    public void dropUnreadableEntries() throws IOException, GeneralSecurityException {
+        new CredentialCache(directory, key).put("WpaSupplicantSource", FINGERPRINT, WIFI_NETWORKS);
+
+        /* E.g. a keystore key invalidated by a new lock screen */
+        KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+        keyGenerator.init(128);
+        CredentialCache credentialCache = new CredentialCache(directory, keyGenerator.generateKey());
+        assertNull(credentialCache.get("WpaSupplicantSource", FINGERPRINT));
+        assertFalse(new File(directory, "WpaSupplicantSource").exists());
+
+        OutputStream out = new FileOutputStream(new File(directory, "WpaSupplicantSource"));
+        out.write(new byte[] {12, 1, 2, 3});
+        out.close();
+        assertNull(credentialCache.get("WpaSupplicantSource", FINGERPRINT));
+        assertFalse(new File(directory, "WpaSupplicantSource").exists());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class QrCodeImporterTest {
+
+    private static final int MODULE_SIZE = 4;
+    private static final int MARGIN = 4;
+
+    @Test
+    public void decodeLatin1Ssid() throws WriterException {
+        /* Many routers print ISO-8859-1 codes without ECI, the QR code default */
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.CHARACTER_SET, "ISO-8859-1");
+        ByteMatrix modules = Encoder.encode("WIFI:S:Café;T:WPA;P:12345678;;",
+                ErrorCorrectionLevel.M, hints).getMatrix();
+
+        assertEquals(new WifiNetwork("Café", WifiAuthType.WPA2_PSK, "12345678", false),
+                decode(modules));
+    }
+
+    @Test
+    public void decodeUtf8Ssid() throws WriterException {
+        /* Encoded in UTF-8 with an ECI header */
+        WifiNetwork wifiNetwork = new WifiNetwork("Café ☕", WifiAuthType.WPA2_PSK, "12345678", false);
+        ByteMatrix modules = QrCodePolicy.PRINT.encode(QrCodeUtils.getWifiString(wifiNetwork))
+                .getMatrix();
+
+        assertEquals(wifiNetwork, decode(modules));
+    }
+
+    @Test
+    public void decodeBlankPicture() {
+        int size = 100;
+        int[] pixels = new int[size * size];
+        Arrays.fill(pixels, QrCodeUtils.LIGHT_COLOR);
+
+        assertNull(QrCodeImporter.decode(pixels, size, size));
+    }
+
+    /**
+     * Draw the modules with a quiet zone and decode the picture
+     */
+    private static WifiNetwork decode(ByteMatrix modules) {
+        int size = (modules.getWidth() + MARGIN * 2) * MODULE_SIZE;
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int moduleX = x / MODULE_SIZE - MARGIN;
+                int moduleY = y / MODULE_SIZE - MARGIN;
+                boolean isDark = moduleX >= 0 && moduleX < modules.getWidth()
+                        && moduleY >= 0 && moduleY < modules.getHeight()
+                        && modules.get(moduleX, moduleY) == 1;
+                pixels[y * size + x] = isDark ? QrCodeUtils.DARK_COLOR : QrCodeUtils.LIGHT_COLOR;
+            }
+        }
+        return QrCodeImporter.decode(pixels, size, size);
+    }
+}
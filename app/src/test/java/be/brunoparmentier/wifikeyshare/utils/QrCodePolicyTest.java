@@ -0,0 +1,134 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import com.google.zxing.ChecksumException;
+import com.google.zxing.FormatException;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.decoder.Decoder;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.QRCode;
+
+import org.junit.Test;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+
+public class QrCodePolicyTest {
+
+    private static final String RAW_KEY =
+            "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @Test
+    public void encodeOpenNetwork() throws WriterException {
+        WifiNetwork wifiNetwork = new WifiNetwork("test1", WifiAuthType.OPEN, "", false);
+
+        /* 23 bytes: version 2 holds them at level M as well */
+        assertEncoded(2, ErrorCorrectionLevel.M, QrCodePolicy.SCREEN, wifiNetwork);
+        assertEncoded(2, ErrorCorrectionLevel.M, QrCodePolicy.PRINT, wifiNetwork);
+    }
+
+    @Test
+    public void encodeShortKey() throws WriterException {
+        WifiNetwork wifiNetwork = new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", false);
+
+        assertEncoded(2, ErrorCorrectionLevel.L, QrCodePolicy.SCREEN, wifiNetwork);
+        /* Version 3 is needed at level M, and holds the 31 bytes at level Q */
+        assertEncoded(3, ErrorCorrectionLevel.Q, QrCodePolicy.PRINT, wifiNetwork);
+    }
+
+    @Test
+    public void encodeRawKey() throws WriterException {
+        WifiNetwork wifiNetwork = new WifiNetwork("test3", WifiAuthType.WPA2_PSK, RAW_KEY, false);
+
+        assertEncoded(5, ErrorCorrectionLevel.L, QrCodePolicy.SCREEN, wifiNetwork);
+        assertEncoded(6, ErrorCorrectionLevel.M, QrCodePolicy.PRINT, wifiNetwork);
+    }
+
+    @Test
+    public void encodeLongestPassphrase() throws WriterException {
+        WifiNetwork wifiNetwork = new WifiNetwork(repeat('s', 32), WifiAuthType.WPA2_PSK,
+                repeat('k', 63), false);
+
+        assertEncoded(6, ErrorCorrectionLevel.L, QrCodePolicy.SCREEN, wifiNetwork);
+        assertEncoded(7, ErrorCorrectionLevel.M, QrCodePolicy.PRINT, wifiNetwork);
+    }
+
+    @Test
+    public void encodeNonAscii() throws WriterException {
+        WifiNetwork wifiNetwork = new WifiNetwork("☕ Café", WifiAuthType.WPA2_PSK, "espresso", false);
+
+        /* 35 bytes of UTF-8 and the ECI header */
+        assertEncoded(3, ErrorCorrectionLevel.M, QrCodePolicy.SCREEN, wifiNetwork);
+    }
+
+    @Test
+    public void selectCharset() {
+        assertEquals(QrCodePolicy.CHARSET_ISO_8859_1,
+                QrCodePolicy.selectCharset("WIFI:T:WPA;P:test1234;S:test3;;"));
+        assertEquals(QrCodePolicy.CHARSET_UTF_8,
+                QrCodePolicy.selectCharset("WIFI:T:WPA;P:test1234;S:Café;;"));
+        assertEquals(QrCodePolicy.CHARSET_UTF_8,
+                QrCodePolicy.selectCharset("WIFI:T:nopass;S:a\"=$\\o(#=>™•,k8;;"));
+    }
+
+    @Test(expected = WriterException.class)
+    public void encodeTooLarge() throws WriterException {
+        QrCodePolicy.SCREEN.encode(repeat('x', 3000));
+    }
+
+    private static void assertEncoded(int expectedVersion, ErrorCorrectionLevel expectedLevel,
+                                      QrCodePolicy policy, WifiNetwork wifiNetwork)
+            throws WriterException {
+        String contents = QrCodeUtils.getWifiString(wifiNetwork);
+        QRCode qrCode = policy.encode(contents);
+
+        assertEquals(contents, expectedVersion, qrCode.getVersion().getVersionNumber());
+        assertEquals(contents, expectedLevel, qrCode.getECLevel());
+        assertEquals(contents, decode(qrCode.getMatrix()));
+    }
+
+    private static String decode(ByteMatrix modules) {
+        BitMatrix bitMatrix = new BitMatrix(modules.getWidth(), modules.getHeight());
+        for (int y = 0; y < modules.getHeight(); y++) {
+            for (int x = 0; x < modules.getWidth(); x++) {
+                if (modules.get(x, y) == 1) {
+                    bitMatrix.set(x, y);
+                }
+            }
+        }
+        try {
+            return new Decoder().decode(bitMatrix).getText();
+        } catch (ChecksumException | FormatException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
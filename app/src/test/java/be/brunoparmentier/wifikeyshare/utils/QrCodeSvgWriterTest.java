@@ -0,0 +1,94 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import com.google.zxing.WriterException;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QrCodeSvgWriterTest {
+
+    private static final Pattern VIEW_BOX_PATTERN = Pattern.compile("viewBox=\"0 0 (\\d+) (\\d+)\"");
+    private static final Pattern RUN_PATTERN = Pattern.compile("M(\\d+) (\\d+)h(\\d+)v1h-(\\d+)z");
+
+    @Test
+    public void writeWifiQrCode() throws WriterException, IOException {
+        WifiNetwork[] wifiNetworks = {
+                new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+                new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", false),
+                new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.WPA2_PSK,
+                        "\";/\\=#}`,\\\"$4<d)=%", true)
+        };
+
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            StringWriter out = new StringWriter();
+            QrCodeSvgWriter.writeWifiQrCode(wifiNetwork, out);
+            String svg = out.toString();
+
+            ByteMatrix expected = QrCodePolicy.PRINT.encode(QrCodeUtils.getWifiString(wifiNetwork))
+                    .getMatrix();
+            assertSameModules(expected, readModules(svg));
+            assertTrue("SVG too large: " + svg.length(), svg.length() < 8 * 1024);
+        }
+    }
+
+    /* Rebuild the module grid (without margin) from the path runs */
+    private static boolean[][] readModules(String svg) {
+        Matcher viewBoxMatcher = VIEW_BOX_PATTERN.matcher(svg);
+        assertTrue(viewBoxMatcher.find());
+        int margin = QrCodePolicy.PRINT.getMargin();
+        int width = Integer.parseInt(viewBoxMatcher.group(1)) - margin * 2;
+        int height = Integer.parseInt(viewBoxMatcher.group(2)) - margin * 2;
+
+        boolean[][] modules = new boolean[height][width];
+        Matcher runMatcher = RUN_PATTERN.matcher(svg);
+        while (runMatcher.find()) {
+            int x = Integer.parseInt(runMatcher.group(1)) - margin;
+            int y = Integer.parseInt(runMatcher.group(2)) - margin;
+            int length = Integer.parseInt(runMatcher.group(3));
+            assertEquals(length, Integer.parseInt(runMatcher.group(4)));
+            for (int i = 0; i < length; i++) {
+                modules[y][x + i] = true;
+            }
+        }
+        return modules;
+    }
+
+    private static void assertSameModules(ByteMatrix expected, boolean[][] actual) {
+        assertEquals(expected.getHeight(), actual.length);
+        assertEquals(expected.getWidth(), actual[0].length);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("module (" + x + ", " + y + ")", expected.get(x, y) == 1, actual[y][x]);
+            }
+        }
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class QrCodeUtilsTest {
+
+    /* 200dp and 400dp on an xxhdpi screen, and the short side of a QHD screen */
+    private static final int[] BENCHMARK_SIZES = {600, 1200, 1440};
+    private static final int BENCHMARK_ITERATIONS = 5;
+
+    private static final WifiNetwork WIFI_NETWORK = new WifiNetwork(
+            "test3", WifiAuthType.WPA2_PSK, "test1234", false);
+
+    @Test
+    public void generateWifiQrCode() throws WriterException {
+        for (int size : BENCHMARK_SIZES) {
+            assertSameBitmap(generatePerPixel(size), QrCodeUtils.generateWifiQrCode(size, WIFI_NETWORK));
+        }
+    }
+
+    @Test
+    public void generateWifiQrCodeModules() throws WriterException {
+        Bitmap modules = QrCodeUtils.generateWifiQrCodeModules(WIFI_NETWORK);
+        assertEquals(Bitmap.Config.RGB_565, modules.getConfig());
+
+        for (int size : BENCHMARK_SIZES) {
+            assertSameBitmap(generatePerPixel(size), scale(modules, size));
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void generateWifiQrCodeBenchmark() throws WriterException {
+        for (int size : BENCHMARK_SIZES) {
+            /* Warm up both implementations before measuring */
+            generatePerPixel(size);
+            QrCodeUtils.generateWifiQrCode(size, WIFI_NETWORK);
+
+            long perPixelNanos = 0;
+            long perRowNanos = 0;
+            for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+                long start = System.nanoTime();
+                generatePerPixel(size);
+                perPixelNanos += System.nanoTime() - start;
+
+                start = System.nanoTime();
+                QrCodeUtils.generateWifiQrCode(size, WIFI_NETWORK);
+                perRowNanos += System.nanoTime() - start;
+            }
+
+            assertTrue(String.format("%dx%d px, setPixel: %.2f ms, setPixels: %.2f ms",
+                    size, size,
+                    perPixelNanos / (BENCHMARK_ITERATIONS * 1e6),
+                    perRowNanos / (BENCHMARK_ITERATIONS * 1e6)),
+                    perRowNanos < perPixelNanos);
+        }
+    }
+
+    @Test
+    public void getWifiString() {
+        WifiNetwork[] wifiNetworks = {
+                new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+                new WifiNetwork("test2", WifiAuthType.WEP, "test", false),
+                new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", true),
+                new WifiNetwork("test5", WifiAuthType.WPA2_PSK, "\";/\\=#}`,\\\"$4<d)=%", false),
+                new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.OPEN, "", false)
+        };
+        for (WifiNetwork wifiNetwork : wifiNetworks) {
+            assertEquals(getWifiStringLegacy(wifiNetwork), QrCodeUtils.getWifiString(wifiNetwork));
+        }
+
+        assertEquals("WIFI:T:WPA;P:test\\:1234;S:test\\;3;H:true;;", QrCodeUtils.getWifiString(
+                new WifiNetwork("test;3", WifiAuthType.WPA2_PSK, "test:1234", true)));
+    }
+
+    @Test
+    public void getWifiStringHex() {
+        /* Values that could be interpreted as hex are quoted... */
+        assertEquals("WIFI:T:WPA;P:\"12345678\";S:\"cafe\";;", QrCodeUtils.getWifiString(
+                new WifiNetwork("cafe", WifiAuthType.WPA2_PSK, "12345678", false)));
+        assertEquals("WIFI:T:WEP;P:\"ABCDE\";S:test2;;", QrCodeUtils.getWifiString(
+                new WifiNetwork("test2", WifiAuthType.WEP, "ABCDE", false)));
+
+        /* ...except a raw WPA pre-shared key */
+        String rawKey = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        assertEquals("WIFI:T:WPA;P:" + rawKey + ";S:test3;;", QrCodeUtils.getWifiString(
+                new WifiNetwork("test3", WifiAuthType.WPA2_PSK, rawKey, false)));
+
+        /* ...or a hexadecimal WEP key */
+        assertEquals("WIFI:T:WEP;P:0123456789;S:test4;;", QrCodeUtils.getWifiString(
+                new WifiNetwork("test4", WifiAuthType.WEP, "0123456789", false)));
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void getWifiStringBenchmark() {
+        WifiNetwork wifiNetwork = new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.WPA2_PSK,
+                "\";/\\=#}`,\\\"$4<d)=%", true);
+        int iterations = 200000;
+        StringBuilder output = new StringBuilder(128);
+
+        /* Warm up both implementations before measuring */
+        for (int i = 0; i < iterations; i++) {
+            getWifiStringLegacy(wifiNetwork);
+            output.setLength(0);
+            QrCodeUtils.appendWifiString(wifiNetwork, output);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            getWifiStringLegacy(wifiNetwork);
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            output.setLength(0);
+            QrCodeUtils.appendWifiString(wifiNetwork, output);
+        }
+        long singlePassNanos = System.nanoTime() - start;
+
+        assertTrue(String.format("getWifiString: replace: %d ns, single pass: %d ns",
+                legacyNanos / iterations, singlePassNanos / iterations),
+                singlePassNanos < legacyNanos);
+    }
+
+    /* Previous implementation of QrCodeUtils#getWifiString, kept as a reference */
+    private static String getWifiStringLegacy(WifiNetwork wifiNetwork) {
+        StringBuilder output = new StringBuilder(100);
+        output.append("WIFI:");
+        output.append("T:");
+        if (wifiNetwork.getAuthType() == WifiAuthType.OPEN) {
+            output.append("nopass");
+        } else if (wifiNetwork.getAuthType() == WifiAuthType.WEP) {
+            output.append("WEP");
+        } else {
+            output.append("WPA");
+        }
+        output.append(";");
+        String key = escapeMecardLegacy(wifiNetwork.getKey());
+        if (!key.isEmpty()) {
+            output.append("P:").append(key).append(';');
+        }
+        output.append("S:").append(escapeMecardLegacy(wifiNetwork.getSsid())).append(';');
+        if (wifiNetwork.isHidden()) {
+            output.append("H:").append("true").append(';');
+        }
+        output.append(';');
+        return output.toString();
+    }
+
+    private static String escapeMecardLegacy(String input) {
+        return input
+                .replace("\\", "\\\\")
+                .replace("\"", "\\\"")
+                .replace(";", "\\;")
+                .replace(",", "\\,")
+                .replace(":", "\\:");
+    }
+
+    /* Previous implementation of QrCodeUtils#generateWifiQrCode, kept as a reference */
+    private static Bitmap generatePerPixel(int size) throws WriterException {
+        /* Same payload as the one generated for WIFI_NETWORK */
+        BitMatrix bitMatrix = new QRCodeWriter().encode("WIFI:T:WPA;P:test1234;S:test3;;",
+                BarcodeFormat.QR_CODE, size, size);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < size; j++) {
+                bitmap.setPixel(i, j, bitMatrix.get(i, j) ? Color.BLACK : Color.WHITE);
+            }
+        }
+        return bitmap;
+    }
+
+    /* Nearest-neighbour integer scaling, as done by QrCodeImageView */
+    private static Bitmap scale(Bitmap modules, int size) {
+        int multiple = size / modules.getWidth();
+        int offset = (size - modules.getWidth() * multiple) / 2;
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int moduleX = (x - offset) / multiple;
+                int moduleY = (y - offset) / multiple;
+                boolean isDark = x >= offset && y >= offset
+                        && moduleX < modules.getWidth() && moduleY < modules.getHeight()
+                        && modules.getPixel(moduleX, moduleY) == Color.BLACK;
+                bitmap.setPixel(x, y, isDark ? Color.BLACK : Color.WHITE);
+            }
+        }
+        return bitmap;
+    }
+
+    private static void assertSameBitmap(Bitmap expected, Bitmap actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals("pixel (" + x + ", " + y + ")",
+                        expected.getPixel(x, y), actual.getPixel(x, y));
+            }
+        }
+    }
+}
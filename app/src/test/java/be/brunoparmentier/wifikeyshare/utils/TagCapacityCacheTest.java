@@ -0,0 +1,84 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricTestRunner.class)
+public class TagCapacityCacheTest {
+
+    private static final String ULTRALIGHT = TagCapacityCache.getTagType(new String[] {
+            "android.nfc.tech.NfcA", "android.nfc.tech.MifareUltralight"});
+    private static final String CLASSIC = TagCapacityCache.getTagType(new String[] {
+            "android.nfc.tech.NfcA", "android.nfc.tech.MifareClassic"});
+
+    @Test
+    public void getTagType() {
+        /* Formatting a tag does not change its type */
+        assertEquals(ULTRALIGHT, TagCapacityCache.getTagType(new String[] {
+                "android.nfc.tech.NfcA", "android.nfc.tech.MifareUltralight",
+                "android.nfc.tech.NdefFormatable"}));
+        assertEquals(ULTRALIGHT, TagCapacityCache.getTagType(new String[] {
+                "android.nfc.tech.MifareUltralight", "android.nfc.tech.Ndef",
+                "android.nfc.tech.NfcA"}));
+    }
+
+    @Test
+    public void rememberCapacities() {
+        TagCapacityCache capacityCache = new TagCapacityCache(null);
+        assertEquals(TagCapacityCache.UNKNOWN_CAPACITY, capacityCache.getCapacity(new byte[] {1}, ULTRALIGHT));
+
+        capacityCache.putCapacity(new byte[] {1}, ULTRALIGHT, 137);
+        capacityCache.putCapacity(new byte[] {2}, ULTRALIGHT, 868);
+        capacityCache.putCapacity(new byte[] {3}, CLASSIC, 716);
+
+        /* By tag ID first, then by the largest capacity of the tag type */
+        assertEquals(137, capacityCache.getCapacity(new byte[] {1}, ULTRALIGHT));
+        assertEquals(868, capacityCache.getCapacity(new byte[] {4}, ULTRALIGHT));
+        assertEquals(716, capacityCache.getCapacity(null, CLASSIC));
+        assertEquals(TagCapacityCache.UNKNOWN_CAPACITY, capacityCache.getCapacity(null, "other"));
+        assertEquals(716, capacityCache.getLastTagCapacity());
+
+        /* A smaller model of the same type does not lower the bound of the type */
+        capacityCache.putCapacity(new byte[] {5}, ULTRALIGHT, 492);
+        assertEquals(492, capacityCache.getCapacity(new byte[] {5}, ULTRALIGHT));
+        assertEquals(868, capacityCache.getCapacity(new byte[] {6}, ULTRALIGHT));
+        assertEquals(492, capacityCache.getLastTagCapacity());
+    }
+
+    @Test
+    public void persistLastTag() {
+        SharedPreferences preferences = RuntimeEnvironment.application
+                .getSharedPreferences("tag_capacities", Context.MODE_PRIVATE);
+        new TagCapacityCache(preferences).putCapacity(new byte[] {1}, ULTRALIGHT, 137);
+
+        TagCapacityCache capacityCache = new TagCapacityCache(preferences);
+        assertEquals(137, capacityCache.getLastTagCapacity());
+        assertEquals(137, capacityCache.getCapacity(new byte[] {2}, ULTRALIGHT));
+        assertEquals(TagCapacityCache.UNKNOWN_CAPACITY, capacityCache.getCapacity(new byte[] {1}, CLASSIC));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.nfc.NdefMessage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class TagMessagePlanTest {
+
+    private static final WifiNetwork[] WIFI_NETWORKS = {
+            new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+            new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", true),
+            new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.WPA2_PSK, "café ☕ 🔑", false),
+            new WifiNetwork("staff-network-with-a-long-ssid", WifiAuthType.WPA_PSK,
+                    "0123456789012345678901234567890123456789012345678901234567890ab", false)
+    };
+
+    @Test
+    public void plannedSizesMatchMessages() {
+        for (WifiNetwork wifiNetwork : WIFI_NETWORKS) {
+            TagMessagePlan plan = TagMessagePlan.forWifiNetwork(wifiNetwork);
+            for (TagMessagePlan.Variant variant : TagMessagePlan.Variant.values()) {
+                int plannedSize = plan.getSize(variant);
+                NdefMessage message = plan.getMessage(variant);
+                assertEquals(wifiNetwork.getSsid() + " " + variant,
+                        plannedSize, message.toByteArray().length);
+                assertArrayEquals(message.toByteArray(), plan.getMessageBytes(variant));
+                assertSame(message, plan.getMessage(variant));
+            }
+            assertArrayEquals(NfcUtils.generateNdefMessage(wifiNetwork).toByteArray(),
+                    plan.getMessageBytes(TagMessagePlan.Variant.FULL));
+            assertEquals(1, NfcUtils.parse(plan.getMessage(TagMessagePlan.Variant.MINIMAL)).size());
+        }
+    }
+
+    @Test
+    public void selectVariant() {
+        TagMessagePlan plan = TagMessagePlan.forWifiNetwork(WIFI_NETWORKS[1]);
+        int fullSize = plan.getSize(TagMessagePlan.Variant.FULL);
+        int withoutAarSize = plan.getSize(TagMessagePlan.Variant.WITHOUT_AAR);
+        int minimalSize = plan.getSize(TagMessagePlan.Variant.MINIMAL);
+
+        assertEquals(TagMessagePlan.Variant.FULL, plan.selectVariant(TagCapacityCache.UNKNOWN_CAPACITY));
+        assertEquals(TagMessagePlan.Variant.FULL, plan.selectVariant(fullSize));
+        assertEquals(TagMessagePlan.Variant.WITHOUT_AAR, plan.selectVariant(fullSize - 1));
+        assertEquals(TagMessagePlan.Variant.WITHOUT_AAR, plan.selectVariant(withoutAarSize));
+        assertEquals(TagMessagePlan.Variant.MINIMAL, plan.selectVariant(withoutAarSize - 1));
+        assertEquals(TagMessagePlan.Variant.MINIMAL, plan.selectVariant(minimalSize));
+        assertNull(plan.selectVariant(minimalSize - 1));
+        assertEquals(minimalSize, plan.getMinimalSize());
+    }
+
+    @Test
+    public void planBuiltMessage() {
+        NdefMessage message = NfcUtils.generateNdefMessage(WIFI_NETWORKS[1]);
+        TagMessagePlan plan = TagMessagePlan.forMessage(message);
+
+        assertSame(message, plan.getMessage(TagMessagePlan.Variant.FULL));
+        assertEquals(1, plan.getMessage(TagMessagePlan.Variant.WITHOUT_AAR).getRecords().length);
+        assertEquals(TagMessagePlan.UNAVAILABLE, plan.getSize(TagMessagePlan.Variant.MINIMAL));
+        assertNull(plan.getSmallerVariant(TagMessagePlan.Variant.WITHOUT_AAR));
+        assertEquals(plan.getSize(TagMessagePlan.Variant.WITHOUT_AAR), plan.getMinimalSize());
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import android.nfc.TagLostException;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class TagWriteSessionTest {
+
+    private static final NdefMessage MESSAGE = NfcUtils.generateNdefMessage(
+            new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", false));
+    private static final TagWriteSession.RetryPolicy NO_DELAY =
+            new TagWriteSession.RetryPolicy(3, 1000, 0);
+
+    @Test
+    public void writeSeveralTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false);
+
+        for (int i = 0; i < 300; i++) {
+            FakeTarget target = new FakeTarget(1024);
+            byte[] tagId = {1, (byte) i, (byte) (i >> 8)};
+            assertEquals(TagWriteSession.Result.WRITTEN, session.write(tagId, target));
+            assertEquals(1, target.writtenMessages.size());
+            assertEquals(MESSAGE, target.writtenMessages.get(0));
+            assertFalse(target.connected);
+        }
+
+        assertEquals(300, session.getWrittenCount());
+        assertEquals(0, session.getFailedCount());
+        assertTrue(session.getTagsPerMinute() > 0);
+    }
+
+    @Test
+    public void skipAlreadyWrittenTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false);
+        FakeTarget target = new FakeTarget(1024);
+
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1, 2, 3}, target));
+        assertEquals(TagWriteSession.Result.ALREADY_WRITTEN, session.write(new byte[] {1, 2, 3}, target));
+        assertEquals(1, target.writtenMessages.size());
+        assertEquals(1, session.getAlreadyWrittenCount());
+
+        /* Tags without ID cannot be recognized */
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[0], target));
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(null, target));
+        assertEquals(3, target.writtenMessages.size());
+    }
+
+    @Test
+    public void retryFailedTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false, NO_DELAY);
+        FakeTarget target = new FakeTarget(1024);
+        target.failingWrites = Integer.MAX_VALUE;
+
+        assertEquals(TagWriteSession.Result.FAILED, session.write(new byte[] {1}, target));
+        assertEquals(3, target.writeAttempts);
+        assertFalse(target.connected);
+
+        /* The tag can be presented again */
+        target.failingWrites = 0;
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(1, session.getWrittenCount());
+        assertEquals(1, session.getFailedCount());
+    }
+
+    @Test
+    public void retryLostTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false, NO_DELAY);
+        FakeTarget target = new FakeTarget(1024);
+        target.failingWrites = 2;
+        target.isTagLost = true;
+
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(3, target.writeAttempts);
+        assertEquals(2, target.writtenMessages.get(0).getRecords().length);
+        assertEquals(0, session.getFailedCount());
+    }
+
+    @Test
+    public void timeOutBlockedTags() {
+        TagWriteSession.RetryPolicy retryPolicy = new TagWriteSession.RetryPolicy(2, 50, 0);
+        TagWriteSession session = new TagWriteSession(MESSAGE, false, retryPolicy);
+        FakeTarget target = new FakeTarget(1024);
+        target.isBlocked = true;
+
+        assertEquals(TagWriteSession.Result.TIMED_OUT, session.write(new byte[] {1}, target));
+        assertEquals(2, target.writeAttempts);
+        assertTrue(target.writtenMessages.isEmpty());
+    }
+
+    @Test
+    public void formatWithoutAar() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false, NO_DELAY);
+        /* Unknown capacity, too small for the AAR */
+        FakeTarget target = new FakeTarget(-1);
+        target.formatCapacity = new NdefMessage(new NdefRecord[] {MESSAGE.getRecords()[0]})
+                .toByteArray().length;
+
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(2, target.writeAttempts);
+        assertEquals(1, target.writtenMessages.get(0).getRecords().length);
+    }
+
+    @Test
+    public void dropAarOnSmallTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false);
+        int withoutAarSize = new NdefMessage(new NdefRecord[] {MESSAGE.getRecords()[0]})
+                .toByteArray().length;
+
+        FakeTarget target = new FakeTarget(withoutAarSize);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(1, target.writtenMessages.get(0).getRecords().length);
+
+        target = new FakeTarget(withoutAarSize - 1);
+        assertEquals(TagWriteSession.Result.TOO_SMALL, session.write(new byte[] {2}, target));
+        assertTrue(target.writtenMessages.isEmpty());
+
+        /* Unknown capacity (formatable tag) */
+        target = new FakeTarget(-1);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {3}, target));
+        assertEquals(2, target.writtenMessages.get(0).getRecords().length);
+    }
+
+    @Test
+    public void useRememberedCapacity() {
+        TagMessagePlan plan = TagMessagePlan.forWifiNetwork(
+                new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", false));
+        TagCapacityCache capacityCache = new TagCapacityCache(null);
+        TagWriteSession session = new TagWriteSession(plan, false, NO_DELAY, capacityCache);
+        int minimalSize = plan.getSize(TagMessagePlan.Variant.MINIMAL);
+
+        /* The capacity of a formatted tag is remembered for its type */
+        FakeTarget target = new FakeTarget(minimalSize);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, "type", target));
+        assertEquals(minimalSize, capacityCache.getLastTagCapacity());
+        assertEquals(plan.getMessage(TagMessagePlan.Variant.MINIMAL), target.writtenMessages.get(0));
+
+        /* An unformatted tag of the same type directly gets the minimal message */
+        target = new FakeTarget(-1);
+        target.formatCapacity = minimalSize;
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {2}, "type", target));
+        assertEquals(1, target.writeAttempts);
+        assertEquals(plan.getMessage(TagMessagePlan.Variant.MINIMAL), target.writtenMessages.get(0));
+
+        /* A larger model of the same type raises the bound of the type */
+        target = new FakeTarget(plan.getSize(TagMessagePlan.Variant.FULL));
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {3}, "type", target));
+
+        /* A smaller unformatted model is first tried with the bound, then smaller variants */
+        target = new FakeTarget(-1);
+        target.formatCapacity = minimalSize;
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {4}, "type", target));
+        assertEquals(3, target.writeAttempts);
+        assertEquals(plan.getMessage(TagMessagePlan.Variant.MINIMAL), target.writtenMessages.get(0));
+    }
+
+    @Test
+    public void writeSeveralNetworks() {
+        List<WifiNetwork> wifiNetworks = Arrays.asList(
+                new WifiNetwork("staff", WifiAuthType.WPA2_PSK, "staff-password", false),
+                new WifiNetwork("guest", WifiAuthType.WPA2_PSK, "welcome!", false),
+                new WifiNetwork("iot", WifiAuthType.WPA_PSK, "sensors1", false));
+        TagMessagePlan plan = TagMessagePlan.forWifiNetworks(wifiNetworks);
+        TagWriteSession session = new TagWriteSession(plan, false, NO_DELAY, null);
+
+        /* Every network fits */
+        FakeTarget target = new FakeTarget(1024);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(3, NfcUtils.parse(target.writtenMessages.get(0)).size());
+        assertEquals(3, session.getLastNetworkCount());
+
+        /* Only the first two networks fit, without the AAR */
+        int capacity = WscTokenPacker.getMessageSize(
+                WscTokenPacker.getPayloadSize(wifiNetworks.subList(0, 2)), null);
+        target = new FakeTarget(capacity);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {2}, target));
+        assertEquals(1, target.writtenMessages.get(0).getRecords().length);
+        assertEquals(2, NfcUtils.parse(target.writtenMessages.get(0)).size());
+        assertEquals(2, session.getLastNetworkCount());
+
+        target = new FakeTarget(10);
+        assertEquals(TagWriteSession.Result.TOO_SMALL, session.write(new byte[] {3}, target));
+    }
+
+    @Test
+    public void rejectReadOnlyAndUnsupportedTags() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, false);
+        FakeTarget target = new FakeTarget(1024);
+        target.writable = false;
+
+        assertEquals(TagWriteSession.Result.NOT_WRITABLE, session.write(new byte[] {1}, target));
+        assertEquals(TagWriteSession.Result.NOT_SUPPORTED, session.write(new byte[] {2}, null));
+        assertEquals(2, session.getFailedCount());
+    }
+
+    @Test
+    public void verifyWrites() {
+        TagWriteSession session = new TagWriteSession(MESSAGE, true);
+        FakeTarget target = new FakeTarget(1024);
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {1}, target));
+        assertEquals(1, target.readCount);
+
+        target = new FakeTarget(1024);
+        target.corruptWrites = true;
+        assertEquals(TagWriteSession.Result.VERIFICATION_FAILED, session.write(new byte[] {2}, target));
+
+        /* A failed verification does not mark the tag as written */
+        target.corruptWrites = false;
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {2}, target));
+
+        session.setVerify(false);
+        target = new FakeTarget(1024);
+        target.corruptWrites = true;
+        assertEquals(TagWriteSession.Result.WRITTEN, session.write(new byte[] {3}, target));
+        assertEquals(0, target.readCount);
+    }
+
+    /* Stand-in for Ndef and NdefFormatable */
+    private static class FakeTarget implements TagWriteSession.Target {
+        final int maxSize;
+        final List<NdefMessage> writtenMessages = new ArrayList<>();
+        boolean writable = true;
+        /* Number of writes failing before the next one succeeds */
+        int failingWrites;
+        boolean isTagLost;
+        /* Writes block until the target is closed */
+        boolean isBlocked;
+        /* Size of the largest message that can be formatted, when the capacity is unknown */
+        int formatCapacity = Integer.MAX_VALUE;
+        boolean corruptWrites;
+        volatile boolean connected;
+        int writeAttempts;
+        int readCount;
+        private NdefMessage content;
+        private CountDownLatch closeLatch;
+
+        FakeTarget(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void connect() {
+            connected = true;
+            closeLatch = new CountDownLatch(1);
+        }
+
+        @Override
+        public void close() {
+            connected = false;
+            if (closeLatch != null) {
+                closeLatch.countDown();
+            }
+        }
+
+        @Override
+        public boolean isWritable() {
+            return writable;
+        }
+
+        @Override
+        public int getMaxSize() {
+            return maxSize;
+        }
+
+        @Override
+        public void write(NdefMessage message) throws IOException, FormatException {
+            if (!connected) {
+                throw new IllegalStateException("Not connected");
+            }
+            writeAttempts++;
+            if (isBlocked) {
+                try {
+                    closeLatch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                throw new IOException("Closed");
+            }
+            if (failingWrites > 0) {
+                failingWrites--;
+                throw isTagLost ? new TagLostException() : new IOException("I/O error");
+            }
+            if (message.toByteArray().length > formatCapacity) {
+                throw new IOException("Format failed");
+            }
+            writtenMessages.add(message);
+            content = corruptWrites
+                    ? new NdefMessage(new NdefRecord[] {message.getRecords()[0]})
+                    : message;
+        }
+
+        @Override
+        public NdefMessage read() {
+            readCount++;
+            return content;
+        }
+    }
+}
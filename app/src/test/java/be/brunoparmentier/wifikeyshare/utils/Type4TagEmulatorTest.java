@@ -0,0 +1,123 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Type4TagEmulatorTest {
+
+    private static final byte[] SELECT_APPLICATION = hex("00A4040007D276000085010100");
+    private static final byte[] SELECT_CC_FILE = hex("00A4000C02E103");
+    private static final byte[] SELECT_NDEF_FILE = hex("00A4000C02E104");
+
+    @Test
+    public void readNdefMessage() {
+        byte[] message = new byte[600];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) (i * 7);
+        }
+        Type4TagEmulator emulator = new Type4TagEmulator(message);
+
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(SELECT_APPLICATION));
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(SELECT_CC_FILE));
+        byte[] ccFile = emulator.processCommandApdu(hex("00B000000F"));
+        assertArrayEquals(hex("000F2000FF00FF0406E104025A00FF9000"), ccFile);
+
+        /* Read NLEN, then the message in chunks of MLe bytes, like Android readers do */
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(SELECT_NDEF_FILE));
+        assertArrayEquals(hex("02589000"), emulator.processCommandApdu(hex("00B0000002")));
+        ByteArrayOutputStream readMessage = new ByteArrayOutputStream();
+        int offset = 2;
+        while (offset < 2 + message.length) {
+            byte[] response = emulator.processCommandApdu(new byte[] {
+                    0x00, (byte) 0xB0, (byte) (offset >> 8), (byte) offset, (byte) 0xFF});
+            assertArrayEquals(Type4TagEmulator.SW_OK,
+                    Arrays.copyOfRange(response, response.length - 2, response.length));
+            readMessage.write(response, 0, response.length - 2);
+            offset += response.length - 2;
+        }
+        assertArrayEquals(message, readMessage.toByteArray());
+
+        /* Reading at the end of the file returns no data */
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(hex("00B0025A10")));
+    }
+
+    @Test
+    public void selectWithoutApplication() {
+        Type4TagEmulator emulator = new Type4TagEmulator(new byte[] {1, 2, 3});
+
+        assertArrayEquals(Type4TagEmulator.SW_FILE_NOT_FOUND, emulator.processCommandApdu(SELECT_NDEF_FILE));
+        assertArrayEquals(Type4TagEmulator.SW_COMMAND_NOT_ALLOWED, emulator.processCommandApdu(hex("00B0000002")));
+
+        /* Another application */
+        assertArrayEquals(Type4TagEmulator.SW_FILE_NOT_FOUND,
+                emulator.processCommandApdu(hex("00A4040007A000000004101000")));
+        assertArrayEquals(Type4TagEmulator.SW_FILE_NOT_FOUND, emulator.processCommandApdu(SELECT_CC_FILE));
+
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(SELECT_APPLICATION));
+        assertArrayEquals(Type4TagEmulator.SW_FILE_NOT_FOUND, emulator.processCommandApdu(hex("00A4000C02E105")));
+        assertArrayEquals(Type4TagEmulator.SW_OK, emulator.processCommandApdu(SELECT_NDEF_FILE));
+        assertArrayEquals(hex("00030102039000"), emulator.processCommandApdu(hex("00B0000000")));
+
+        /* The reader goes away */
+        emulator.reset();
+        assertArrayEquals(Type4TagEmulator.SW_COMMAND_NOT_ALLOWED, emulator.processCommandApdu(hex("00B0000002")));
+        assertArrayEquals(Type4TagEmulator.SW_FILE_NOT_FOUND, emulator.processCommandApdu(SELECT_CC_FILE));
+    }
+
+    @Test
+    public void rejectInvalidCommands() {
+        Type4TagEmulator emulator = new Type4TagEmulator(new byte[] {1, 2, 3});
+        emulator.processCommandApdu(SELECT_APPLICATION);
+        emulator.processCommandApdu(SELECT_NDEF_FILE);
+
+        assertArrayEquals(Type4TagEmulator.SW_WRONG_LENGTH, emulator.processCommandApdu(null));
+        assertArrayEquals(Type4TagEmulator.SW_WRONG_LENGTH, emulator.processCommandApdu(hex("00A4")));
+        assertArrayEquals(Type4TagEmulator.SW_CLA_NOT_SUPPORTED, emulator.processCommandApdu(hex("80B0000002")));
+        /* UPDATE BINARY: the tag is read-only */
+        assertArrayEquals(Type4TagEmulator.SW_INS_NOT_SUPPORTED, emulator.processCommandApdu(hex("00D60000020000")));
+        /* Lc longer than the data */
+        assertArrayEquals(Type4TagEmulator.SW_WRONG_LENGTH, emulator.processCommandApdu(hex("00A4000C04E104")));
+        /* Offset past the end of the file */
+        assertArrayEquals(Type4TagEmulator.SW_WRONG_PARAMETERS, emulator.processCommandApdu(hex("00B0000601")));
+        assertArrayEquals(Type4TagEmulator.SW_WRONG_LENGTH, emulator.processCommandApdu(hex("00B00000")));
+
+        /* A failed command does not change the selected file */
+        assertArrayEquals(hex("00039000"), emulator.processCommandApdu(hex("00B0000002")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectLargeMessages() {
+        new Type4TagEmulator(new byte[Type4TagEmulator.MAX_MESSAGE_SIZE + 1]);
+    }
+
+    private static byte[] hex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -19,6 +19,7 @@
 package be.brunoparmentier.wifikeyshare.utils;
 
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
@@ -26,6 +27,7 @@ import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -33,6 +35,9 @@ import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class WifiConfigStoreParserTest {
@@ -72,4 +77,130 @@ public class WifiConfigStoreParserTest {
             assertEquals(expectedWifiNetworks.get(i), parsedWifiNetworks.get(i));
         }
     }
+
+    @Test
+    public void iterateSkipsMalformedNetworks() throws XmlPullParserException, IOException {
+        String wifiConfigStore = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<WifiConfigStoreData>\n<NetworkList>\n"
+                + network("\"test1\"WPA_PSK", "test1", "<string name=\"PreSharedKey\">&quot;key1&quot;</string>")
+                /* No name attribute */
+                + network("\"test2\"WPA_PSK", "test2", "<string>&quot;key2&quot;</string>")
+                /* Nested element instead of text */
+                + network("\"test3\"WPA_PSK", "test3", "<string name=\"PreSharedKey\"><a/></string>")
+                /* No WifiConfiguration */
+                + "<Network>\n<NetworkStatus />\n</Network>\n"
+                + network("\"test4\"NONE", "test4", "<null name=\"PreSharedKey\" />")
+                + "</NetworkList>\n</WifiConfigStoreData>\n";
+
+        WifiConfigStoreParser.NetworkIterator iterator =
+                WifiConfigStoreParser.iterate(new StringReader(wifiConfigStore));
+        assertTrue(iterator.hasNext());
+        assertEquals(new WifiNetwork("test1", WifiAuthType.WPA2_PSK, "key1", false), iterator.next());
+        assertTrue(iterator.hasNext());
+        assertEquals(new WifiNetwork("test4", WifiAuthType.OPEN, "", false), iterator.next());
+        assertFalse(iterator.hasNext());
+        assertEquals(2, iterator.getSkippedCount());
+        iterator.checkError();
+        iterator.close();
+    }
+
+    @Test
+    public void iterateTruncatedDocument() throws IOException {
+        String wifiConfigStore = "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                + "<WifiConfigStoreData>\n<NetworkList>\n"
+                + network("\"test1\"NONE", "test1", "")
+                + "<Network>\n<WifiConfiguration>\n<string name=\"SSID\">&quot;tes";
+
+        /* The networks read before the error are kept */
+        List<WifiNetwork> wifiNetworks = new ArrayList<>();
+        WifiConfigStoreParser.NetworkIterator iterator = null;
+        try {
+            iterator = WifiConfigStoreParser.iterate(new StringReader(wifiConfigStore));
+            while (iterator.hasNext()) {
+                wifiNetworks.add(iterator.next());
+            }
+            iterator.checkError();
+            fail("Truncated document accepted");
+        } catch (XmlPullParserException e) {
+            assertEquals(1, wifiNetworks.size());
+        } finally {
+            if (iterator != null) {
+                iterator.close();
+            }
+        }
+    }
+
+    @Test
+    public void iterateManyNetworks() throws XmlPullParserException, IOException {
+        int networkCount = 5000;
+        WifiConfigStoreParser.NetworkIterator iterator =
+                WifiConfigStoreParser.iterate(new StringReader(generateWifiConfigStore(networkCount)));
+        int count = 0;
+        WifiNetwork lastWifiNetwork = null;
+        while (iterator.hasNext()) {
+            lastWifiNetwork = iterator.next();
+            count++;
+        }
+        iterator.close();
+
+        assertEquals(networkCount, count);
+        assertEquals(new WifiNetwork("network-" + (networkCount - 1), WifiAuthType.WPA2_PSK,
+                "password-" + (networkCount - 1), false), lastWifiNetwork);
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void iterateBenchmark() throws XmlPullParserException, IOException {
+        int smallCount = 1250;
+        int largeCount = 5000;
+        String smallStore = generateWifiConfigStore(smallCount);
+        String largeStore = generateWifiConfigStore(largeCount);
+
+        /* Warm up before measuring */
+        for (int i = 0; i < 5; i++) {
+            iterateAll(largeStore);
+        }
+
+        long start = System.nanoTime();
+        iterateAll(smallStore);
+        long smallNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        iterateAll(largeStore);
+        long largeNanos = System.nanoTime() - start;
+
+        /* Streaming: the time per network does not grow with the file */
+        assertTrue(String.format("%d networks: %d ns/network, %d networks: %d ns/network",
+                smallCount, smallNanos / smallCount, largeCount, largeNanos / largeCount),
+                largeNanos / largeCount < 2 * smallNanos / smallCount);
+    }
+
+    private static void iterateAll(String wifiConfigStore)
+            throws XmlPullParserException, IOException {
+        WifiConfigStoreParser.NetworkIterator iterator =
+                WifiConfigStoreParser.iterate(new StringReader(wifiConfigStore));
+        while (iterator.hasNext()) {
+            iterator.next();
+        }
+        iterator.close();
+    }
+
+    private static String generateWifiConfigStore(int networkCount) {
+        StringBuilder wifiConfigStore = new StringBuilder(
+                "<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
+                        + "<WifiConfigStoreData>\n<NetworkList>\n");
+        for (int i = 0; i < networkCount; i++) {
+            wifiConfigStore.append(network("\"network-" + i + "\"WPA_PSK", "network-" + i,
+                    "<string name=\"PreSharedKey\">&quot;password-" + i + "&quot;</string>"));
+        }
+        wifiConfigStore.append("</NetworkList>\n</WifiConfigStoreData>\n");
+        return wifiConfigStore.toString();
+    }
+
+    private static String network(String configKey, String ssid, String keyElement) {
+        return "<Network>\n<WifiConfiguration>\n"
+                + "<string name=\"ConfigKey\">" + configKey.replace("\"", "&quot;") + "</string>\n"
+                + "<string name=\"SSID\">&quot;" + ssid + "&quot;</string>\n"
+                + keyElement + "\n"
+                + "</WifiConfiguration>\n</Network>\n";
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WifiQrCodeParserTest {
+
+    private static final String FUZZ_ALPHABET = "abcDEF0189 \\\";,:'=#{}$é™•";
+    private static final String HEX_ALPHABET = "0123456789abcdefABCDEF";
+    private static final int FUZZ_ITERATIONS = 10000;
+
+    @Test
+    public void parse() {
+        assertEquals(new WifiNetwork("mynetwork", WifiAuthType.WPA2_PSK, "mypass", false),
+                WifiQrCodeParser.parse("WIFI:T:WPA;S:mynetwork;P:mypass;;"));
+        assertEquals(new WifiNetwork("my;net", WifiAuthType.WEP, "ab:\"cd", true),
+                WifiQrCodeParser.parse("WIFI:S:my\\;net;H:true;P:ab\\:\\\"cd;T:WEP;;"));
+        assertEquals(new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+                WifiQrCodeParser.parse("WIFI:T:nopass;S:test1;;"));
+        assertEquals(new WifiNetwork("cafe", WifiAuthType.WPA2_PSK, "12345678", false),
+                WifiQrCodeParser.parse("WIFI:T:WPA;P:\"12345678\";S:\"cafe\";;"));
+
+        assertNull(WifiQrCodeParser.parse("MECARD:N:Owen,Sean;;"));
+        assertNull(WifiQrCodeParser.parse("WIFI:T:WPA;P:mypass;;"));
+        assertNull(WifiQrCodeParser.parse("WIFI:T"));
+        assertNull(WifiQrCodeParser.parse(""));
+    }
+
+    @Test
+    public void parseRoundTrip() {
+        Random random = new Random(42);
+        WifiAuthType[] authTypes = {WifiAuthType.OPEN, WifiAuthType.WEP, WifiAuthType.WPA2_PSK};
+
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            WifiAuthType authType = authTypes[random.nextInt(authTypes.length)];
+            String alphabet = random.nextInt(4) == 0 ? HEX_ALPHABET : FUZZ_ALPHABET;
+            String ssid = randomString(random, alphabet, 1 + random.nextInt(32));
+            String key;
+            if (authType == WifiAuthType.OPEN) {
+                key = "";
+            } else if (authType == WifiAuthType.WPA2_PSK && random.nextInt(8) == 0) {
+                key = randomString(random, HEX_ALPHABET, 64);
+            } else {
+                key = randomString(random, alphabet, 5 + random.nextInt(59));
+            }
+            WifiNetwork wifiNetwork = new WifiNetwork(ssid, authType, key, random.nextBoolean());
+
+            String wifiString = QrCodeUtils.getWifiString(wifiNetwork);
+            assertEquals(wifiString, wifiNetwork, WifiQrCodeParser.parse(wifiString));
+        }
+    }
+
+    private static String randomString(Random random, String alphabet, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return builder.toString();
+    }
+}
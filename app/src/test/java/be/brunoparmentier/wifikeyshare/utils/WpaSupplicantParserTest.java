@@ -19,42 +19,55 @@
 package be.brunoparmentier.wifikeyshare.utils;
 
 import org.junit.Before;
+import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
 
 import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
 import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class WpaSupplicantParserTest {
 
-    private static final String TAG = WpaSupplicantParserTest.class.getSimpleName();
-
     private final List<WifiNetwork> expectedWifiNetworks = new ArrayList<>();
 
     @Before
     public void setUp() {
         expectedWifiNetworks.add(new WifiNetwork(
-                "test1", WifiAuthType.OPEN, "", false));
+                "test1", WifiAuthType.OPEN, "", true));
         expectedWifiNetworks.add(new WifiNetwork(
-                "test2", WifiAuthType.WEP, "test", false));
+                "test2", WifiAuthType.WEP, "test", true));
         expectedWifiNetworks.add(new WifiNetwork(
-                "test3", WifiAuthType.WPA2_PSK, "test1234", false));
+                "test3", WifiAuthType.WPA2_PSK, "test1234", true));
         expectedWifiNetworks.add(new WifiNetwork(
                 "test4", WifiAuthType.WPA2_PSK, "ABCDEFGHI0123456789JKLMNOP", false));
         expectedWifiNetworks.add(new WifiNetwork(
-                "test5", WifiAuthType.WPA2_PSK, "\";/\\=#}`,\\\"$4<d)=%", false));
+                "test5", WifiAuthType.WPA2_PSK, "\";/\\=#}`,\\\"$4<d)=%", true));
         expectedWifiNetworks.add(new WifiNetwork(
-                "test6", WifiAuthType.WPA2_EAP, "", false));
+                "test6", WifiAuthType.WPA2_EAP, "", true));
         expectedWifiNetworks.add(new WifiNetwork(
                 "test7", WifiAuthType.WPA2_EAP, "", false));
         expectedWifiNetworks.add(new WifiNetwork(
-                "a\"=$\\o(#=>™•,k8", WifiAuthType.OPEN, "", false));
+                "a\"=$\\o(#=>™•,k8", WifiAuthType.OPEN, "", true));
+        expectedWifiNetworks.add(new WifiNetwork(
+                "café \"#1\"", WifiAuthType.WPA_PSK,
+                "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef", false));
+        expectedWifiNetworks.add(new WifiNetwork(
+                "test10", WifiAuthType.WEP, "0123456789", true));
     }
 
     @Test
@@ -70,5 +83,112 @@ public class WpaSupplicantParserTest {
             assertEquals(expectedWifiNetworks.get(i), parsedWifiNetworks.get(i));
         }
     }
-}
 
+    @Test
+    public void parseNetworks() throws IOException {
+        InputStream wpaSupplicantFileStream =
+                getClass().getClassLoader().getResourceAsStream("test_wpa_supplicant.conf");
+        List<WpaSupplicantNetwork> networks = WpaSupplicantParser.parseNetworks(
+                new InputStreamReader(wpaSupplicantFileStream, "UTF-8"));
+        assertEquals(expectedWifiNetworks.size(), networks.size());
+
+        WpaSupplicantNetwork network = networks.get(3);
+        assertEquals(4289, network.getPriority());
+        assertFalse(network.isHidden());
+
+        network = networks.get(6);
+        assertEquals(new HashSet<>(Arrays.asList("WPA-EAP", "IEEE8021X")), network.getKeyManagement());
+        assertTrue(network.isDisabled());
+
+        network = networks.get(8);
+        assertArrayEquals(new byte[] {'c', 'a', 'f', (byte) 0xc3, (byte) 0xa9, ' ', '"', '#', '1', '"'},
+                network.getSsidBytes());
+        assertEquals(new HashSet<>(Arrays.asList("WPA")), network.getProtocols());
+        assertEquals(12, network.getPriority());
+
+        /* Only the exact field names count: pskx is not a PSK */
+        network = networks.get(9);
+        assertNull(network.getPsk());
+        assertNull(network.getWepKey(0));
+        assertEquals("0123456789", network.getWepKey(1));
+        assertEquals("wrong", network.getWepKey(3));
+        assertEquals(1, network.getWepTxKeyIndex());
+        assertTrue(network.isDisabled());
+        assertEquals(0, network.getPriority());
+    }
+
+    @Test
+    public void parseCommentsAndBlocks() throws IOException {
+        String wpaSupplicantString = "# network={\n"
+                + "ssid=\"global\"\r\n"
+                + "cred={\r\n"
+                + "\trealm=\"example.com\"\r\n"
+                + "\tpassword=\"secret\"\r\n"
+                + "}\r\n"
+                + "network={\r\n"
+                + "\t# psk=\"commented\"\r\n"
+                + "\tssid=\"a # b\" # comment\r\n"
+                + "\tkey_mgmt=WPA-EAP IEEE8021X # comment\r\n"
+                + "}\r\n"
+                + "network={\n"
+                + "  ssid=74657374 \n"
+                + "  wep_key0=\"x\"y\"\n"
+                + "}";
+
+        List<WifiNetwork> parsedWifiNetworks = WpaSupplicantParser.parse(new StringReader(wpaSupplicantString));
+        assertEquals(2, parsedWifiNetworks.size());
+        assertEquals(new WifiNetwork("a # b", WifiAuthType.WPA2_EAP, "", false), parsedWifiNetworks.get(0));
+        assertEquals(new WifiNetwork("test", WifiAuthType.WEP, "x\"y", false), parsedWifiNetworks.get(1));
+    }
+
+    @Test
+    public void parseManyNetworks() throws IOException {
+        int networkCount = 5000;
+        List<WifiNetwork> parsedWifiNetworks =
+                WpaSupplicantParser.parse(new StringReader(generateWpaSupplicantString(networkCount)));
+
+        assertEquals(networkCount, parsedWifiNetworks.size());
+        assertEquals(new WifiNetwork("network-" + (networkCount - 1), WifiAuthType.WPA2_PSK,
+                "password-" + (networkCount - 1), true), parsedWifiNetworks.get(networkCount - 1));
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void parseBenchmark() throws IOException {
+        int smallCount = 1250;
+        int largeCount = 5000;
+        String smallString = generateWpaSupplicantString(smallCount);
+        String largeString = generateWpaSupplicantString(largeCount);
+
+        /* Warm up before measuring */
+        for (int i = 0; i < 5; i++) {
+            WpaSupplicantParser.parse(new StringReader(largeString));
+        }
+
+        long start = System.nanoTime();
+        WpaSupplicantParser.parse(new StringReader(smallString));
+        long smallNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        WpaSupplicantParser.parse(new StringReader(largeString));
+        long largeNanos = System.nanoTime() - start;
+
+        /* Single pass: the time per network does not grow with the file */
+        assertTrue(String.format("%d networks: %d ns/network, %d networks: %d ns/network",
+                smallCount, smallNanos / smallCount, largeCount, largeNanos / largeCount),
+                largeNanos / largeCount < 2 * smallNanos / smallCount);
+    }
+
+    private static String generateWpaSupplicantString(int networkCount) {
+        StringBuilder builder = new StringBuilder("ctrl_interface=/data/misc/wifi/sockets\n"
+                + "update_config=1\n\n");
+        for (int i = 0; i < networkCount; i++) {
+            builder.append("network={\n\tssid=\"network-").append(i).append("\"\n")
+                    .append("\tscan_ssid=1\n")
+                    .append("\tpsk=\"password-").append(i).append("\"\n")
+                    .append("\tkey_mgmt=WPA-PSK\n")
+                    .append("\tpriority=").append(i).append("\n")
+                    .append("}\n\n");
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.net.wifi.WifiConfiguration;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class WscCredentialEncoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String FUZZ_ALPHABET = "abcXYZ019 \";:\\é™•ÿࠀ￿";
+    private static final String[] FUZZ_SUPPLEMENTARY = {"📶", "🔑"};
+    private static final int FUZZ_ITERATIONS = 2000;
+
+    private static final WifiNetwork[] WIFI_NETWORKS = {
+            new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+            new WifiNetwork("test2", WifiAuthType.WEP, "ABCDE", false),
+            new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", true),
+            new WifiNetwork("test4", WifiAuthType.WPA_PSK, "\";/\\=#}`,\\\"$4<d)=%", false),
+            new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.WPA2_PSK, "café ☕ 🔑", false)
+    };
+
+    @Test
+    public void encodeRequiredAttributes() {
+        for (WifiNetwork wifiNetwork : WIFI_NETWORKS) {
+            byte[] payload = WscCredentialEncoder.encode(wifiNetwork, false);
+            assertArrayEquals(wifiNetwork.getSsid(), generateNdefPayloadLegacy(wifiNetwork), payload);
+            assertEquals(payload.length, WscCredentialEncoder.getEncodedSize(wifiNetwork, false));
+        }
+    }
+
+    @Test
+    public void encodeOptionalAttributes() {
+        WifiNetwork wifiNetwork = new WifiNetwork("ab", WifiAuthType.WPA2_PSK, "k", false);
+        byte[] expected = {
+                0x10, 0x0e, 0x00, 0x26,                         // credential, 38 bytes
+                0x10, 0x26, 0x00, 0x01, 0x01,                   // network index
+                0x10, 0x45, 0x00, 0x02, 'a', 'b',               // SSID
+                0x10, 0x03, 0x00, 0x02, 0x00, 0x20,             // WPA2-Personal
+                0x10, 0x0f, 0x00, 0x02, 0x00, 0x08,             // AES
+                0x10, 0x27, 0x00, 0x01, 'k',                    // network key
+                0x10, 0x20, 0x00, 0x06,                         // broadcast MAC address
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+        };
+        assertArrayEquals(expected, WscCredentialEncoder.encode(wifiNetwork, true));
+        assertEquals(expected.length, WscCredentialEncoder.getEncodedSize(wifiNetwork, true));
+    }
+
+    @Test
+    public void encodeIntoBuffer() {
+        WifiNetwork wifiNetwork = WIFI_NETWORKS[4];
+        int size = WscCredentialEncoder.getEncodedSize(wifiNetwork, true);
+
+        /* Little-endian buffer with some data before the credential */
+        ByteBuffer buffer = ByteBuffer.allocate(size + 10).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(3);
+        WscCredentialEncoder.encode(wifiNetwork, true, buffer);
+
+        assertEquals(3 + size, buffer.position());
+        assertArrayEquals(WscCredentialEncoder.encode(wifiNetwork, true),
+                Arrays.copyOfRange(buffer.array(), 3, 3 + size));
+    }
+
+    @Test
+    public void getUtf8Size() {
+        Random random = new Random(42);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            String value = randomString(random, random.nextInt(64));
+            assertEquals(value, value.getBytes(UTF_8).length, WscCredentialEncoder.getUtf8Size(value));
+        }
+    }
+
+    @Test
+    public void parseRoundTrip() {
+        Random random = new Random(42);
+        WifiAuthType[] authTypes = {WifiAuthType.OPEN, WifiAuthType.WPA_PSK, WifiAuthType.WPA2_PSK};
+
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            WifiAuthType authType = authTypes[random.nextInt(authTypes.length)];
+            String ssid = randomString(random, 1 + random.nextInt(16));
+            /* At most 60 bytes, below the 64-byte limit of the parser */
+            String key = authType == WifiAuthType.OPEN ? "" : randomString(random, 8 + random.nextInt(8));
+            WifiNetwork wifiNetwork = new WifiNetwork(ssid, authType, key, false);
+
+            List<WifiConfiguration> wifiConfigurations =
+                    NfcUtils.parse(NfcUtils.generateNdefMessage(wifiNetwork));
+            assertEquals(1, wifiConfigurations.size());
+            WifiConfiguration wifiConfiguration = wifiConfigurations.get(0);
+
+            assertEquals("\"" + ssid + "\"", wifiConfiguration.SSID);
+            if (authType == WifiAuthType.OPEN) {
+                assertTrue(wifiConfiguration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.NONE));
+                assertNull(wifiConfiguration.preSharedKey);
+            } else {
+                assertTrue(wifiConfiguration.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.WPA_PSK));
+                assertEquals("\"" + key + "\"", wifiConfiguration.preSharedKey);
+            }
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void encodeBenchmark() {
+        WifiNetwork wifiNetwork = WIFI_NETWORKS[4];
+        int iterations = 200000;
+        ByteBuffer buffer = ByteBuffer.allocate(WscCredentialEncoder.getEncodedSize(wifiNetwork, true));
+
+        /* Warm up all implementations before measuring */
+        for (int i = 0; i < iterations; i++) {
+            generateNdefPayloadLegacy(wifiNetwork);
+            WscCredentialEncoder.encode(wifiNetwork, false);
+            buffer.clear();
+            WscCredentialEncoder.encode(wifiNetwork, true, buffer);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            generateNdefPayloadLegacy(wifiNetwork);
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            WscCredentialEncoder.encode(wifiNetwork, false);
+        }
+        long arrayNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            buffer.clear();
+            WscCredentialEncoder.encode(wifiNetwork, true, buffer);
+        }
+        long bufferNanos = System.nanoTime() - start;
+
+        String timings = String.format("legacy: %d ns, new array: %d ns, "
+                        + "reused buffer with optional attributes: %d ns",
+                legacyNanos / iterations, arrayNanos / iterations, bufferNanos / iterations);
+        assertTrue(timings, arrayNanos < legacyNanos);
+        assertTrue(timings, bufferNanos < legacyNanos);
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(8) == 0) {
+                builder.append(FUZZ_SUPPLEMENTARY[random.nextInt(FUZZ_SUPPLEMENTARY.length)]);
+            } else {
+                builder.append(FUZZ_ALPHABET.charAt(random.nextInt(FUZZ_ALPHABET.length())));
+            }
+        }
+        return builder.toString();
+    }
+
+    /* Previous implementation of NfcUtils#generateNdefPayload, kept as a reference */
+    private static byte[] generateNdefPayloadLegacy(WifiNetwork wifiNetwork) {
+        String ssid = wifiNetwork.getSsid();
+        short ssidSize = (short) ssid.getBytes(UTF_8).length;
+
+        short authType;
+        switch (wifiNetwork.getAuthType()) {
+            case WPA_PSK:
+                authType = NfcUtils.AUTH_TYPE_WPA_PSK;
+                break;
+            case WPA2_PSK:
+                authType = NfcUtils.AUTH_TYPE_WPA2_PSK;
+                break;
+            case WPA_EAP:
+                authType = NfcUtils.AUTH_TYPE_WPA_EAP;
+                break;
+            case WPA2_EAP:
+                authType = NfcUtils.AUTH_TYPE_WPA2_EAP;
+                break;
+            default:
+                authType = NfcUtils.AUTH_TYPE_OPEN;
+                break;
+        }
+
+        String networkKey = wifiNetwork.getKey();
+        short networkKeySize = (short) networkKey.getBytes(UTF_8).length;
+
+        byte[] macAddress = new byte[NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES];
+        for (int i = 0; i < NfcUtils.MAX_MAC_ADDRESS_SIZE_BYTES; i++) {
+            macAddress[i] = (byte) 0xff;
+        }
+
+        int bufferSize = 18 + ssidSize + networkKeySize;
+
+        ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+        buffer.putShort(NfcUtils.CREDENTIAL_FIELD_ID);
+        buffer.putShort((short) (bufferSize - 4));
+
+        buffer.putShort(NfcUtils.SSID_FIELD_ID);
+        buffer.putShort(ssidSize);
+        buffer.put(ssid.getBytes(UTF_8));
+
+        buffer.putShort(NfcUtils.AUTH_TYPE_FIELD_ID);
+        buffer.putShort((short) 2);
+        buffer.putShort(authType);
+
+        buffer.putShort(NfcUtils.NETWORK_KEY_FIELD_ID);
+        buffer.putShort(networkKeySize);
+        buffer.put(networkKey.getBytes(UTF_8));
+
+        return buffer.array();
+    }
+}
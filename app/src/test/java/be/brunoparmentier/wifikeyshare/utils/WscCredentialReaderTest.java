@@ -0,0 +1,307 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.net.wifi.WifiConfiguration;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class WscCredentialReaderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FUZZ_ITERATIONS = 50000;
+
+    private static final WifiNetwork[] WIFI_NETWORKS = {
+            new WifiNetwork("test1", WifiAuthType.OPEN, "", false),
+            new WifiNetwork("test2", WifiAuthType.WEP, "ABCDE", false),
+            new WifiNetwork("test3", WifiAuthType.WPA2_PSK, "test1234", false),
+            new WifiNetwork("test4", WifiAuthType.WPA_PSK, "\";/\\=#}`,\\\"$4<d)=%", false),
+            new WifiNetwork("a\"=$\\o(#=>™•,k8", WifiAuthType.WPA2_PSK, "café ☕ 🔑", false)
+    };
+
+    private static final byte[] BROADCAST_MAC_ADDRESS = {
+            (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff
+    };
+
+    @Test
+    public void readCredentials() {
+        for (WifiNetwork wifiNetwork : WIFI_NETWORKS) {
+            List<WscCredential> credentials = WscCredentialReader.readCredentials(
+                    ByteBuffer.wrap(WscCredentialEncoder.encode(wifiNetwork, true)));
+            assertEquals(1, credentials.size());
+
+            WscCredential credential = credentials.get(0);
+            assertEquals(1, credential.getNetworkIndex());
+            assertEquals(wifiNetwork.getSsid(), credential.getSsid());
+            assertEquals(WscCredentialEncoder.getAuthType(wifiNetwork), credential.getAuthType());
+            assertEquals(WscCredentialEncoder.getEncType(wifiNetwork), credential.getEncType());
+            assertEquals(wifiNetwork.getKey(), credential.getNetworkKey());
+            assertArrayEquals(BROADCAST_MAC_ADDRESS, credential.getMacAddress());
+            assertEquals(wifiNetwork, credential.toWifiNetwork());
+        }
+    }
+
+    @Test
+    public void readCredentialsWithoutOptionalAttributes() {
+        WifiNetwork wifiNetwork = WIFI_NETWORKS[2];
+        List<WscCredential> credentials = WscCredentialReader.readCredentials(
+                ByteBuffer.wrap(WscCredentialEncoder.encode(wifiNetwork, false)));
+        assertEquals(1, credentials.size());
+
+        WscCredential credential = credentials.get(0);
+        assertEquals(WscCredential.ABSENT, credential.getNetworkIndex());
+        assertEquals(WscCredential.ABSENT, credential.getEncType());
+        assertNull(credential.getMacAddress());
+        assertEquals(wifiNetwork, credential.toWifiNetwork());
+    }
+
+    @Test
+    public void readMultipleCredentials() {
+        ByteBuffer payload = ByteBuffer.allocate(256);
+        WscCredentialEncoder.encode(WIFI_NETWORKS[2], true, payload);
+        /* Unknown top-level attribute (version) between the credentials */
+        payload.put(new byte[]{0x10, 0x4a, 0x00, 0x01, 0x10});
+        WscCredentialEncoder.encode(WIFI_NETWORKS[4], false, payload);
+        payload.flip();
+
+        List<WscCredential> credentials = WscCredentialReader.readCredentials(payload);
+        assertEquals(2, credentials.size());
+        assertEquals(WIFI_NETWORKS[2], credentials.get(0).toWifiNetwork());
+        assertEquals(WIFI_NETWORKS[4], credentials.get(1).toWifiNetwork());
+        assertEquals(0, payload.position());
+    }
+
+    @Test
+    public void readMalformedCredentials() {
+        byte[] valid = WscCredentialEncoder.encode(WIFI_NETWORKS[2], true);
+
+        /* Truncated anywhere: never an exception, never a credential */
+        for (int length = 0; length < valid.length; length++) {
+            assertEquals(0, read(Arrays.copyOf(valid, length)).size());
+        }
+
+        /* Credential length beyond the payload */
+        byte[] overflow = valid.clone();
+        overflow[3] = (byte) 0xff;
+        assertEquals(0, read(overflow).size());
+
+        /* Authentication type of the wrong size */
+        assertEquals(0, read(new byte[]{
+                0x10, 0x0e, 0x00, 0x0a,
+                0x10, 0x45, 0x00, 0x01, 'a',
+                0x10, 0x03, 0x00, 0x01, 0x20}).size());
+
+        /* Network key longer than 64 bytes */
+        byte[] longKey = new byte[4 + 4 + 1 + 4 + 65];
+        ByteBuffer.wrap(longKey).putShort(NfcUtils.CREDENTIAL_FIELD_ID).putShort((short) (longKey.length - 4))
+                .putShort(NfcUtils.SSID_FIELD_ID).putShort((short) 1).put((byte) 'a')
+                .putShort(NfcUtils.NETWORK_KEY_FIELD_ID).putShort((short) 65);
+        assertEquals(0, read(longKey).size());
+
+        /* No SSID */
+        assertEquals(0, read(new byte[]{
+                0x10, 0x0e, 0x00, 0x06,
+                0x10, 0x03, 0x00, 0x02, 0x00, 0x20}).size());
+    }
+
+    @Test
+    public void readCredentialsFuzz() {
+        List<byte[]> corpus = buildCorpus();
+        Random random = new Random(42);
+        int validCredentials = 0;
+
+        /*
+         * The previous parser threw BufferUnderflowException on truncated payloads, and looped
+         * forever on an attribute length of -4 (0xfffc): it cannot be run on this corpus.
+         */
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            byte[] payload = mutate(random, corpus.get(random.nextInt(corpus.size())));
+
+            for (WscCredential credential : read(payload)) {
+                assertFalse(credential.getSsid().isEmpty());
+                assertNotNull(credential.getNetworkKey());
+                validCredentials++;
+            }
+        }
+
+        /* Some mutations keep valid credentials, which are then read */
+        assertTrue(validCredentials > 0);
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually")
+    public void readCredentialsBenchmark() {
+        byte[] payload = WscCredentialEncoder.encode(WIFI_NETWORKS[4], true);
+        int iterations = 200000;
+
+        /* Warm up both implementations before measuring */
+        for (int i = 0; i < iterations; i++) {
+            parsePayloadLegacy(ByteBuffer.wrap(payload));
+            WscCredentialReader.readCredentials(ByteBuffer.wrap(payload));
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            parsePayloadLegacy(ByteBuffer.wrap(payload));
+        }
+        long legacyNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            WscCredentialReader.readCredentials(ByteBuffer.wrap(payload));
+        }
+        long readerNanos = System.nanoTime() - start;
+
+        /* The bounds checks must not make the reader slower than the legacy parser */
+        assertTrue(String.format("%d-byte payload, legacy: %d ns, reader: %d ns",
+                payload.length, legacyNanos / iterations, readerNanos / iterations),
+                readerNanos < legacyNanos);
+    }
+
+    private static List<WscCredential> read(byte[] payload) {
+        return WscCredentialReader.readCredentials(ByteBuffer.wrap(payload));
+    }
+
+    private static List<byte[]> buildCorpus() {
+        List<byte[]> corpus = new ArrayList<>();
+        for (WifiNetwork wifiNetwork : WIFI_NETWORKS) {
+            corpus.add(WscCredentialEncoder.encode(wifiNetwork, true));
+            corpus.add(WscCredentialEncoder.encode(wifiNetwork, false));
+        }
+        ByteBuffer multiple = ByteBuffer.allocate(512);
+        for (WifiNetwork wifiNetwork : WIFI_NETWORKS) {
+            WscCredentialEncoder.encode(wifiNetwork, true, multiple);
+        }
+        corpus.add(Arrays.copyOf(multiple.array(), multiple.position()));
+        return corpus;
+    }
+
+    /* Flip, overwrite, drop or duplicate a few random bytes */
+    private static byte[] mutate(Random random, byte[] input) {
+        byte[] output = input.clone();
+        int mutations = 1 + random.nextInt(4);
+        for (int i = 0; i < mutations && output.length > 0; i++) {
+            int index = random.nextInt(output.length);
+            switch (random.nextInt(4)) {
+                case 0:
+                    output[index] ^= (byte) (1 << random.nextInt(8));
+                    break;
+                case 1:
+                    output[index] = (byte) random.nextInt(256);
+                    break;
+                case 2:
+                    output = Arrays.copyOf(output, index);
+                    break;
+                default:
+                    byte[] longer = Arrays.copyOf(output, output.length + 1);
+                    System.arraycopy(output, index, longer, index + 1, output.length - index);
+                    output = longer;
+                    break;
+            }
+        }
+        return output;
+    }
+
+    /* Previous implementation of NfcUtils#parse (without the record lookup), kept as a reference */
+    private static WifiConfiguration parsePayloadLegacy(ByteBuffer payload) {
+        while (payload.hasRemaining()) {
+            short fieldId = payload.getShort();
+            short fieldSize = payload.getShort();
+            if (fieldId == NfcUtils.CREDENTIAL_FIELD_ID) {
+                return parseCredentialLegacy(payload, fieldSize);
+            } else {
+                payload.position(payload.position() + fieldSize);
+            }
+        }
+        return null;
+    }
+
+    private static WifiConfiguration parseCredentialLegacy(ByteBuffer payload, short size) {
+        int startPosition = payload.position();
+        WifiConfiguration result = new WifiConfiguration();
+        while (payload.position() < startPosition + size) {
+            short fieldId = payload.getShort();
+            short fieldSize = payload.getShort();
+            if (payload.position() + fieldSize > startPosition + size) {
+                return null;
+            }
+            switch (fieldId) {
+                case NfcUtils.SSID_FIELD_ID:
+                    byte[] ssid = new byte[fieldSize];
+                    payload.get(ssid);
+                    result.SSID = "\"" + new String(ssid, UTF_8) + "\"";
+                    break;
+                case NfcUtils.NETWORK_KEY_FIELD_ID:
+                    if (fieldSize > NfcUtils.MAX_NETWORK_KEY_SIZE_BYTES) {
+                        return null;
+                    }
+                    byte[] networkKey = new byte[fieldSize];
+                    payload.get(networkKey);
+                    result.preSharedKey = "\"" + new String(networkKey, UTF_8) + "\"";
+                    break;
+                case NfcUtils.AUTH_TYPE_FIELD_ID:
+                    if (fieldSize != NfcUtils.AUTH_TYPE_EXPECTED_SIZE) {
+                        return null;
+                    }
+                    short authType = payload.getShort();
+                    populateAllowedKeyManagementLegacy(result.allowedKeyManagement, authType);
+                    break;
+                default:
+                    payload.position(payload.position() + fieldSize);
+                    break;
+            }
+        }
+        if (result.allowedKeyManagement.get(WifiConfiguration.KeyMgmt.NONE)) {
+            result.preSharedKey = null;
+        }
+        return result;
+    }
+
+    private static void populateAllowedKeyManagementLegacy(BitSet allowedKeyManagement, short authType) {
+        if (authType == NfcUtils.AUTH_TYPE_WPA_PSK || authType == NfcUtils.AUTH_TYPE_WPA2_PSK) {
+            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_PSK);
+        } else if (authType == NfcUtils.AUTH_TYPE_WPA_EAP || authType == NfcUtils.AUTH_TYPE_WPA2_EAP) {
+            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.WPA_EAP);
+        } else if (authType == NfcUtils.AUTH_TYPE_OPEN) {
+            allowedKeyManagement.set(WifiConfiguration.KeyMgmt.NONE);
+        }
+    }
+}
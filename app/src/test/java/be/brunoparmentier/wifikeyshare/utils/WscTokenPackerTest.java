@@ -0,0 +1,200 @@
+/*
+ * WiFiKeyShare. Share Wi-Fi passwords with QR codes or NFC tags.
+ * Copyright (C) 2018 Bruno Parmentier <dev@brunoparmentier.be>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package be.brunoparmentier.wifikeyshare.utils;
+
+import android.net.wifi.WifiConfiguration;
+import android.nfc.NdefMessage;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import be.brunoparmentier.wifikeyshare.BuildConfig;
+import be.brunoparmentier.wifikeyshare.model.WifiAuthType;
+import be.brunoparmentier.wifikeyshare.model.WifiNetwork;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class WscTokenPackerTest {
+
+    private static final String PACKAGE_NAME = BuildConfig.APPLICATION_ID;
+    private static final int FUZZ_ITERATIONS = 500;
+
+    private static final WifiNetwork BIG_NETWORK = new WifiNetwork("staff-network-with-a-long-ssid",
+            WifiAuthType.WPA2_PSK, "0123456789012345678901234567890123456789012345678901234567890ab",
+            false);
+    private static final WifiNetwork GUEST_NETWORK =
+            new WifiNetwork("guest", WifiAuthType.WPA2_PSK, "welcome!", false);
+    private static final WifiNetwork IOT_NETWORK =
+            new WifiNetwork("iot", WifiAuthType.WPA_PSK, "sensors1", false);
+
+    @Test
+    public void messageSizeMatchesSerialization() {
+        Random random = new Random(42);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            List<WifiNetwork> wifiNetworks = randomNetworks(random, 1 + random.nextInt(8));
+            int payloadSize = WscTokenPacker.getPayloadSize(wifiNetworks);
+
+            assertEquals(NfcUtils.generateNdefMessage(wifiNetworks, true).toByteArray().length,
+                    WscTokenPacker.getMessageSize(payloadSize, PACKAGE_NAME));
+            assertEquals(NfcUtils.generateNdefMessage(wifiNetworks, false).toByteArray().length,
+                    WscTokenPacker.getMessageSize(payloadSize, null));
+        }
+    }
+
+    @Test
+    public void selectNetworksMaximizesCount() {
+        List<WifiNetwork> wifiNetworks = Arrays.asList(BIG_NETWORK, GUEST_NETWORK, IOT_NETWORK);
+
+        /* Room for the two small networks only: the first network is skipped */
+        int maxSize = getMessageSize(Arrays.asList(GUEST_NETWORK, IOT_NETWORK), null);
+        assertEquals(Arrays.asList(GUEST_NETWORK, IOT_NETWORK),
+                WscTokenPacker.selectNetworks(wifiNetworks, maxSize, null));
+
+        /* Room for the first network and the smallest one */
+        maxSize = getMessageSize(Arrays.asList(BIG_NETWORK, IOT_NETWORK), null);
+        assertEquals(Arrays.asList(BIG_NETWORK, IOT_NETWORK),
+                WscTokenPacker.selectNetworks(wifiNetworks, maxSize, null));
+
+        /* Room for everything */
+        maxSize = getMessageSize(wifiNetworks, PACKAGE_NAME);
+        assertEquals(wifiNetworks, WscTokenPacker.selectNetworks(wifiNetworks, maxSize, PACKAGE_NAME));
+
+        /* Room for nothing */
+        assertTrue(WscTokenPacker.selectNetworks(wifiNetworks, 10, null).isEmpty());
+    }
+
+    @Test
+    public void selectNetworksMatchesExhaustiveSearch() {
+        Random random = new Random(42);
+        for (int i = 0; i < FUZZ_ITERATIONS; i++) {
+            List<WifiNetwork> wifiNetworks = randomNetworks(random, 1 + random.nextInt(8));
+            int maxSize = 30 + random.nextInt(400);
+
+            List<WifiNetwork> selectedNetworks =
+                    WscTokenPacker.selectNetworks(wifiNetworks, maxSize, null);
+
+            assertEquals(getBestCount(wifiNetworks, maxSize), selectedNetworks.size());
+            assertTrue(selectedNetworks.isEmpty() || getMessageSize(selectedNetworks, null) <= maxSize);
+            /* Selection is a subsequence of the input */
+            int index = 0;
+            for (WifiNetwork selectedNetwork : selectedNetworks) {
+                while (wifiNetworks.get(index) != selectedNetwork) {
+                    index++;
+                }
+                index++;
+            }
+        }
+    }
+
+    @Test
+    public void planForCapacity() {
+        List<WifiNetwork> wifiNetworks = Arrays.asList(BIG_NETWORK, GUEST_NETWORK, IOT_NETWORK);
+        TagMessagePlan plan = TagMessagePlan.forWifiNetworks(wifiNetworks);
+
+        /* Everything fits with the AAR */
+        int maxSize = getMessageSize(wifiNetworks, PACKAGE_NAME);
+        NdefMessage message = getMessage(plan.forCapacity(maxSize), maxSize);
+        assertEquals(2, message.getRecords().length);
+        assertEquals(3, NfcUtils.parse(message).size());
+
+        /* Dropping the AAR lets all the networks fit */
+        maxSize = getMessageSize(wifiNetworks, null);
+        message = getMessage(plan.forCapacity(maxSize), maxSize);
+        assertEquals(1, message.getRecords().length);
+        assertEquals(3, NfcUtils.parse(message).size());
+
+        /* Dropping the AAR does not let more networks fit: it is kept */
+        maxSize = getMessageSize(Arrays.asList(GUEST_NETWORK, IOT_NETWORK), PACKAGE_NAME);
+        message = getMessage(plan.forCapacity(maxSize), maxSize);
+        assertEquals(2, message.getRecords().length);
+        assertEquals(2, NfcUtils.parse(message).size());
+        assertEquals(2, plan.forCapacity(maxSize).getNetworkCount());
+
+        assertNull(plan.forCapacity(10).selectVariant(10));
+
+        /* Without a known capacity, every network is written */
+        assertEquals(3, plan.forCapacity(TagCapacityCache.UNKNOWN_CAPACITY).getNetworkCount());
+    }
+
+    @Test
+    public void parseAllCredentials() {
+        List<WifiNetwork> wifiNetworks = Arrays.asList(BIG_NETWORK, GUEST_NETWORK, IOT_NETWORK);
+        List<WifiConfiguration> wifiConfigurations =
+                NfcUtils.parse(NfcUtils.generateNdefMessage(wifiNetworks, true));
+
+        assertEquals(wifiNetworks.size(), wifiConfigurations.size());
+        for (int i = 0; i < wifiNetworks.size(); i++) {
+            assertEquals("\"" + wifiNetworks.get(i).getSsid() + "\"", wifiConfigurations.get(i).SSID);
+            assertEquals("\"" + wifiNetworks.get(i).getKey() + "\"",
+                    wifiConfigurations.get(i).preSharedKey);
+        }
+    }
+
+    private static int getMessageSize(List<WifiNetwork> wifiNetworks, String aarPackageName) {
+        return WscTokenPacker.getMessageSize(WscTokenPacker.getPayloadSize(wifiNetworks),
+                aarPackageName);
+    }
+
+    private static NdefMessage getMessage(TagMessagePlan plan, int capacity) {
+        return plan.getMessage(plan.selectVariant(capacity));
+    }
+
+    private static int getBestCount(List<WifiNetwork> wifiNetworks, int maxSize) {
+        int bestCount = 0;
+        for (int mask = 1; mask < 1 << wifiNetworks.size(); mask++) {
+            List<WifiNetwork> subset = new ArrayList<>();
+            for (int i = 0; i < wifiNetworks.size(); i++) {
+                if ((mask & (1 << i)) != 0) {
+                    subset.add(wifiNetworks.get(i));
+                }
+            }
+            if (subset.size() > bestCount && getMessageSize(subset, null) <= maxSize) {
+                bestCount = subset.size();
+            }
+        }
+        return bestCount;
+    }
+
+    private static List<WifiNetwork> randomNetworks(Random random, int count) {
+        List<WifiNetwork> wifiNetworks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String ssid = randomString(random, 1 + random.nextInt(32));
+            String key = randomString(random, 8 + random.nextInt(56));
+            wifiNetworks.add(new WifiNetwork(ssid, WifiAuthType.WPA2_PSK, key, false));
+        }
+        return wifiNetworks;
+    }
+
+    private static String randomString(Random random, int length) {
+        StringBuilder builder = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            builder.append((char) ('a' + random.nextInt(26)));
+        }
+        return builder.toString();
+    }
+}